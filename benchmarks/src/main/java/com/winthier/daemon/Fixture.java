@@ -0,0 +1,66 @@
+package com.winthier.daemon;
+
+import com.winthier.connect.OnlinePlayer;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A daemon with a scratch base directory, a stub network and a
+ * configurable number of open games, populated through the regular
+ * /game command path.
+ */
+final class Fixture {
+    final Daemon daemon = new Daemon();
+    final StubNetwork network = new StubNetwork();
+    final File baseDir;
+    final List<OnlinePlayer> players = new ArrayList<>();
+    final List<UUID> gameIds = new ArrayList<>();
+
+    Fixture(int games, int membersPerGame, int idlePlayers) throws IOException {
+        baseDir = Simulation.createBaseDir("daemon-bench", 30);
+        daemon.setBaseDir(baseDir);
+        daemon.setNetwork(network);
+        daemon.setup();
+        int total = games * membersPerGame + idlePlayers;
+        for (int i = 0; i < total; i += 1) {
+            OnlinePlayer player = new OnlinePlayer(new UUID(0L, i), "Player" + i);
+            players.add(player);
+            if (i < idlePlayers) network.onlinePlayers.add(player);
+        }
+        int next = idlePlayers;
+        Set<Daemon.Game> known = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int g = 0; g < games; g += 1) {
+            OnlinePlayer owner = players.get(next++);
+            daemon.syncGameCommand(owner, new String[] {Simulation.GAME_NAME, "create"});
+            Daemon.Game game = null;
+            for (Daemon.Game gamei: daemon.getOpenGames().values()) {
+                if (known.add(gamei)) game = gamei;
+            }
+            game.load(Collections.singletonMap("public", (Object)true));
+            Map<String, Object> map = new HashMap<>();
+            game.store(JsonSink.of(map));
+            UUID gameId = UUID.fromString((String)map.get("unique_id"));
+            gameIds.add(gameId);
+            for (int m = 1; m < membersPerGame; m += 1) {
+                daemon.syncGameCommand(players.get(next++), new String[] {gameId.toString(), "join"});
+            }
+        }
+        daemon.saveDirty();
+    }
+
+    Daemon.Game game(int index) {
+        return daemon.getOpenGames().get(gameIds.get(index));
+    }
+
+    void close() {
+        Simulation.delete(baseDir);
+    }
+}
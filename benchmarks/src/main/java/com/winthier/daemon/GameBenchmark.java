@@ -0,0 +1,74 @@
+package com.winthier.daemon;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Game.load and Game.store round trips, as done for every open game
+ * on each save and load.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GameBenchmark {
+    @Param({"1", "8", "24"})
+    int members;
+    private Map<String, Object> map;
+
+    @Setup
+    public void setup() {
+        map = new HashMap<>();
+        map.put("name", "colorfall");
+        map.put("display_name", "Colorfall");
+        map.put("description", "Stand on the right color when the timer runs out, or fall into the void.");
+        map.put("shorthand", "cf");
+        map.put("priority", 10);
+        map.put("setup_script", "base-game.setup");
+        map.put("min_players", 1);
+        map.put("connect", true);
+        map.put("unique_id", UUID.randomUUID().toString());
+        map.put("map_id", "Map 1");
+        map.put("debug", false);
+        List<String> memberList = new ArrayList<>();
+        for (int i = 0; i < members; i += 1) memberList.add(UUID.randomUUID().toString());
+        map.put("members", memberList);
+        map.put("spectators", new ArrayList<>());
+        map.put("invitees", new ArrayList<>(memberList));
+        map.put("owner", memberList.get(0));
+        map.put("public", true);
+        map.put("server_id", 2);
+        map.put("play_mode", "Classic");
+        Map<String, Object> timeline = new LinkedHashMap<>();
+        timeline.put("create", 1000L);
+        timeline.put("start", 2000L);
+        map.put("timeline", timeline);
+    }
+
+    @Benchmark
+    public Map<String, Object> roundTrip() {
+        Daemon.Game game = new Daemon.Game();
+        game.load(map);
+        Map<String, Object> result = new HashMap<>();
+        game.store(JsonSink.of(result));
+        return result;
+    }
+}
@@ -0,0 +1,83 @@
+package com.winthier.daemon;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.bukkit.ChatColor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Rendering of the games menu and the game info screen, including
+ * the JSON serialization Connect would do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MenuBenchmark {
+    @Param({"10", "100", "1000"})
+    int games;
+    @Param({"100"})
+    int idlePlayers;
+    private Fixture fixture;
+    private UUID outsider;
+    private UUID owner;
+    private Daemon.Game game;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        fixture = new Fixture(games, 8, idlePlayers);
+        outsider = fixture.players.get(0).getUuid();
+        owner = fixture.players.get(idlePlayers).getUuid();
+        game = fixture.game(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+    }
+
+    @Benchmark
+    public long gamesMenu() {
+        fixture.daemon.sendGamesMenu(outsider);
+        return fixture.network.bytes;
+    }
+
+    @Benchmark
+    public long gameInfo() {
+        fixture.daemon.sendGameInfo(owner, game);
+        return fixture.network.bytes;
+    }
+
+    @Benchmark
+    public long gameInfoInvite() {
+        fixture.daemon.sendGameInfo(owner, game, Daemon.GameInfoMode.INVITE);
+        return fixture.network.bytes;
+    }
+
+    @Benchmark
+    public long gameInfoMaps() {
+        fixture.daemon.sendGameInfo(owner, game, Daemon.GameInfoMode.MAP);
+        return fixture.network.bytes;
+    }
+
+    @Benchmark
+    public void button(Blackhole blackhole) {
+        blackhole.consume(Daemon.button(ChatColor.GREEN, "[Join]", "/game 00000000-0000-0000-0000-000000000000 join", "Join this game"));
+        blackhole.consume(Daemon.button(ChatColor.GRAY, "&o(Public Game)", null, "Anyone may join this game"));
+    }
+}
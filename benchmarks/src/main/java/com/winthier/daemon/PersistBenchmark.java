@@ -0,0 +1,59 @@
+package com.winthier.daemon;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Full save and load cycles of the state files in a scratch
+ * directory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersistBenchmark {
+    @Param({"10", "100", "1000"})
+    int games;
+    @Param({"8"})
+    int members;
+    private Fixture fixture;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        fixture = new Fixture(games, members, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+    }
+
+    @Benchmark
+    public void save() {
+        fixture.daemon.saveServers();
+        fixture.daemon.saveUsers();
+        fixture.daemon.saveOpenGames();
+    }
+
+    @Benchmark
+    public int load() {
+        fixture.daemon.loadServers();
+        fixture.daemon.loadUsers();
+        fixture.daemon.loadOpenGames();
+        return fixture.daemon.getOpenGames().size();
+    }
+}
@@ -0,0 +1,55 @@
+package com.winthier.daemon;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The bookkeeping mainLoop() does between every two tasks, and the
+ * rare full audit of open games, with no state actually changing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReconcileBenchmark {
+    @Param({"100", "1000", "10000"})
+    int games;
+    @Param({"8"})
+    int members;
+    private Fixture fixture;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        fixture = new Fixture(games, members, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+    }
+
+    @Benchmark
+    public int reconcile() {
+        fixture.daemon.reconcile();
+        return fixture.daemon.getOpenGames().size();
+    }
+
+    @Benchmark
+    public int audit() {
+        return fixture.daemon.auditGames();
+    }
+}
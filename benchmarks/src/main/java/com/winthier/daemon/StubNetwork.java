@@ -0,0 +1,42 @@
+package com.winthier.daemon;
+
+import com.winthier.connect.OnlinePlayer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.json.simple.JSONValue;
+
+/**
+ * In-memory Network which serializes every payload, the way Connect
+ * would, and counts the bytes.
+ */
+final class StubNetwork implements Network {
+    final List<OnlinePlayer> onlinePlayers = new ArrayList<>();
+    long messages;
+    long bytes;
+
+    @Override
+    public void send(String target, String channel, Object payload) {
+        messages += 1;
+        bytes += JSONValue.toJSONString(payload).length();
+    }
+
+    @Override
+    public void broadcast(String channel, Object payload) {
+        messages += 1;
+        bytes += JSONValue.toJSONString(payload).length();
+    }
+
+    @Override
+    public List<OnlinePlayer> getOnlinePlayers() {
+        return onlinePlayers;
+    }
+
+    @Override
+    public Map<String, List<OnlinePlayer>> listPlayers() {
+        Map<String, List<OnlinePlayer>> result = new HashMap<>();
+        result.put("hub", onlinePlayers);
+        return result;
+    }
+}
@@ -0,0 +1,3 @@
+#!/bin/bash
+# Offline load simulation, see Simulation.java for the options.
+java -cp bin/Daemon.jar:/home/mc/public/plugins/Connect.jar:/home/mc/public/spigot/spigot.jar com.winthier.daemon.Simulation --scripts sim/script "$@"
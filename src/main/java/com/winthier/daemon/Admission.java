@@ -0,0 +1,195 @@
+package com.winthier.daemon;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission of tasks from the outside, i.e. player commands, game
+ * server messages and status requests.  Every source has a token
+ * bucket and a cap on its tasks waiting in the queue, and all of
+ * them share a cap on the queue length.  A request which only
+ * refreshes a view, such as the games menu, is coalesced with the
+ * same request still waiting in the queue.  Internal tasks, such as
+ * setup results, are never subject to admission, nor are game server
+ * messages which must not be lost, see Daemon.mayShed().
+ *
+ * Called from the Connect threads; done() from the main thread.
+ */
+final class Admission {
+    enum Verdict {
+        ADMIT, COALESCE, RATE, QUOTA, FULL;
+    }
+    static final long IDLE_TIME = 60000L; // Until an idle source is forgotten
+    // Configuration, see config/daemon.yml
+    boolean enabled = true;
+    double playerRate = 4.0; // Tasks per second
+    double playerBurst = 20.0;
+    double serverRate = 500.0;
+    double serverBurst = 2000.0;
+    int sourcePending = 100; // Tasks per source waiting in the queue
+    int queueLimit = 10000; // Outside tasks waiting in the queue
+    private final Map<String, Source> sources = new ConcurrentHashMap<>();
+    private final Set<String> coalescing = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger pending = new AtomicInteger();
+    // Metrics
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong rejectedRate = new AtomicLong();
+    private final AtomicLong rejectedQuota = new AtomicLong();
+    private final AtomicLong rejectedFull = new AtomicLong();
+
+    static final class Source {
+        private double tokens;
+        private long lastRefill, lastSeen;
+        private int pending;
+        private long rejected;
+        private boolean removed; // By sweep(), after which it is stale
+
+        Source(double burst, long now) {
+            this.tokens = burst;
+            this.lastRefill = now;
+            this.lastSeen = now;
+        }
+    }
+
+    /**
+     * @param player Whether the source is a player, as opposed to a
+     *   server, which picks the rate
+     * @param coalesceKey Names an idempotent request, or null
+     */
+    Verdict admit(String name, boolean player, String coalesceKey) {
+        if (!enabled) {
+            admitted.incrementAndGet();
+            return Verdict.ADMIT;
+        }
+        if (coalesceKey != null && coalescing.contains(coalesceKey)) {
+            coalesced.incrementAndGet();
+            return Verdict.COALESCE;
+        }
+        final double rate = player ? playerRate : serverRate;
+        final double burst = player ? playerBurst : serverBurst;
+        final long now = System.currentTimeMillis();
+        Verdict verdict = null;
+        while (verdict == null) {
+            Source source = sources.computeIfAbsent(name, k -> new Source(burst, now));
+            verdict = take(source, rate, burst, now);
+        }
+        if (verdict != Verdict.ADMIT) {
+            Events.Reject event = new Events.Reject();
+            if (event.shouldCommit()) {
+                event.source = name;
+                event.verdict = verdict.name();
+                event.commit();
+            }
+        }
+        switch (verdict) {
+        case ADMIT:
+            admitted.incrementAndGet();
+            if (coalesceKey != null) coalescing.add(coalesceKey);
+            break;
+        case RATE: rejectedRate.incrementAndGet(); break;
+        case QUOTA: rejectedQuota.incrementAndGet(); break;
+        case FULL: rejectedFull.incrementAndGet(); break;
+        default: break;
+        }
+        return verdict;
+    }
+
+    /**
+     * Take a token from the source.
+     * @return The verdict, or null if the source was swept meanwhile
+     */
+    private Verdict take(Source source, double rate, double burst, long now) {
+        synchronized (source) {
+            if (source.removed) return null;
+            source.lastSeen = now;
+            source.tokens = Math.min(burst, source.tokens + rate * (now - source.lastRefill) / 1000.0);
+            source.lastRefill = now;
+            Verdict verdict;
+            if (source.tokens < 1.0) {
+                verdict = Verdict.RATE;
+            } else if (source.pending >= sourcePending) {
+                verdict = Verdict.QUOTA;
+            } else if (pending.get() >= queueLimit) {
+                verdict = Verdict.FULL;
+            } else {
+                verdict = Verdict.ADMIT;
+                source.tokens -= 1.0;
+                source.pending += 1;
+                pending.incrementAndGet();
+            }
+            if (verdict != Verdict.ADMIT) source.rejected += 1;
+            return verdict;
+        }
+    }
+
+    /**
+     * An admitted task is leaving the queue.
+     */
+    void done(String name, String coalesceKey) {
+        if (coalesceKey != null) coalescing.remove(coalesceKey);
+        Source source = sources.get(name);
+        if (source == null) return;
+        synchronized (source) {
+            if (source.pending > 0) {
+                source.pending -= 1;
+                pending.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Forget sources which have been quiet for a while, so the map
+     * does not grow with every player ever seen.
+     */
+    void sweep(long now) {
+        sources.entrySet().removeIf(entry -> {
+                Source source = entry.getValue();
+                synchronized (source) {
+                    source.removed = source.pending == 0 && now - source.lastSeen > IDLE_TIME;
+                    return source.removed;
+                }
+            });
+    }
+
+    void load(Map<String, Object> map) {
+        if (map.containsKey("admission_enabled")) enabled = map.get("admission_enabled") == Boolean.TRUE;
+        if (map.containsKey("admission_player_rate")) playerRate = ((Number)map.get("admission_player_rate")).doubleValue();
+        if (map.containsKey("admission_player_burst")) playerBurst = ((Number)map.get("admission_player_burst")).doubleValue();
+        if (map.containsKey("admission_server_rate")) serverRate = ((Number)map.get("admission_server_rate")).doubleValue();
+        if (map.containsKey("admission_server_burst")) serverBurst = ((Number)map.get("admission_server_burst")).doubleValue();
+        if (map.containsKey("admission_source_pending")) sourcePending = ((Number)map.get("admission_source_pending")).intValue();
+        if (map.containsKey("admission_queue_limit")) queueLimit = ((Number)map.get("admission_queue_limit")).intValue();
+    }
+
+    List<String> report() {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("enabled=%s player=%.1f/s burst=%.0f server=%.1f/s burst=%.0f source_pending=%d queue_limit=%d",
+                                enabled, playerRate, playerBurst, serverRate, serverBurst, sourcePending, queueLimit));
+        lines.add(String.format("pending=%d sources=%d admitted=%d coalesced=%d rejected rate=%d quota=%d full=%d",
+                                pending.get(), sources.size(), admitted.get(), coalesced.get(),
+                                rejectedRate.get(), rejectedQuota.get(), rejectedFull.get()));
+        // The worst offenders among the sources still remembered
+        List<String> names = new ArrayList<>();
+        final Map<String, Long> rejected = new HashMap<>();
+        for (Map.Entry<String, Source> entry: sources.entrySet()) {
+            synchronized (entry.getValue()) {
+                if (entry.getValue().rejected == 0) continue;
+                rejected.put(entry.getKey(), entry.getValue().rejected);
+            }
+            names.add(entry.getKey());
+        }
+        Collections.sort(names, (a, b) -> Long.compare(rejected.get(b), rejected.get(a)));
+        for (String name: names.subList(0, Math.min(10, names.size()))) {
+            lines.add(String.format("source %s rejected=%d", name, rejected.get(name)));
+        }
+        return lines;
+    }
+}
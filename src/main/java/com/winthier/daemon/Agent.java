@@ -0,0 +1,294 @@
+package com.winthier.daemon;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+import org.json.simple.JSONValue;
+
+/**
+ * Runs game server slots on behalf of a daemon on another machine,
+ * see RemoteHost for the protocol.  The agent's base dir needs the
+ * same script, template and world layout as the daemon's.  Requests
+ * run on a thread pool, so a long setup does not block a liveness
+ * probe.  Server exits are sent to every connected daemon.
+ *
+ * The agent listens on loopback unless told otherwise, and refuses
+ * any other address without a token, since whoever connects may
+ * start and stop game servers.
+ *
+ * The agent runs the slots from first_slot, by server index as the
+ * daemon numbers them, and refuses requests for any other.
+ *
+ * Usage, from the agent base dir:
+ *   java ... com.winthier.daemon.Agent [--port 8990] [--bind 127.0.0.1]
+ *     [--first-slot 0] [--slots 4] [--dir .] [--token secret]
+ */
+final class Agent {
+    static final Pattern SCRIPT_NAME = Pattern.compile("[A-Za-z0-9][A-Za-z0-9._-]*");
+    int port = 8990;
+    String bind = "127.0.0.1";
+    int firstSlot = 0;
+    int slots = 4;
+    File dir = null;
+    String token = null;
+    private LocalHost host;
+    private HostMetrics metrics;
+    private ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Set<PrintWriter> clients = new LinkedHashSet<>();
+    // Slots with a setup, start or resume underway, which may still
+    // bring up a server after a stop
+    private final Set<Integer> busy = ConcurrentHashMap.newKeySet();
+    private volatile boolean stopped;
+
+    public static void main(String[] args) throws Exception {
+        Agent agent = new Agent();
+        for (int i = 0; i < args.length; i += 1) {
+            String arg = args[i];
+            switch (arg) {
+            case "--port": agent.port = Integer.parseInt(args[++i]); break;
+            case "--bind": agent.bind = args[++i]; break;
+            case "--first-slot": agent.firstSlot = Integer.parseInt(args[++i]); break;
+            case "--slots": agent.slots = Integer.parseInt(args[++i]); break;
+            case "--dir": agent.dir = new File(args[++i]); break;
+            case "--token": agent.token = args[++i]; break;
+            default:
+                System.err.println("Unknown argument: " + arg);
+                System.exit(1);
+            }
+        }
+        try {
+            agent.start();
+        } catch (IOException ioe) {
+            System.err.println("Agent: " + ioe.getMessage());
+            System.exit(1);
+        }
+        System.out.println("Agent listening on port " + agent.getPort() + " with slots " + agent.firstSlot + "-" + (agent.firstSlot + agent.slots - 1));
+        agent.acceptLoop();
+    }
+
+    /**
+     * Bind the socket and start sampling.  The port may be 0, see
+     * getPort().
+     */
+    void start() throws IOException {
+        InetAddress address = InetAddress.getByName(bind);
+        if (!address.isLoopbackAddress() && token == null) {
+            throw new IOException("Refusing to listen on " + bind + " without a token");
+        }
+        host = new LocalHost(dir, slots);
+        metrics = new HostMetrics(host.file("run"));
+        host.setMetrics(metrics);
+        host.setExitListener((index, pid, code) -> {
+                Map<String, Object> event = new HashMap<>();
+                event.put("event", "exit");
+                event.put("index", index);
+                event.put("pid", pid);
+                event.put("code", code);
+                synchronized (clients) {
+                    for (PrintWriter out: clients) write(out, event);
+                }
+            });
+        Thread metricsThread = new Thread(metrics, "HostMetrics");
+        metricsThread.setDaemon(true);
+        metricsThread.start();
+        serverSocket = new ServerSocket(port, 0, address);
+        serverSocket.setReuseAddress(true);
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    void acceptLoop() {
+        while (!stopped) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException ioe) {
+                if (!stopped) ioe.printStackTrace();
+                continue;
+            }
+            Thread thread = new Thread(() -> handle(socket), "Agent-" + socket.getRemoteSocketAddress());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    void stop() {
+        stopped = true;
+        metrics.stop();
+        executor.shutdownNow();
+        try {
+            serverSocket.close();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    void handle(Socket socket) {
+        System.out.println("Daemon connected from " + socket.getRemoteSocketAddress());
+        try (Socket s = socket) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            final PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+            String line = in.readLine();
+            if (line == null) return;
+            Map<String, Object> hello = (Map<String, Object>)JSONValue.parse(line);
+            Map<String, Object> reply = new HashMap<>();
+            reply.put("id", 0);
+            if (hello == null || !"hello".equals(hello.get("op"))) {
+                reply.put("error", "Expected hello");
+            } else if (token != null && !checkToken(hello.get("token"))) {
+                reply.put("error", "Bad token");
+            } else {
+                reply.put("slots", slots);
+                reply.put("first_slot", firstSlot);
+            }
+            write(out, reply);
+            if (reply.containsKey("error")) return;
+            synchronized (clients) {
+                clients.add(out);
+            }
+            try {
+                readRequests(in, out);
+            } finally {
+                synchronized (clients) {
+                    clients.remove(out);
+                }
+            }
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+        System.out.println("Daemon disconnected from " + socket.getRemoteSocketAddress());
+    }
+
+    /**
+     * Compare in constant time, so the token cannot be guessed byte
+     * by byte from how long a refusal takes.
+     */
+    boolean checkToken(Object given) {
+        if (!(given instanceof String)) return false;
+        return MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), ((String)given).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @SuppressWarnings("unchecked")
+    void readRequests(BufferedReader in, final PrintWriter out) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (stopped) return;
+            final Map<String, Object> request = (Map<String, Object>)JSONValue.parse(line);
+            if (request == null) continue;
+            executor.execute(() -> {
+                    Map<String, Object> response = new HashMap<>();
+                    response.put("id", request.get("id"));
+                    try {
+                        execute(request, response);
+                    } catch (RuntimeException re) {
+                        re.printStackTrace();
+                        response.put("error", re.toString());
+                    }
+                    write(out, response);
+                });
+        }
+    }
+
+    void execute(Map<String, Object> request, Map<String, Object> response) {
+        String op = (String)request.get("op");
+        int index = request.containsKey("index") ? ((Number)request.get("index")).intValue() : -1;
+        boolean launch = "setup".equals(op) || "start".equals(op) || "resume".equals(op);
+        if (launch) busy.add(index);
+        try {
+            execute(op, index, request, response);
+        } finally {
+            if (launch) busy.remove(index);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    void execute(String op, int index, Map<String, Object> request, Map<String, Object> response) {
+        switch (op == null ? "" : op) {
+        case "setup":
+            if (!checkSlot(index, response)) break;
+            if (!SCRIPT_NAME.matcher(String.valueOf(request.get("script"))).matches()) {
+                response.put("error", "Bad script name");
+                break;
+            }
+            response.put("ret", host.setup((String)request.get("script"), (String)request.get("game"), index, (String)request.get("map_path")));
+            break;
+        case "start": {
+            if (!checkSlot(index, response)) break;
+            Map<String, Long> phases = new HashMap<>();
+            int port = ((Number)request.get("port")).intValue();
+            response.put("ret", host.start(index, port, (Map<String, Object>)request.get("config"), phases));
+            Long launch = phases.get(GameTimings.LAUNCH);
+            if (launch != null) response.put("launch", launch);
+            response.put("pid", host.getPid(index));
+            break;
+        }
+        case "log":
+            if (!checkSlot(index, response)) break;
+            response.put("lines", host.getLog(index, ((Number)request.get("lines")).intValue()));
+            break;
+        case "resume":
+            if (!checkSlot(index, response)) break;
+            response.put("ret", host.resume(index, new HashMap<>()));
+            response.put("pid", host.getPid(index));
+            break;
+        case "exists":
+            if (!checkSlot(index, response)) break;
+            response.put("exists", host.exists(index));
+            break;
+        case "stop":
+            if (!checkSlot(index, response)) break;
+            host.stop(index);
+            break;
+        case "status": {
+            response.put("slots", slots);
+            response.put("children", Processes.getLiveCount());
+            List<Integer> running = new ArrayList<>();
+            for (int i = firstSlot; i < firstSlot + slots; i += 1) {
+                if (busy.contains(i) || host.exists(i)) running.add(i);
+            }
+            response.put("running", running);
+            HostMetrics.Snapshot snapshot = metrics.getSnapshot();
+            if (snapshot != null) HostMetrics.store(snapshot, response);
+            break;
+        }
+        default:
+            response.put("error", "Unknown op: " + op);
+        }
+    }
+
+    boolean checkSlot(int index, Map<String, Object> response) {
+        if (index >= firstSlot && index < firstSlot + slots) return true;
+        response.put("error", "Not one of slots " + firstSlot + "-" + (firstSlot + slots - 1) + ": " + index);
+        return false;
+    }
+
+    static void write(PrintWriter out, Map<String, Object> map) {
+        String line = JSONValue.toJSONString(map);
+        synchronized (out) {
+            out.println(line);
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.winthier.daemon;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.UUID;
+import org.json.simple.JSONStreamAware;
+import org.json.simple.JSONValue;
+
+/**
+ * One piece of a chat message, with an optional color, click
+ * command and tooltip.  It writes itself as the JSON chat component
+ * the servers expect, so a message costs one object per piece
+ * rather than a map for the piece and each of its events.
+ */
+final class ChatComponent implements JSONStreamAware {
+    private final String color; // Lower case name, or null
+    private final String text;
+    private final String command; // Run on click, or null
+    private final String tooltip; // Or null
+
+    ChatComponent(String color, String text, String command, String tooltip) {
+        this.color = color;
+        this.text = text;
+        this.command = command;
+        this.tooltip = tooltip;
+    }
+
+    @Override
+    public void writeJSONString(Writer out) throws IOException {
+        JsonWriter json = new JsonWriter(out);
+        json.beginObject();
+        if (color != null) json.put("color", color);
+        json.put("text", text);
+        if (command != null) {
+            json.name("clickEvent").beginObject();
+            json.put("action", "run_command");
+            json.put("value", command);
+            json.endObject();
+        }
+        if (tooltip != null) {
+            json.name("hoverEvent").beginObject();
+            json.put("action", "show_text");
+            json.put("value", tooltip);
+            json.endObject();
+        }
+        json.endObject();
+    }
+
+    @Override
+    public String toString() {
+        return JSONValue.toJSONString(this);
+    }
+
+    /**
+     * The PLAYER_MESSAGE payload: a chat message for one player.
+     */
+    static final class Message implements JSONStreamAware {
+        private final UUID target;
+        private final Object chat; // A component, a string, or a list of them
+
+        Message(UUID target, Object chat) {
+            this.target = target;
+            this.chat = chat;
+        }
+
+        @Override
+        public void writeJSONString(Writer out) throws IOException {
+            JsonWriter json = new JsonWriter(out);
+            json.beginObject();
+            json.put("target", target.toString());
+            json.put("chat", chat);
+            json.endObject();
+        }
+
+        @Override
+        public String toString() {
+            return JSONValue.toJSONString(this);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.winthier.daemon;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * Several daemons sharing the work by game type.  Every member knows
+ * the full member list from config/daemon.yml, and game types are
+ * assigned to members by consistent hashing, so adding a member only
+ * moves the types which land on it.  Each member runs its own slots,
+ * numbered from its first_slot, so server names stay unique on the
+ * network.
+ *
+ * Members announce their open games and slot range to each other
+ * every ANNOUNCE_INTERVAL and after every change, over Connect.  The
+ * announcements are what routes a command about a game or a player
+ * to the member which has it, and fill the games menu.  A member not
+ * heard from for PEER_TIMEOUT is left out.  Main thread only.
+ */
+final class Cluster {
+    static final String CHANNEL = "daemon_cluster";
+    static final int VIRTUAL_NODES = 64;
+    static final long ANNOUNCE_INTERVAL = 5000L;
+    static final long PEER_TIMEOUT = 3L * ANNOUNCE_INTERVAL;
+    final String self;
+    final List<String> members;
+    final int firstSlot;
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final Map<String, Peer> peers = new HashMap<>();
+    // Metrics
+    long forwardedCommands, forwardedMessages, unavailable, received;
+
+    /**
+     * An open game of another member, as announced.
+     */
+    static final class Listing {
+        final UUID id;
+        final String name;
+        final String displayName;
+        final boolean publicGame;
+        final List<UUID> members;
+        final List<UUID> invitees;
+
+        Listing(UUID id, String name, String displayName, boolean publicGame, List<UUID> members, List<UUID> invitees) {
+            this.id = id;
+            this.name = name;
+            this.displayName = displayName;
+            this.publicGame = publicGame;
+            this.members = members;
+            this.invitees = invitees;
+        }
+    }
+
+    static final class Peer {
+        final String name;
+        int firstSlot;
+        int slots;
+        long lastSeen;
+        List<Listing> games = Collections.emptyList();
+        // Indexes of the games, for routing
+        Map<UUID, Listing> byId = Collections.emptyMap();
+        Set<UUID> players = Collections.emptySet();
+
+        Peer(String name) {
+            this.name = name;
+        }
+    }
+
+    Cluster(String self, List<String> members, int firstSlot) {
+        this.self = self;
+        this.members = members;
+        this.firstSlot = firstSlot;
+        for (String member: members) {
+            for (int i = 0; i < VIRTUAL_NODES; i += 1) ring.put(hash(member + "#" + i), member);
+        }
+    }
+
+    /**
+     * @return The cluster section of the config, or null if there is
+     *   none
+     */
+    @SuppressWarnings("unchecked")
+    static Cluster fromConfig(Map<String, Object> config) {
+        if (!(config.get("cluster") instanceof Map)) return null;
+        Map<String, Object> map = (Map<String, Object>)config.get("cluster");
+        String self = (String)map.get("self");
+        List<String> members = map.get("members") instanceof List ? new ArrayList<>((List<String>)map.get("members")) : new ArrayList<>();
+        if (self == null || !members.contains(self)) {
+            throw new IllegalArgumentException("cluster.self must be one of cluster.members");
+        }
+        int firstSlot = map.containsKey("first_slot") ? ((Number)map.get("first_slot")).intValue() : 0;
+        return new Cluster(self, members, firstSlot);
+    }
+
+    /**
+     * FNV-1a, then the MurmurHash3 finalizer, for an even spread of
+     * the ring.  Every member must compute the same owners.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b: key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * @return The member which owns the game type
+     */
+    String owner(String gameName) {
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(gameName));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    boolean isLive(String member, long now) {
+        if (member.equals(self)) return true;
+        Peer peer = peers.get(member);
+        return peer != null && now - peer.lastSeen < PEER_TIMEOUT;
+    }
+
+    /**
+     * @return The other members which are live
+     */
+    List<String> getPeers(long now) {
+        List<String> result = new ArrayList<>();
+        for (Peer peer: peers.values()) {
+            if (now - peer.lastSeen < PEER_TIMEOUT) result.add(peer.name);
+        }
+        return result;
+    }
+
+    /**
+     * Take in an announcement.
+     */
+    @SuppressWarnings("unchecked")
+    void update(String from, Map<String, Object> map, long now) {
+        if (from.equals(self) || !members.contains(from)) return;
+        received += 1;
+        Peer peer = peers.computeIfAbsent(from, Peer::new);
+        peer.lastSeen = now;
+        if (map.get("first_slot") instanceof Number) peer.firstSlot = ((Number)map.get("first_slot")).intValue();
+        if (map.get("slots") instanceof Number) peer.slots = ((Number)map.get("slots")).intValue();
+        if (!(map.get("games") instanceof List)) return;
+        List<Listing> games = new ArrayList<>();
+        Map<UUID, Listing> byId = new HashMap<>();
+        Set<UUID> players = new HashSet<>();
+        for (Map<String, Object> js: (List<Map<String, Object>>)map.get("games")) {
+            Listing listing;
+            try {
+                listing = new Listing(UUID.fromString((String)js.get("unique_id")),
+                                      (String)js.get("name"),
+                                      (String)js.get("display_name"),
+                                      js.get("public") == Boolean.TRUE,
+                                      uuids(js.get("members")),
+                                      uuids(js.get("invitees")));
+            } catch (IllegalArgumentException | NullPointerException | ClassCastException e) {
+                System.err.println("Dropping game announced by " + from + ": " + e);
+                continue;
+            }
+            games.add(listing);
+            byId.put(listing.id, listing);
+            players.addAll(listing.members);
+        }
+        peer.games = games;
+        peer.byId = byId;
+        peer.players = players;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<UUID> uuids(Object list) {
+        if (!(list instanceof List)) return Collections.emptyList();
+        List<UUID> result = new ArrayList<>();
+        for (String uuid: (List<String>)list) result.add(UUID.fromString(uuid));
+        return result;
+    }
+
+    /**
+     * @return The live member with the game, or null
+     */
+    String findGame(UUID gameId, long now) {
+        for (Peer peer: peers.values()) {
+            if (now - peer.lastSeen < PEER_TIMEOUT && peer.byId.containsKey(gameId)) return peer.name;
+        }
+        return null;
+    }
+
+    /**
+     * @return The live member with a game the player is in, or null
+     */
+    String findPlayer(UUID player, long now) {
+        for (Peer peer: peers.values()) {
+            if (now - peer.lastSeen < PEER_TIMEOUT && peer.players.contains(player)) return peer.name;
+        }
+        return null;
+    }
+
+    /**
+     * @param server The Connect name of a game server, e.g. game23
+     * @return The live member running the slot, or null
+     */
+    String findSlot(String server, long now) {
+        if (!server.startsWith("game")) return null;
+        int index;
+        try {
+            index = Integer.parseInt(server.substring(4));
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+        for (Peer peer: peers.values()) {
+            if (now - peer.lastSeen >= PEER_TIMEOUT) continue;
+            if (index >= peer.firstSlot && index < peer.firstSlot + peer.slots) return peer.name;
+        }
+        return null;
+    }
+
+    /**
+     * @return The games of live members the player may see in the
+     *   menu
+     */
+    List<Listing> visibleGames(UUID player, long now) {
+        List<Listing> result = new ArrayList<>();
+        for (String member: members) {
+            Peer peer = peers.get(member);
+            if (peer == null || now - peer.lastSeen >= PEER_TIMEOUT) continue;
+            for (Listing listing: peer.games) {
+                if (listing.publicGame || listing.members.contains(player) || listing.invitees.contains(player)) result.add(listing);
+            }
+        }
+        return result;
+    }
+
+    List<String> report(long now, List<String> gameNames) {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("self=%s first_slot=%d forwarded_commands=%d forwarded_messages=%d unavailable=%d announcements=%d",
+                                self, firstSlot, forwardedCommands, forwardedMessages, unavailable, received));
+        for (String member: members) {
+            if (member.equals(self)) continue;
+            Peer peer = peers.get(member);
+            if (peer == null) {
+                lines.add("  " + member + " never heard from");
+            } else {
+                lines.add(String.format("  %s %s slots=%d-%d games=%d seen=%dms ago", member, isLive(member, now) ? "live" : "gone",
+                                        peer.firstSlot, peer.firstSlot + peer.slots - 1, peer.games.size(), now - peer.lastSeen));
+            }
+        }
+        Map<String, List<String>> owned = new TreeMap<>();
+        for (String name: gameNames) owned.computeIfAbsent(owner(name), k -> new ArrayList<>()).add(name);
+        for (Map.Entry<String, List<String>> entry: owned.entrySet()) {
+            lines.add("  " + entry.getKey() + " owns " + String.join(", ", entry.getValue()));
+        }
+        return lines;
+    }
+}
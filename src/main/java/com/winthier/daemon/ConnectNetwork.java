@@ -0,0 +1,32 @@
+package com.winthier.daemon;
+
+import com.winthier.connect.Connect;
+import com.winthier.connect.OnlinePlayer;
+import java.util.List;
+import java.util.Map;
+import lombok.RequiredArgsConstructor;
+
+@RequiredArgsConstructor
+final class ConnectNetwork implements Network {
+    private final Connect connect;
+
+    @Override
+    public void send(String target, String channel, Object payload) {
+        connect.send(target, channel, payload);
+    }
+
+    @Override
+    public void broadcast(String channel, Object payload) {
+        connect.broadcast(channel, payload);
+    }
+
+    @Override
+    public List<OnlinePlayer> getOnlinePlayers() {
+        return connect.getOnlinePlayers();
+    }
+
+    @Override
+    public Map<String, List<OnlinePlayer>> listPlayers() {
+        return connect.listPlayers();
+    }
+}
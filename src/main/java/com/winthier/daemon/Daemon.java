@@ -5,30 +5,47 @@ import com.winthier.connect.ConnectHandler;
 import com.winthier.connect.Message;
 import com.winthier.connect.OnlinePlayer;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import lombok.RequiredArgsConstructor;
 import org.bukkit.ChatColor;
@@ -39,39 +56,115 @@ import org.yaml.snakeyaml.Yaml;
 public final class Daemon implements ConnectHandler {
     private static Daemon instance;
     private Connect connect;
-    private final LinkedBlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+    private Network network;
+    private File baseDir = null; // null means the working directory
+    private int serverCount = 5;
+    private static final long LIVENESS_INTERVAL = 5000L;
+    private static final long OUTBOX_INTERVAL = 1000L;
+    private static final long AUDIT_INTERVAL = 10L * 60L * 1000L;
+    private static final long MATCHMAKING_INTERVAL = 1000L;
+    private static final long EXEC_TIMEOUT = 10L * 60L * 1000L;
+    private static final int EXEC_LINES = 20;
+    private static final long DRAIN_TIMEOUT = 10000L;
+    private static final long SAVE_DELAY = 1000L; // Dirty state is written at most this late
+    private static final long STATUS_REQUEST_TIMEOUT = 100L; // For a status client to say what it wants
+    private final TimerWheel<Task> timers = new TimerWheel<>(System.currentTimeMillis());
+    private TimerWheel.Timer<Task> saveTimer;
+    private final TaskQueue<Task> tasks = new TaskQueue<>();
     private volatile boolean shouldStop;
+    // Graceful stop: no new servers, finish what is queued and booting.
+    private volatile boolean draining;
+    private final CountDownLatch finished = new CountDownLatch(1); // Once loop() has saved
+    private long drainDeadline;
+    private int provisioning; // Setup threads in flight
+    // Users in a game, which are saved.  Anyone else only ever sits
+    // in the bounded cache, see getUser().
     private HashMap<UUID, User> users = new HashMap<>();
+    private static final int USER_CACHE_SIZE = 1024;
+    private final Map<UUID, User> userCache = new LinkedHashMap<UUID, User>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, User> eldest) {
+                return size() > USER_CACHE_SIZE;
+            }
+        };
+    private long userCacheHits, userCacheMisses;
     private List<Server> servers = new ArrayList<>();
     private Map<UUID, Game> openGames = new HashMap<>();
+    private Map<String, List<Game>> openGamesByName = new HashMap<>();
+    private Map<String, MatchQueue> matchQueues = new HashMap<>();
+    private Set<UUID> autoStartGames = new LinkedHashSet<>();
+    private List<UUID> startQueue = new ArrayList<>(); // Games waiting for a free server
     private List<Game> games = new ArrayList<>();
     private Random random = new Random(System.currentTimeMillis());
     private Map<UUID, String> playerCache = null;
     private List<WorldInfo> worldInfos = null;
     private List<PlayMode> playModes = null;
     private List<ChatColor> niceColors = Arrays.asList(ChatColor.BLUE, ChatColor.GREEN, ChatColor.GOLD, ChatColor.AQUA, ChatColor.LIGHT_PURPLE);
-    boolean dirtyServers, dirtyUsers, dirtyGames;
+    private GameTimings timings = new GameTimings();
+    private DemandForecast demand = new DemandForecast();
+    private int prestageBudget = 0; // Servers which may be staged ahead of demand
+    private static final long PRESTAGE_INTERVAL = 60000L;
+    private static final long PRESTAGE_HORIZON = 15L * 60L * 1000L;
+    private Placement placement = new Placement();
+    private final Admission admission = new Admission();
+    private Watchdog watchdog; // Created by setup()
+    private static final String LOCK_PATH = "run/daemon.lock";
+    private FileLock lock; // Held while this is the primary, see Replication
+    private Replication replication; // Null unless replication_port is set
+    private Cluster cluster; // Null unless the cluster section is set
+    private int firstSlot = 0; // Index of the first server, see Cluster
+    private HostMetrics hostMetrics; // Null unless started by main()
+    private Map<GameHost, HostMetrics.Snapshot> lastSnapshots = new HashMap<>();
+    private LocalHost localHost;
+    private List<RemoteHost> remoteHosts = new ArrayList<>();
+    private String lastPlacementLog;
+    private boolean compactWire; // Compact minigames messages, see MinigamesMessage
+    private final AtomicLong malformedMessages = new AtomicLong();
+    private final Transfers transfers = new Transfers();
+    private TimerWheel.Timer<Task> transferTimer; // Next verification, if any
+    // Expiry of unstarted lobbies, see config/daemon.yml.  0 disables.
+    private long lobbyTtl = 60L * 60L * 1000L;
+    private long ownerIdleTtl = 10L * 60L * 1000L;
+    private long inviteTtl = 10L * 60L * 1000L;
+    private static final long ONLINE_SNAPSHOT_AGE = 1000L;
+    private final Map<UUID, TimerWheel.Timer<Task>> expiryTimers = new HashMap<>();
+    private Set<UUID> onlineSnapshot;
+    private long onlineSnapshotTime;
+    boolean dirtyServers, dirtyUsers, dirtyGames, dirtyTimings, dirtyDemand, dirtyPlacement;
 
     // Upstart
 
     public static void main(String[] args) throws Exception {
         instance = new Daemon();
+        for (String arg: args) {
+            switch (arg) {
+            case "--standby": instance.standby(); break;
+            default:
+                System.err.println("Unknown argument: " + arg);
+                System.exit(1);
+            }
+        }
         instance.main();
         System.exit(0);
     }
 
     private void main() {
-        // Setup and load state
-        for (int i = 0; i < 5; i += 1) {
-            servers.add(new Server(i));
+        if (lock == null) lock = Replication.tryLock(file(LOCK_PATH));
+        if (lock == null) {
+            System.err.println("Another daemon holds " + LOCK_PATH);
+            System.exit(1);
         }
-        loadServers();
-        loadUsers();
-        loadGames();
-        loadOpenGames();
+        setup();
+        startReplication();
         //
-        this.connect = new Connect("daemon", this);
+        this.connect = new Connect(cluster != null ? cluster.self : "daemon", this);
+        this.network = new ConnectNetwork(connect);
         new Thread(this.connect).start();
+        this.hostMetrics = new HostMetrics(file("run"));
+        localHost.setMetrics(hostMetrics);
+        Thread metricsThread = new Thread(hostMetrics, "HostMetrics");
+        metricsThread.setDaemon(true);
+        metricsThread.start();
         List<Runnable> currentTasks = new ArrayList<>();
         //
         new Thread(() -> {
@@ -93,20 +186,20 @@ public final class Daemon implements ConnectHandler {
                 if (cmd.isEmpty()) continue;
                 final String[] args = Arrays.copyOfRange(toks, 1, toks.length);
                 final Semaphore sem = new Semaphore(0);
-                tasks.add(() -> {
+                tasks.add(new Task("console:" + cmd, () -> {
                         try {
                             syncConsoleCommand(cmd, args);
                         } finally {
                             sem.release();
                         }
-                    });
+                    }).about(cmd, args));
                 try {
                     sem.acquire();
                 } catch (InterruptedException ie) {
                     ie.printStackTrace();
                 }
             }
-            shouldStop = true;
+            stop();
             System.out.println("Reader thread terminating");
         }).start();
         new Thread(() -> {
@@ -122,117 +215,550 @@ public final class Daemon implements ConnectHandler {
                     }
                     System.out.println("Listening on port " + serverSocket.getLocalPort());
                     while (!shouldStop) {
-                        final PrintStream out;
+                        final Socket socket;
                         try {
-                            Socket socket = serverSocket.accept();
-                            out = new PrintStream(socket.getOutputStream());
+                            socket = serverSocket.accept();
                         } catch (SocketTimeoutException ste) {
                             continue;
                         } catch (IOException ioe) {
                             ioe.printStackTrace();
                             continue;
                         }
-                        tasks.add(() -> {
-                                try {
-                                    Map<String, List<String>> serverList = new HashMap<>();
-                                    for (Map.Entry<String, List<OnlinePlayer>> entry: connect.listPlayers().entrySet()) {
-                                        serverList.put(entry.getKey(), entry.getValue().stream().map(OnlinePlayer::getName).collect(Collectors.toList()));
-                                    }
-                                    out.println(JSONValue.toJSONString(serverList));
-                                } finally {
-                                    out.close();
-                                }
-                            });
+                        new Thread(() -> handleStatus(socket), "Status").start();
                     } // accept loop
                 } // server loop
         }).start();
+        // SIGTERM drains like the stop command.  Wait for the final
+        // save, not the main thread, which blocks in System.exit()
+        // once the loop returns while shutdown is under way.
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                if (finished.getCount() == 0) return;
+                stop();
+                try {
+                    finished.await(DRAIN_TIMEOUT + 5000L, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ie) {
+                    ie.printStackTrace();
+                }
+            }, "DaemonShutdown"));
         // Sync Tasks
+        loop();
+    }
+
+    /**
+     * Answer one connection to the status port.  A client which
+     * sends nothing gets the players on each server.  One which
+     * sends the line "timings [filter]" gets the timings report and
+     * the timelines of open games, as the timings command prints
+     * them.
+     */
+    void handleStatus(Socket socket) {
+        final PrintStream out;
+        String request = null;
+        try {
+            socket.setSoTimeout((int)STATUS_REQUEST_TIMEOUT);
+            try {
+                request = LineBuffer.readLine(new PushbackReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)));
+            } catch (SocketTimeoutException ste) {
+                // Asked for nothing in particular.
+            }
+            out = new PrintStream(socket.getOutputStream());
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            try {
+                socket.close();
+            } catch (IOException ioe2) {
+                ioe2.printStackTrace();
+            }
+            return;
+        }
+        String[] toks = request == null ? new String[0] : request.trim().split(" ");
+        final Task task;
+        if (toks.length > 0 && toks[0].equals("timings")) {
+            final String filter = toks.length > 1 ? toks[1] : null;
+            task = new Task("status:timings", () -> {
+                    try {
+                        out.println(JSONValue.toJSONString(timingsStatus(filter)));
+                    } finally {
+                        out.close();
+                    }
+                });
+        } else {
+            task = new Task("status", () -> {
+                    try {
+                        Map<String, List<String>> serverList = new HashMap<>();
+                        for (Map.Entry<String, List<OnlinePlayer>> entry: network.listPlayers().entrySet()) {
+                            serverList.put(entry.getKey(), entry.getValue().stream().map(OnlinePlayer::getName).collect(Collectors.toList()));
+                        }
+                        out.println(JSONValue.toJSONString(serverList));
+                    } finally {
+                        out.close();
+                    }
+                });
+        }
+        if (!offer(task, TaskQueue.Lane.DEFAULT, "status", false, null)) out.close();
+    }
+
+    /**
+     * @return The histograms by key and interval, and the timelines
+     *   of open games, for the status port
+     */
+    Map<String, Object> timingsStatus(String filter) {
+        Map<String, Object> result = new HashMap<>();
+        result.put("timings", timings.summarize(filter));
+        List<Object> open = new ArrayList<>();
+        for (Game game: openGames.values()) {
+            if (game.timeline == null) continue;
+            if (filter != null && !game.name.contains(filter)) continue;
+            Map<String, Object> map = new HashMap<>();
+            map.put("name", game.name);
+            map.put("id", game.uniqueId.toString());
+            map.put("timeline", game.timeline);
+            open.add(map);
+        }
+        result.put("open", open);
+        return result;
+    }
+
+    /**
+     * Follow the primary named in config/daemon.yml until it is gone
+     * and its lock is free, then write the save files it replicated,
+     * so that main() picks up where it left off.
+     */
+    private void standby() {
+        Replication primary = Replication.fromConfig(readDaemonConfig());
+        if (primary == null) {
+            System.err.println("A standby needs replication_port in config/daemon.yml");
+            System.exit(1);
+        }
+        Map<String, Replication.SaveFile> files = new HashMap<>();
+        lock = primary.follow(file(LOCK_PATH), files);
+        if (lock == null) System.exit(1);
+        for (Map.Entry<String, Replication.SaveFile> entry: files.entrySet()) {
+            File file = file(entry.getKey());
+            // The queue to the standby may lag behind the disk.  In a
+            // shared base dir, what the primary last wrote is newer.
+            if (file.isFile() && file.lastModified() >= entry.getValue().modified) continue;
+            File tmp = file(entry.getKey() + ".tmp");
+            try {
+                file.getParentFile().mkdirs();
+                Files.write(tmp.toPath(), entry.getValue().data.getBytes(StandardCharsets.UTF_8));
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Serve standbys if replication_port is set.  Startup only.
+     */
+    void startReplication() {
+        replication = Replication.fromConfig(readDaemonConfig());
+        if (replication == null) return;
+        try {
+            replication.startPrimary(r -> tasks.add(new Task("replication:sync", r), TaskQueue.Lane.LIFECYCLE),
+                                     baseDir != null ? baseDir : new File("."));
+        } catch (IOException ioe) {
+            System.err.println("Replication disabled: " + ioe.getMessage());
+            replication = null;
+        }
+    }
+
+    void loop() {
+        watchdog.start();
         while (!shouldStop) {
             try {
                 mainLoop();
             } catch (Throwable e) {
                 e.printStackTrace();
             }
+            if (draining && isDrained()) break;
+        }
+        saveDirty();
+        // A standby takes over once this process is gone.
+        if (replication != null) replication.stop();
+        for (RemoteHost host: remoteHosts) host.stop();
+        watchdog.stop();
+        finished.countDown();
+    }
+
+    /**
+     * Stop gracefully, from any thread.
+     */
+    void stop() {
+        tasks.add(new Task("stop", this::beginDrain), TaskQueue.Lane.LIFECYCLE);
+    }
+
+    /**
+     * Stop starting servers and let the task queue and the setup
+     * threads run dry.  Whatever is still booting at the deadline is
+     * saved as such and resumed by the next run, see resumeServers().
+     * Running game servers are left alone either way.
+     */
+    void beginDrain() {
+        if (draining) return;
+        draining = true;
+        drainDeadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+        System.out.println("Draining: " + tasks.size() + " tasks queued, " + provisioning + " servers provisioning");
+    }
+
+    boolean isDrained() {
+        if (System.currentTimeMillis() >= drainDeadline) {
+            if (provisioning > 0) System.out.println("Leaving " + provisioning + " servers provisioning to the next run");
+            return true;
+        }
+        return provisioning == 0 && tasks.isEmpty();
+    }
+
+    void submit(Task task) {
+        tasks.add(task);
+    }
+
+    void submit(Task task, TaskQueue.Lane lane) {
+        tasks.add(task, lane);
+    }
+
+    // Setup and load state
+    void setup() {
+        Map<String, Object> config = readDaemonConfig();
+        localHost = new LocalHost(baseDir, serverCount);
+        localHost.setExitListener(this::onGameServerExit);
+        watchdog = new Watchdog(file("run"));
+        cluster = Cluster.fromConfig(config);
+        if (cluster != null) firstSlot = cluster.firstSlot;
+        for (int i = 0; i < serverCount; i += 1) {
+            Server server = new Server(firstSlot + i);
+            server.host = localHost;
+            server.slot = i;
+            servers.add(server);
+        }
+        setupRemoteHosts(config);
+        loadServers();
+        loadUsers();
+        loadGames();
+        loadOpenGames();
+        loadTimings();
+        loadDemand();
+        loadPlacement();
+        loadDaemonConfig();
+        tasks.add(new Task("resume", this::resumeServers), TaskQueue.Lane.LIFECYCLE);
+        schedulePeriodicTasks();
+    }
+
+    /**
+     * Pick up the servers which were still booting when the last run
+     * stopped.  A server process which was launched already is
+     * adopted if it comes up; anything else is set up again.  Slots
+     * lost along with their host are asked to stop once more.
+     */
+    void resumeServers() {
+        for (Server server: servers) {
+            if (server.state == Server.State.SHUTDOWN) server.host.stop(server.index);
+            if (server.state != Server.State.BOOT) continue;
+            Game game = server.currentGame == null ? null : openGames.get(server.currentGame);
+            WorldInfo worldInfo = game == null || game.mapId == null ? null : findWorldInfo(game.name, game.mapId);
+            if (worldInfo == null) {
+                if (game != null) {
+                    markGame(game, GameTimings.END);
+                    removeGame(game);
+                }
+                releaseServer(server);
+                continue;
+            }
+            System.out.println("Resuming game" + server.index + " for " + game.name + " " + game.uniqueId);
+            launchServer(game, server, false, worldInfo.mapPath, true);
         }
     }
 
+    List<RemoteHost> getRemoteHosts() {
+        return remoteHosts;
+    }
+
+    Replication getReplication() {
+        return replication;
+    }
+
+    void setNetwork(Network network) {
+        this.network = network;
+    }
+
+    void setServerCount(int serverCount) {
+        this.serverCount = serverCount;
+    }
+
+    void setBaseDir(File baseDir) {
+        this.baseDir = baseDir;
+    }
+
+    File file(String path) {
+        return new File(baseDir, path);
+    }
+
     void mainLoop() {
+        scheduleSave();
+        reconcile();
+        pollTask();
+    }
+
+    /**
+     * Coalesce the saves of a burst of tasks into one, SAVE_DELAY
+     * after the first change.
+     */
+    void scheduleSave() {
+        if (saveTimer != null) return;
+        if (!(dirtyServers || dirtyUsers || dirtyGames || dirtyTimings || dirtyDemand || dirtyPlacement)) return;
+        saveTimer = timers.schedule(System.currentTimeMillis(), SAVE_DELAY, new Task("save", () -> {
+                    saveTimer = null;
+                    saveDirty();
+                }));
+    }
+
+    /**
+     * Run a task on the main thread after the delay.  Main thread
+     * only.
+     */
+    TimerWheel.Timer<Task> schedule(long delay, Task task) {
+        return timers.schedule(System.currentTimeMillis(), delay, task);
+    }
+
+    /**
+     * Run a task on the main thread every period, starting after the
+     * delay.  Main thread only.
+     */
+    TimerWheel.Timer<Task> scheduleRepeating(long delay, long period, Task task) {
+        return timers.scheduleRepeating(System.currentTimeMillis(), delay, period, task);
+    }
+
+    void schedulePeriodicTasks() {
+        scheduleRepeating(0L, LIVENESS_INTERVAL, new Task("liveness", this::checkServerLiveness));
+        scheduleRepeating(AUDIT_INTERVAL, AUDIT_INTERVAL, new Task("audit", this::audit));
+        scheduleRepeating(OUTBOX_INTERVAL, OUTBOX_INTERVAL, new Task("outbox", this::checkOutboxes));
+        scheduleRepeating(0L, MATCHMAKING_INTERVAL, new Task("matchmaking", () -> {
+                    if (!autoStartGames.isEmpty()) checkAutoStart(System.currentTimeMillis());
+                    if (!startQueue.isEmpty()) drainStartQueue();
+                }));
+        scheduleRepeating(0L, PRESTAGE_INTERVAL, new Task("prestage", () -> {
+                    if (prestageBudget > 0 && !draining) prestage(System.currentTimeMillis());
+                }));
+        if (cluster != null) scheduleRepeating(0L, Cluster.ANNOUNCE_INTERVAL, new Task("announce", this::announce));
+    }
+
+    /**
+     * With a standby, save a server slot which was just claimed right
+     * away, before its setup starts, rather than up to SAVE_DELAY
+     * later, so that a takeover never hands the slot out again.
+     */
+    void flushSlots() {
+        if (replication == null) return;
+        saveServers();
+        saveOpenGames();
+        dirtyServers = false;
+        dirtyGames = false;
+    }
+
+    void saveDirty() {
         if (dirtyServers) saveServers();
         if (dirtyUsers) saveUsers();
         if (dirtyGames) saveOpenGames();
+        if (dirtyTimings) saveTimings();
+        if (dirtyDemand) saveDemand();
+        if (dirtyPlacement) savePlacement();
         dirtyServers = false;
         dirtyUsers = false;
         dirtyGames = false;
+        dirtyTimings = false;
+        dirtyDemand = false;
+        dirtyPlacement = false;
+    }
+
+    /**
+     * Periodic bookkeeping between tasks, which is whatever timers
+     * are due.  Membership is kept consistent where it changes, see
+     * removeMember() and removeGame(), so a pass where nothing is
+     * due only looks at the current tick of the timer wheel.
+     */
+    void reconcile() {
+        timers.advance(System.currentTimeMillis(), this::runTask);
+    }
+
+    void audit() {
+        admission.sweep(System.currentTimeMillis());
+        auditGames();
+        dirtyPlacement = true;
+    }
+
+    void checkServerLiveness() {
+        updateProfiles();
         for (Server server: servers) {
             if (server.state == Server.State.RUN) {
+                if (!gameSessionExists(server.index)) serverDied(server);
+            } else if (server.state == Server.State.SHUTDOWN) {
                 if (!gameSessionExists(server.index)) {
-                    if (server.currentGame != null) {
-                        Game game = openGames.get(server.currentGame);
-                        if (game != null) {
-                            openGames.remove(game.uniqueId);
-                            dirtyGames = true;
-                            for (UUID member: game.members) {
-                                User user = users.get(member);
-                                if (user != null && game.uniqueId.equals(user.currentGame)) {
-                                    users.remove(member);
-                                }
-                            }
-                            dirtyUsers = true;
-                        }
-                    }
-                    server.reset();
-                    dirtyServers = true;
+                    System.out.println("game" + server.index + " is down, freeing the slot");
+                    releaseServer(server);
                 }
             }
         }
+    }
+
+    /**
+     * Called by a GameHost, from any thread.
+     */
+    void onGameServerExit(final int index, final long pid, final int exitCode) {
+        tasks.add(new Task("exit:game" + index, () -> syncGameServerExited(index, pid, exitCode)).about("game" + index, null),
+                  TaskQueue.Lane.LIFECYCLE);
+    }
+
+    void syncGameServerExited(int index, long pid, int exitCode) {
+        Server server = getServer(index);
+        if (server == null) return;
+        // Booting servers are up to the setup thread.  A stale exit
+        // of an earlier process must not end the current game.
+        if (server.state != Server.State.RUN || server.pid != pid) return;
+        System.out.println("game" + index + " exited with " + exitCode);
+        serverDied(server);
+    }
+
+    void serverDied(Server server) {
+        if (server.currentGame != null) {
+            Game game = openGames.get(server.currentGame);
+            if (game != null) {
+                markGame(game, GameTimings.END);
+                removeGame(game);
+            }
+        }
+        releaseServer(server);
+    }
+
+    /**
+     * Safety net for any mutation which bypassed removeMember() or
+     * removeGame().  Drop members whose user is not in the game,
+     * and games without members.
+     * @return The number of repairs
+     */
+    int auditGames() {
+        int repairs = 0;
         for (Game game: new ArrayList<>(openGames.values())) {
             for (UUID member: new ArrayList<>(game.members)) {
-                User user = getUser(member);
-                if (!game.uniqueId.equals(user.currentGame)) {
+                User user = users.get(member);
+                if (user == null || !game.uniqueId.equals(user.currentGame)) {
                     game.members.remove(member);
                     game.spectators.remove(member);
                     dirtyGames = true;
+                    repairs += 1;
                 }
             }
             if (game.members.isEmpty()) {
-                openGames.remove(game.uniqueId);
-                dirtyGames = true;
+                removeGame(game);
+                repairs += 1;
             }
         }
-        Runnable task;
+        if (repairs > 0) System.out.println("Game audit made " + repairs + " repairs");
+        return repairs;
+    }
+
+    void pollTask() {
+        Task task;
         try {
-            task = tasks.poll(1, TimeUnit.SECONDS);
+            task = tasks.poll(timers.millisUntilNext(System.currentTimeMillis(), 1000L), TimeUnit.MILLISECONDS);
         } catch (InterruptedException ie) {
             return;
         } catch (Throwable t) {
             t.printStackTrace();
             return;
         }
-        if (task != null) task.run();
+        if (task != null) runTask(task);
+    }
+
+    /**
+     * A unit of work for the main thread.  The origin names the
+     * source of the task for diagnostics, e.g. "console:info" or
+     * "minigames:game0".
+     */
+    @RequiredArgsConstructor
+    static final class Task {
+        private final String origin;
+        private final Runnable runnable;
+        // Set by offer(), see Admission
+        private String source, coalesceKey;
+        // What it is about and what came with it, for Events.Task
+        private String target;
+        private Object payload;
+
+        Task about(String target, Object payload) {
+            this.target = target;
+            this.payload = payload;
+            return this;
+        }
+    }
+
+    /**
+     * Queue a task from outside, subject to admission control.
+     * @param player Whether the source is a player
+     * @param coalesceKey Names an idempotent request, or null
+     * @return true if the task was queued
+     */
+    boolean offer(Task task, TaskQueue.Lane lane, String source, boolean player, String coalesceKey) {
+        if (admission.admit(source, player, coalesceKey) != Admission.Verdict.ADMIT) return false;
+        task.source = source;
+        task.coalesceKey = coalesceKey;
+        tasks.add(task, lane);
+        return true;
+    }
+
+    void runTask(Task task) {
+        // A refresh arriving from now on is no longer redundant.
+        if (task.source != null) admission.done(task.source, task.coalesceKey);
+        Events.Task event = new Events.Task();
+        event.begin();
+        watchdog.begin(task.origin);
+        try {
+            task.runnable.run();
+        } finally {
+            watchdog.end();
+            event.end();
+            if (event.shouldCommit()) {
+                event.origin = task.origin;
+                event.target = task.target;
+                if (task.payload != null) event.payloadSize = JsonWriter.length(task.payload);
+                event.queueSize = tasks.size();
+                event.commit();
+            }
+        }
     }
 
     // Connect Overrides
 
     @Override // ASYNC
     public void handleRemoteConnect(String remote) {
-        tasks.add(() -> syncHandleRemoteConnect(remote));
+        offer(new Task("connect:" + remote, () -> syncHandleRemoteConnect(remote)).about(remote, null),
+              TaskQueue.Lane.LIFECYCLE, remote, false, "connect:" + remote);
     }
 
     void syncHandleRemoteConnect(String remote) {
-        Server server = null;
-        for (Server serveri: servers) {
-            if (remote.equals("game" + serveri.index)) {
-                server = serveri;
-                break;
-            }
-        }
-        if (server != null && server.postBootMessages != null) {
-            for (Object message: server.postBootMessages) {
-                connect.send("game" + server.index, "minigames", message);
-            }
-            server.postBootMessages = null;
-            dirtyServers = true;
+        Server server = findServer(remote);
+        // Everything not acknowledged yet, in one pass.
+        if (server != null && !server.outbox.isEmpty()) flushOutbox(server, true);
+    }
+
+    /**
+     * @param index A server index, which is the list position plus
+     *   firstSlot
+     * @return The server, or null if it is not one of ours
+     */
+    Server getServer(int index) {
+        int i = index - firstSlot;
+        return i >= 0 && i < servers.size() ? servers.get(i) : null;
+    }
+
+    /**
+     * @param remote The Connect name, e.g. game3
+     */
+    Server findServer(String remote) {
+        for (Server server: servers) {
+            if (remote.equals("game" + server.index)) return server;
         }
+        return null;
     }
 
     @Override // ASYNC
@@ -243,7 +769,96 @@ public final class Daemon implements ConnectHandler {
         // String pl = message.getPayload() == null ? "N/A" : message.getPayload().toString();
         // System.out.format("MSG ch=%s fr=%s to=%s pl=%s\n", message.getChannel(), message.getFrom(), message.getTo(), pl);
         if (message.getChannel().equals("minigames")) {
-            tasks.add(() -> syncMinigamesMessage(message));
+            final String from = message.getFrom();
+            final MinigamesMessage minigamesMessage;
+            try {
+                minigamesMessage = MinigamesMessage.decode(message.getPayload());
+            } catch (IllegalArgumentException iae) {
+                malformedMessages.incrementAndGet();
+                System.err.println("Dropping minigames message from " + from + ": " + iae.getMessage());
+                return;
+            }
+            // Game ends and leaves free up slots and lobby places, so
+            // they go ahead of everything else.  All messages of a
+            // server share the lane, which keeps them in the order
+            // they were sent, e.g. a join before the leave.
+            Task task = new Task("minigames:" + from, () -> syncMinigamesMessage(from, minigamesMessage))
+                .about(from, message.getPayload());
+            if (mayShed(minigamesMessage)) {
+                offer(task, TaskQueue.Lane.LIFECYCLE, from, false, null);
+            } else {
+                tasks.add(task, TaskQueue.Lane.LIFECYCLE);
+            }
+        } else if (message.getChannel().equals(Cluster.CHANNEL) && cluster != null) {
+            final String from = message.getFrom();
+            if (!cluster.members.contains(from) || !(message.getPayload() instanceof Map)) return;
+            @SuppressWarnings("unchecked")
+            final Map<String, Object> payload = (Map<String, Object>)message.getPayload();
+            if ("command".equals(payload.get("kind"))) {
+                // Admitted per player, as if the player had sent it here.
+                offer(new Task("cluster:" + from, () -> syncClusterMessage(from, payload)).about(from, payload), TaskQueue.Lane.UI,
+                      String.valueOf(payload.get("player")), true, null);
+            } else {
+                offer(new Task("cluster:" + from, () -> syncClusterMessage(from, payload)).about(from, payload),
+                      TaskQueue.Lane.DEFAULT, from, false, null);
+            }
+        }
+    }
+
+    /**
+     * The game server has already acted on most messages, so losing
+     * one leaves games or players stuck.  Only those are subject to
+     * admission which can be lost: acks are resent, and joins are
+     * ignored.
+     */
+    static boolean mayShed(MinigamesMessage message) {
+        switch (message.action) {
+        case ACK: case PLAYER_JOIN_GAME: case PLAYER_SPECTATE_GAME: return true;
+        default: return false;
+        }
+    }
+
+    /**
+     * Queue a message for the server, and send it right away unless
+     * the server is still booting.
+     * @param player The player to tell if the message never arrives,
+     *   or null
+     * @return Whether there was room in the outbox
+     */
+    boolean deliver(Server server, MinigamesMessage message, UUID player) {
+        if (server.outbox.add(message, player) == null) {
+            System.err.println("Outbox of game" + server.index + " is full, dropping " + message);
+            return false;
+        }
+        dirtyServers = true;
+        if (server.state != Server.State.BOOT) flushOutbox(server, false);
+        return true;
+    }
+
+    void flushOutbox(Server server, boolean all) {
+        long now = System.currentTimeMillis();
+        for (Outbox.Entry entry: server.outbox.due(now, all)) {
+            send("game" + server.index, "minigames", entry.message.encode(compactWire));
+            server.outbox.sent(entry, now);
+        }
+        dirtyServers = true;
+    }
+
+    /**
+     * Resend what timed out, and give up on what ran out of attempts.
+     */
+    void checkOutboxes() {
+        long now = System.currentTimeMillis();
+        for (Server server: servers) {
+            if (server.outbox.isEmpty() || server.state == Server.State.BOOT) continue;
+            for (Outbox.Entry entry: server.outbox.expire(now)) {
+                System.err.println("game" + server.index + " never acknowledged " + entry.message);
+                if (entry.player != null) {
+                    sendMessage(entry.player, ChatColor.RED, "The game server did not respond. Please try again.");
+                }
+                dirtyServers = true;
+            }
+            if (!server.outbox.isEmpty()) flushOutbox(server, false);
         }
     }
 
@@ -251,6 +866,15 @@ public final class Daemon implements ConnectHandler {
     public void handleRemoteCommand(OnlinePlayer sender, String server, String[] args) {
         if (args.length == 0) return;
         switch (args[0].toLowerCase()) {
+        case "game":
+            final String[] gameArgs = Arrays.copyOfRange(args, 1, args.length);
+            // Menus and game info only show the current state.
+            String coalesceKey = gameArgs.length == 0 || gameArgs[0].equals("info")
+                ? sender.getUuid() + " " + String.join(" ", gameArgs)
+                : null;
+            offer(new Task("command:" + sender.getName(), () -> syncGameCommand(sender, gameArgs)).about(server, gameArgs), TaskQueue.Lane.UI,
+                  sender.getUuid().toString(), true, coalesceKey);
+            break;
         default: break;
         }
     }
@@ -269,89 +893,109 @@ public final class Daemon implements ConnectHandler {
             if (map.containsKey("current_game")) currentGame = UUID.fromString((String)map.get("current_game"));
         }
 
-        void store(Map<String, Object> map) {
-            map.put("uuid", uuid.toString());
-            map.put("name", name);
-            if (currentGame != null) map.put("current_game", currentGame.toString());
+        void store(JsonSink out) {
+            out.put("uuid", uuid.toString());
+            out.put("name", name);
+            if (currentGame != null) out.put("current_game", currentGame.toString());
         }
     }
 
     @SuppressWarnings("unchecked")
     void loadUsers() {
         users.clear();
-        File file = new File("save/users.save");
+        userCache.clear();
+        File file = file("save/users.save");
         if (!file.isFile()) return;
-        List<Map<String, Object>> list;
-        try {
-            list = (List<Map<String, Object>>)JSONValue.parseWithException(new FileReader(file));
-        } catch (IOException ioe) {
-            ioe.printStackTrace();
-            return;
-        } catch (ParseException pe) {
-            pe.printStackTrace();
-            return;
-        }
-        if (list == null) return;
-        for (Map<String, Object> map: list) {
-            UUID uuid = UUID.fromString((String)map.get("uuid"));
-            User user = users.get(uuid);
-            if (user == null) {
-                user = new User(uuid);
-                users.put(uuid, user);
-            }
-            user.load(map);
+        int[] dropped = {0};
+        readSaveFile(file, obj -> {
+                Map<String, Object> map = (Map<String, Object>)obj;
+                // Older saves kept everyone who ever opened the menu.
+                if (!map.containsKey("current_game")) {
+                    dropped[0] += 1;
+                    return;
+                }
+                UUID uuid = UUID.fromString((String)map.get("uuid"));
+                User user = users.get(uuid);
+                if (user == null) {
+                    user = new User(uuid);
+                    users.put(uuid, user);
+                }
+                user.load(map);
+            });
+        if (dropped[0] > 0) {
+            System.out.println("Dropped " + dropped[0] + " saved users without a game");
+            dirtyUsers = true;
         }
     }
 
     void saveUsers() {
-        List<Object> js = new ArrayList<>();
-        for (User user: users.values()) {
-            Map<String, Object> map = new HashMap<>();
-            user.store(map);
-            js.add(map);
-        }
-        File file = new File("save/users.save");
-        try {
-            FileWriter writer = new FileWriter(file);
-            JSONValue.writeJSONString(js, writer);
-            writer.flush();
-            writer.close();
-        } catch (IOException ioe) {
-            ioe.printStackTrace();
-        }
+        writeSaveFile("save/users.save", JsonWriter.records(users.values(), User::store));
     }
 
     User getUser(OnlinePlayer player) {
-        User user = users.get(player.getUuid());
-        if (user == null) {
-            final UUID uuid = player.getUuid();
-            user = new User(uuid);
-            user.name = player.getName();
-            users.put(uuid, user);
-        }
+        User user = getUser(player.getUuid());
+        if (user.name == null) user.name = player.getName();
         return user;
     }
 
+    /**
+     * Look up the user in a game, or else a transient one from the
+     * cache.  A transient user is only kept, and saved, once it
+     * enters a game, see enterGame().
+     */
     User getUser(UUID uuid) {
         User user = users.get(uuid);
-        if (user == null) {
-            user = new User(uuid);
-            users.put(uuid, user);
+        if (user != null) return user;
+        user = userCache.get(uuid);
+        if (user != null) {
+            userCacheHits += 1;
+            return user;
         }
+        userCacheMisses += 1;
+        user = new User(uuid);
+        userCache.put(uuid, user);
         return user;
     }
 
+    /**
+     * Put the user in a game and keep it for good, which is until
+     * it is removed from the game again.  A player in a game waits
+     * in no matchmaking queue.
+     */
+    void enterGame(User user, UUID gameId) {
+        leaveMatchQueue(user.uuid);
+        user.currentGame = gameId;
+        userCache.remove(user.uuid);
+        users.put(user.uuid, user);
+        dirtyUsers = true;
+    }
+
+    List<String> reportUsers() {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("in_game=%d cached=%d/%d hits=%d misses=%d save=%d bytes",
+                                users.size(), userCache.size(), USER_CACHE_SIZE, userCacheHits, userCacheMisses,
+                                file("save/users.save").length()));
+        return lines;
+    }
+
     // Servers
 
     @RequiredArgsConstructor
     static final class Server {
         enum State {
-            OFF, BOOT, RUN, SHUTDOWN;
+            OFF, STAGE, STAGED, BOOT, RUN, SHUTDOWN;
         }
         private final int index;
         private UUID currentGame;
         private State state = State.OFF;
-        private List<Object> postBootMessages;
+        private final Outbox outbox = new Outbox(); // Minigames messages to the server
+        // Set while the server is, or has been, set up ahead of demand
+        private String stagedGame, stagedMap;
+        private long stagedMillis; // Duration of the staged setup
+        // Where the server runs, and its slot number there
+        private GameHost host;
+        private int slot;
+        private long pid = -1; // Of the running server process, if known
 
         @SuppressWarnings("unchecked")
         void load(Map<String, Object> map) {
@@ -364,61 +1008,84 @@ public final class Daemon implements ConnectHandler {
                 }
             }
             if (state == null) state = State.OFF;
-            if (map.containsKey("post_boot_messages")) postBootMessages = (List<Object>)map.get("post_boot_messages");
+            if (map.containsKey("outbox")) outbox.load((Map<String, Object>)map.get("outbox"));
+            // Saved before the outbox
+            if (map.containsKey("post_boot_messages")) {
+                for (Object payload: (List<Object>)map.get("post_boot_messages")) {
+                    try {
+                        MinigamesMessage message = MinigamesMessage.decode(payload);
+                        outbox.add(message, message.player);
+                    } catch (IllegalArgumentException iae) {
+                        System.err.println("Dropping saved post boot message: " + iae.getMessage());
+                    }
+                }
+            }
+            if (map.containsKey("staged_game")) stagedGame = (String)map.get("staged_game");
+            if (map.containsKey("staged_map")) stagedMap = (String)map.get("staged_map");
+            if (map.containsKey("staged_millis")) stagedMillis = ((Number)map.get("staged_millis")).longValue();
+            if (map.containsKey("pid")) pid = ((Number)map.get("pid")).longValue();
+            // An interrupted setup leaves nothing usable behind.
+            if (state == State.STAGE) reset();
         }
 
-        void store(Map<String, Object> map) {
-            map.put("index", index);
-            if (currentGame != null) map.put("current_game", currentGame.toString());
-            if (state != null) map.put("state", state.name());
-            if (postBootMessages != null) map.put("post_boot_messages", postBootMessages);
+        void store(JsonSink out) {
+            out.put("index", index);
+            if (currentGame != null) out.put("current_game", currentGame.toString());
+            if (state != null) out.put("state", state.name());
+            Map<String, Object> outboxMap = new HashMap<>();
+            outbox.store(outboxMap);
+            out.put("outbox", outboxMap);
+            if (host != null) out.put("host", host.getName());
+            if (pid >= 0) out.put("pid", pid);
+            if (stagedGame != null) {
+                out.put("staged_game", stagedGame);
+                out.put("staged_map", stagedMap);
+                out.put("staged_millis", stagedMillis);
+            }
         }
 
         void reset() {
             currentGame = null;
             state = State.OFF;
-            postBootMessages = null;
+            outbox.clear();
+            stagedGame = null;
+            stagedMap = null;
+            stagedMillis = 0;
+            pid = -1;
+        }
+
+        boolean isFree() {
+            return currentGame == null && state != State.STAGE && state != State.SHUTDOWN
+                && host.isAvailable() && slot < host.getCapacity();
+        }
+
+        boolean isStagedFor(String gameName, String mapId) {
+            return state == State.STAGED && gameName.equals(stagedGame)
+                && (mapId == null || mapId.equals(stagedMap));
+        }
+    }
+
+    int countServers(Server.State state) {
+        int result = 0;
+        for (Server server: servers) {
+            if (server.state == state) result += 1;
         }
+        return result;
     }
 
     @SuppressWarnings("unchecked")
     void loadServers() {
-        File file = new File("save/servers.save");
+        File file = file("save/servers.save");
         if (!file.isFile()) return;
-        List<Map<String, Object>> list;
-        try {
-            list = (List<Map<String, Object>>)JSONValue.parseWithException(new FileReader(file));
-        } catch (IOException ioe) {
-            ioe.printStackTrace();
-            return;
-        } catch (ParseException pe) {
-            pe.printStackTrace();
-            return;
-        }
-        if (list == null) return;
-        for (int i = 0; i < list.size() && i < servers.size(); i += 1) {
-            Map<String, Object> map = list.get(i);
-            Server server = servers.get(i);
-            server.load(map);
-        }
+        int[] index = {0};
+        readSaveFile(file, obj -> {
+                int i = index[0]++;
+                if (i < servers.size()) servers.get(i).load((Map<String, Object>)obj);
+            });
     }
 
     void saveServers() {
-        List<Object> js = new ArrayList<>();
-        for (Server server: servers) {
-            Map<String, Object> map = new HashMap<>();
-            server.store(map);
-            js.add(map);
-        }
-        File file = new File("save/servers.save");
-        try {
-            FileWriter writer = new FileWriter(file);
-            JSONValue.writeJSONString(js, writer);
-            writer.flush();
-            writer.close();
-        } catch (IOException ioe) {
-            ioe.printStackTrace();
-        }
+        writeSaveFile("save/servers.save", JsonWriter.records(servers, Server::store));
     }
 
     // Games
@@ -428,6 +1095,8 @@ public final class Daemon implements ConnectHandler {
         private int priority;
         private String setupScript;
         private int minPlayers = 1;
+        private int maxPlayers = 0; // 0 means no limit
+        private int matchTimeout = 30; // Seconds a matched lobby waits for more players
         private boolean connect = false; // Connect and daemon awareness
         // For created games only
         private UUID uniqueId;
@@ -439,9 +1108,16 @@ public final class Daemon implements ConnectHandler {
         private List<UUID> members;
         private List<UUID> spectators;
         private List<UUID> invitees;
+        private Map<UUID, Long> inviteTimes; // invitee -> epoch millis
         private UUID owner;
+        private long ownerAway; // When the owner was first seen offline, or 0; not saved
         private boolean publicGame;
         private String playMode;
+        private Map<String, Long> timeline; // phase -> epoch millis, see GameTimings
+        // Matchmade lobbies only
+        private boolean autoStart;
+        private long autoStartTime;
+        private long startQueued; // When the game entered the start queue, or 0
 
         Game() { }
 
@@ -453,6 +1129,8 @@ public final class Daemon implements ConnectHandler {
             this.priority = copy.priority;
             this.setupScript = copy.setupScript;
             this.minPlayers = copy.minPlayers;
+            this.maxPlayers = copy.maxPlayers;
+            this.matchTimeout = copy.matchTimeout;
             this.connect = copy.connect;
             this.uniqueId = copy.uniqueId;
             this.mapId = copy.mapId;
@@ -460,12 +1138,17 @@ public final class Daemon implements ConnectHandler {
             if (copy.members != null) this.members = new ArrayList<>(copy.members);
             if (copy.spectators != null) this.spectators = new ArrayList<>(copy.spectators);
             if (copy.invitees != null) this.invitees = new ArrayList<>(copy.invitees);
+            if (copy.inviteTimes != null) this.inviteTimes = new HashMap<>(copy.inviteTimes);
             this.owner = copy.owner;
             this.publicGame = copy.publicGame;
             this.playersMayJoin = copy.playersMayJoin;
             this.playersMaySpectate = copy.playersMaySpectate;
             this.serverId = copy.serverId;
             this.playMode = copy.playMode;
+            if (copy.timeline != null) this.timeline = new LinkedHashMap<>(copy.timeline);
+            this.autoStart = copy.autoStart;
+            this.autoStartTime = copy.autoStartTime;
+            this.startQueued = copy.startQueued;
         }
 
         @SuppressWarnings("unchecked")
@@ -480,6 +1163,8 @@ public final class Daemon implements ConnectHandler {
             if (map.containsKey("priority")) priority = ((Number)map.get("priority")).intValue();
             if (map.containsKey("setup_script")) setupScript = (String)map.get("setup_script");
             if (map.containsKey("min_players")) minPlayers = ((Number)map.get("min_players")).intValue();
+            if (map.containsKey("max_players")) maxPlayers = ((Number)map.get("max_players")).intValue();
+            if (map.containsKey("match_timeout")) matchTimeout = ((Number)map.get("match_timeout")).intValue();
             if (map.containsKey("connect")) connect = map.get("connect") == Boolean.TRUE;
             if (setupScript == null) setupScript = "base-game.setup";
             if (map.containsKey("unique_id")) uniqueId = UUID.fromString((String)map.get("unique_id"));
@@ -488,43 +1173,77 @@ public final class Daemon implements ConnectHandler {
             if (map.containsKey("members")) members = ((List<String>)map.get("members")).stream().map(UUID::fromString).collect(Collectors.toCollection(ArrayList::new));
             if (map.containsKey("spectators")) spectators = ((List<String>)map.get("spectators")).stream().map(UUID::fromString).collect(Collectors.toCollection(ArrayList::new));
             if (map.containsKey("invitees")) invitees = ((List<String>)map.get("invitees")).stream().map(UUID::fromString).collect(Collectors.toCollection(ArrayList::new));
+            if (map.containsKey("invite_times")) {
+                inviteTimes = new HashMap<>();
+                for (Map.Entry<String, Number> entry: ((Map<String, Number>)map.get("invite_times")).entrySet()) {
+                    inviteTimes.put(UUID.fromString(entry.getKey()), entry.getValue().longValue());
+                }
+            }
             if (map.containsKey("owner")) owner = UUID.fromString((String)map.get("owner"));
             if (map.containsKey("public")) publicGame = map.get("public") == Boolean.TRUE;
             if (map.containsKey("players_may_join")) playersMayJoin = map.get("players_may_join") != Boolean.FALSE;
             if (map.containsKey("players_may_spectate")) playersMaySpectate = map.get("players_may_spectate") != Boolean.FALSE;
             if (map.containsKey("server_id")) serverId = ((Number)map.get("server_id")).intValue();
             if (map.containsKey("play_mode")) playMode = (String)map.get("play_mode");
+            if (map.containsKey("auto_start")) autoStart = map.get("auto_start") == Boolean.TRUE;
+            if (map.containsKey("auto_start_time")) autoStartTime = ((Number)map.get("auto_start_time")).longValue();
+            if (map.containsKey("start_queued")) startQueued = ((Number)map.get("start_queued")).longValue();
+            if (map.containsKey("timeline")) {
+                timeline = new LinkedHashMap<>();
+                for (Map.Entry<String, Number> entry: ((Map<String, Number>)map.get("timeline")).entrySet()) {
+                    timeline.put(entry.getKey(), entry.getValue().longValue());
+                }
+            }
         }
 
         // Only used in Server serialization
-        void store(Map<String, Object> map) {
-            map.put("name", name);
-            map.put("display_name", displayName);
-            map.put("description", description);
-            map.put("shorthand", shorthand);
-            map.put("priority", priority);
-            map.put("setup_script", setupScript);
-            map.put("min_players", minPlayers);
-            if (connect) map.put("connect", connect);
-            if (uniqueId != null) map.put("unique_id", uniqueId.toString());
-            map.put("map_id", mapId);
-            map.put("debug", debug);
-            if (members != null) map.put("members", members.stream().map(Object::toString).collect(Collectors.toList()));
-            if (spectators != null) map.put("spectators", spectators.stream().map(Object::toString).collect(Collectors.toList()));
-            if (invitees != null) map.put("invitees", invitees.stream().map(Object::toString).collect(Collectors.toList()));
-            if (owner != null) map.put("owner", owner.toString());
-            if (publicGame) map.put("public", publicGame);
-            if (!playersMayJoin) map.put("players_may_join", playersMayJoin); // default is true
-            if (!playersMaySpectate) map.put("players_may_spectate", playersMaySpectate); // default is true
-            if (serverId >= 0) map.put("server_id", serverId);
-            if (playMode != null) map.put("play_mode", playMode);
+        void store(JsonSink out) {
+            out.put("name", name);
+            out.put("display_name", displayName);
+            out.put("description", description);
+            out.put("shorthand", shorthand);
+            out.put("priority", priority);
+            out.put("setup_script", setupScript);
+            out.put("min_players", minPlayers);
+            if (maxPlayers > 0) out.put("max_players", maxPlayers);
+            out.put("match_timeout", matchTimeout);
+            if (connect) out.put("connect", connect);
+            if (uniqueId != null) out.put("unique_id", uniqueId.toString());
+            out.put("map_id", mapId);
+            out.put("debug", debug);
+            if (members != null) out.putUuids("members", members);
+            if (spectators != null) out.putUuids("spectators", spectators);
+            if (invitees != null) out.putUuids("invitees", invitees);
+            if (inviteTimes != null && !inviteTimes.isEmpty()) out.put("invite_times", inviteTimes); // Keys as strings
+            if (owner != null) out.put("owner", owner.toString());
+            if (publicGame) out.put("public", publicGame);
+            if (!playersMayJoin) out.put("players_may_join", playersMayJoin); // default is true
+            if (!playersMaySpectate) out.put("players_may_spectate", playersMaySpectate); // default is true
+            if (serverId >= 0) out.put("server_id", serverId);
+            if (playMode != null) out.put("play_mode", playMode);
+            if (timeline != null) out.put("timeline", timeline);
+            if (startQueued > 0) out.put("start_queued", startQueued);
+            if (autoStart) {
+                out.put("auto_start", autoStart);
+                out.put("auto_start_time", autoStartTime);
+            }
+        }
+
+        // What other members of the cluster need to know, see Cluster
+        void storeListing(JsonSink out) {
+            out.put("unique_id", uniqueId.toString());
+            out.put("name", name);
+            out.put("display_name", displayName);
+            if (publicGame && serverId < 0) out.put("public", publicGame);
+            out.putUuids("members", members);
+            out.putUuids("invitees", invitees);
         }
     }
 
     @SuppressWarnings("unchecked")
     void loadGames() {
         games.clear();
-        for (File file: new File("games").listFiles()) {
+        for (File file: file("games").listFiles()) {
             String name = file.getName();
             if (!name.endsWith(".game")) continue;
             name = name.substring(0, name.length() - 5);
@@ -552,40 +1271,267 @@ public final class Daemon implements ConnectHandler {
     @SuppressWarnings("unchecked")
     void loadOpenGames() {
         openGames.clear();
-        File file = new File("save/games.save");
+        indexOpenGames();
+        File file = file("save/games.save");
         if (!file.isFile()) return;
-        List<Map<String, Object>> list;
-        try {
-            list = (List<Map<String, Object>>)JSONValue.parseWithException(new FileReader(file));
-        } catch (IOException ioe) {
-            ioe.printStackTrace();
-            return;
-        } catch (ParseException pe) {
-            pe.printStackTrace();
-            return;
-        }
-        if (list == null) return;
-        for (Map<String, Object> map: list) {
-            Game game = new Game();
-            game.load(map);
-            openGames.put(game.uniqueId, game);
+        final long now = System.currentTimeMillis();
+        readSaveFile(file, obj -> {
+                Game game = new Game();
+                game.load((Map<String, Object>)obj);
+                // Lobbies saved before the timeline have their TTL
+                // count from now.  Not a timing, so not recorded.
+                if (game.serverId < 0 && (game.timeline == null || !game.timeline.containsKey(GameTimings.CREATE))) {
+                    if (game.timeline == null) game.timeline = new LinkedHashMap<>();
+                    game.timeline.put(GameTimings.CREATE, now);
+                    dirtyGames = true;
+                }
+                openGames.put(game.uniqueId, game);
+            });
+        indexOpenGames();
+    }
+
+    void indexOpenGames() {
+        openGamesByName.clear();
+        autoStartGames.clear();
+        startQueue.clear();
+        List<Game> queued = new ArrayList<>();
+        for (Game game: openGames.values()) {
+            indexGame(game);
+            if (game.autoStart && game.serverId < 0) autoStartGames.add(game.uniqueId);
+            if (game.startQueued > 0 && game.serverId < 0) queued.add(game);
+        }
+        Collections.sort(queued, (a, b) -> Long.compare(a.startQueued, b.startQueued));
+        for (Game game: queued) startQueue.add(game.uniqueId);
+        scheduleAllExpiry();
+    }
+
+    void indexGame(Game game) {
+        List<Game> list = openGamesByName.get(game.name);
+        if (list == null) {
+            list = new ArrayList<>();
+            openGamesByName.put(game.name, list);
         }
+        list.add(game);
+    }
+
+    void unindexGame(Game game) {
+        List<Game> list = openGamesByName.get(game.name);
+        if (list == null) return;
+        list.remove(game);
+        if (list.isEmpty()) openGamesByName.remove(game.name);
     }
 
     void saveOpenGames() {
-        List<Map<String, Object>> list = new ArrayList<>();
-        for (Game game: openGames.values()) {
-            Map<String, Object> map = new HashMap<>();
-            game.store(map);
-            list.add(map);
+        writeSaveFile("save/games.save", JsonWriter.records(openGames.values(), Game::store));
+        // Changes reach the other members along with the save.
+        if (cluster != null) announce();
+    }
+
+    Map<UUID, Game> getOpenGames() {
+        return openGames;
+    }
+
+    // Timings
+
+    void markGame(Game game, String phase) {
+        markGame(game, phase, System.currentTimeMillis());
+    }
+
+    void markGame(Game game, String phase, long time) {
+        if (game.timeline == null) game.timeline = new LinkedHashMap<>();
+        game.timeline.put(phase, time);
+        timings.record(game.name, game.mapId, game.timeline, phase);
+        dirtyGames = true;
+        dirtyTimings = true;
+    }
+
+    @SuppressWarnings("unchecked")
+    void loadTimings() {
+        timings.clear();
+        File file = file("save/timings.save");
+        if (!file.isFile()) return;
+        List<Map<String, Object>> list;
+        try {
+            list = (List<Map<String, Object>>)JSONValue.parseWithException(new FileReader(file));
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            return;
+        } catch (ParseException pe) {
+            pe.printStackTrace();
+            return;
+        }
+        if (list == null) return;
+        timings.load(list);
+    }
+
+    void saveTimings() {
+        List<Object> list = new ArrayList<>();
+        timings.store(list);
+        writeSaveFile("save/timings.save", list);
+    }
+
+    @SuppressWarnings("unchecked")
+    void loadDemand() {
+        demand.clear();
+        File file = file("save/demand.save");
+        if (!file.isFile()) return;
+        Map<String, Object> map;
+        try {
+            map = (Map<String, Object>)JSONValue.parseWithException(new FileReader(file));
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            return;
+        } catch (ParseException pe) {
+            pe.printStackTrace();
+            return;
+        }
+        if (map == null) return;
+        demand.load(map);
+    }
+
+    void saveDemand() {
+        Map<String, Object> map = new HashMap<>();
+        demand.store(map);
+        writeSaveFile("save/demand.save", map);
+    }
+
+    /**
+     * Optional daemon settings in config/daemon.yml.
+     * @return The settings, or an empty map
+     */
+    @SuppressWarnings("unchecked")
+    Map<String, Object> readDaemonConfig() {
+        File file = file("config/daemon.yml");
+        if (!file.isFile()) return new HashMap<>();
+        Map<String, Object> map = null;
+        try {
+            map = (Map<String, Object>)new Yaml().load(new FileReader(file));
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+        return map != null ? map : new HashMap<>();
+    }
+
+    /**
+     * Apply the settings which may change at runtime.  Missing keys
+     * keep their defaults.
+     */
+    void loadDaemonConfig() {
+        Map<String, Object> map = readDaemonConfig();
+        if (map.containsKey("prestage_budget")) prestageBudget = ((Number)map.get("prestage_budget")).intValue();
+        placement.load(map);
+        admission.load(map);
+        transfers.load(map);
+        watchdog.load(map);
+        if (map.containsKey("minigames_compact")) compactWire = map.get("minigames_compact") == Boolean.TRUE;
+        if (map.containsKey("lobby_ttl")) lobbyTtl = ((Number)map.get("lobby_ttl")).longValue() * 1000L;
+        if (map.containsKey("owner_idle_ttl")) ownerIdleTtl = ((Number)map.get("owner_idle_ttl")).longValue() * 1000L;
+        if (map.containsKey("invite_ttl")) inviteTtl = ((Number)map.get("invite_ttl")).longValue() * 1000L;
+        scheduleAllExpiry();
+    }
+
+    /**
+     * Append the slots of every host in the hosts section after the
+     * local ones.  Their indexes stay put as long as the section
+     * only grows at the end, so this happens once, at startup.
+     */
+    @SuppressWarnings("unchecked")
+    void setupRemoteHosts(Map<String, Object> config) {
+        Map<String, Object> hosts = (Map<String, Object>)config.get("hosts");
+        if (hosts == null) return;
+        for (Map.Entry<String, Object> entry: hosts.entrySet()) {
+            Map<String, Object> section = (Map<String, Object>)entry.getValue();
+            String address = (String)section.get("address");
+            if (address == null) {
+                System.err.println("Host " + entry.getKey() + " has no address");
+                continue;
+            }
+            int port = section.containsKey("port") ? ((Number)section.get("port")).intValue() : 8990;
+            int slots = section.containsKey("slots") ? ((Number)section.get("slots")).intValue() : 4;
+            RemoteHost host = new RemoteHost(entry.getKey(), address, port, (String)section.get("token"), firstSlot + servers.size());
+            host.setExitListener(this::onGameServerExit);
+            remoteHosts.add(host);
+            for (int i = 0; i < slots; i += 1) {
+                Server server = new Server(firstSlot + servers.size());
+                server.host = host;
+                server.slot = i;
+                servers.add(server);
+            }
+            host.start();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    void loadPlacement() {
+        File file = file("save/placement.save");
+        if (!file.isFile()) return;
+        Map<String, Object> map;
+        try {
+            map = (Map<String, Object>)JSONValue.parseWithException(new FileReader(file));
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            return;
+        } catch (ParseException pe) {
+            pe.printStackTrace();
+            return;
+        }
+        if (map == null) return;
+        placement.loadProfiles(map);
+    }
+
+    void savePlacement() {
+        Map<String, Object> map = new HashMap<>();
+        placement.storeProfiles(map);
+        writeSaveFile("save/placement.save", map);
+    }
+
+    /**
+     * Stream the records of a save file into the consumer, as they
+     * are read.  A broken file is reported, and whatever was read
+     * before the error is kept.
+     */
+    void readSaveFile(File file, Consumer<Object> each) {
+        try (Reader in = new BufferedReader(new FileReader(file))) {
+            JsonReader.readRecords(in, each);
+        } catch (IOException ioe) {
+            System.err.println("Reading " + file + ": " + ioe.getMessage());
         }
+    }
+
+    void writeSaveFile(String path, Object json) {
+        Events.Persist event = new Events.Persist();
+        event.begin();
+        File file = file(path);
+        // Stream into a temporary file so a crash halfway leaves the
+        // last complete save in place.
+        File tmp = file(path + ".tmp");
+        boolean written = false;
         try {
-            FileWriter fw = new FileWriter("save/games.save");
-            JSONValue.writeJSONString(list, fw);
-            fw.flush();
-            fw.close();
+            try (Writer out = new BufferedWriter(new FileWriter(tmp))) {
+                new JsonWriter(out).value(json);
+            }
+            // Only once close() has flushed the last of it.
+            written = true;
         } catch (IOException ioe) {
             ioe.printStackTrace();
+        } catch (UncheckedIOException uioe) {
+            uioe.getCause().printStackTrace();
+        }
+        if (written) {
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+                written = false;
+            }
+        }
+        if (!written) tmp.delete();
+        if (written && replication != null) replication.publish(path, file);
+        event.end();
+        if (event.shouldCommit()) {
+            event.target = path;
+            event.payloadSize = file.length();
+            event.commit();
         }
     }
 
@@ -643,7 +1589,7 @@ public final class Daemon implements ConnectHandler {
             worldInfos = new ArrayList<>();
             Yaml yaml = new Yaml();
             try {
-                Map<String, Object> map = (Map<String, Object>)yaml.load(new FileReader("config/worlds.yml"));
+                Map<String, Object> map = (Map<String, Object>)yaml.load(new FileReader(file("config/worlds.yml")));
                 for (String gameKey: map.keySet()) {
                     Map<String, Object> mapSection = (Map<String, Object>)map.get(gameKey);
                     for (String mapKey: mapSection.keySet()) {
@@ -703,7 +1649,7 @@ public final class Daemon implements ConnectHandler {
             Yaml yaml = new Yaml();
             Map<String, Object> gamesMap;
             try {
-                gamesMap = (Map<String, Object>)yaml.load(new FileReader("config/modes.yml"));
+                gamesMap = (Map<String, Object>)yaml.load(new FileReader(file("config/modes.yml")));
             } catch (IOException ioe) {
                 ioe.printStackTrace();
                 return playModes;
@@ -738,6 +1684,143 @@ public final class Daemon implements ConnectHandler {
     // Synchronous Event Responders
 
     void syncGameCommand(OnlinePlayer sender, String[] args) {
+        syncGameCommand(sender, args, true);
+    }
+
+    /**
+     * Send the command to the member of the cluster which has the
+     * game it is about: the game of the player, the game named by its
+     * UUID, or the owner of the game type.
+     *
+     * @return true if the command was forwarded, or refused
+     */
+    boolean routeGameCommand(OnlinePlayer sender, String[] args) {
+        User user = getUser(sender);
+        if (user.currentGame != null && openGames.containsKey(user.currentGame)) return false;
+        final long now = System.currentTimeMillis();
+        final String playing = cluster.findPlayer(sender.getUuid(), now);
+        String owner;
+        if (args.length == 0) {
+            owner = playing;
+        } else {
+            switch (args[0]) {
+            case "invite": case "public": case "map": case "mode": case "start":
+                owner = playing;
+                break;
+            case "quit": case "leave":
+                if (playing != null) {
+                    owner = playing;
+                } else {
+                    // The announcement may be late.  Leaving a game
+                    // one is not in does nothing.
+                    for (String peer: cluster.getPeers(now)) forwardCommand(peer, sender, args);
+                    return false;
+                }
+                break;
+            default:
+                UUID gameId = null;
+                try {
+                    gameId = UUID.fromString(args[0]);
+                } catch (IllegalArgumentException iae) { }
+                if (gameId != null) {
+                    owner = openGames.containsKey(gameId) ? null : cluster.findGame(gameId, now);
+                } else {
+                    owner = null;
+                    for (Game game: games) {
+                        if (game.name.equals(args[0]) || game.shorthand.equals(args[0])) {
+                            owner = cluster.owner(game.name);
+                            break;
+                        }
+                    }
+                }
+                if (args.length == 2 && !args[1].equals("info") && playing != null && !playing.equals(owner)) {
+                    sendMessage(sender.getUuid(), ChatColor.RED, "You are already in a game.");
+                    return true;
+                }
+            }
+        }
+        if (owner == null || owner.equals(cluster.self)) return false;
+        forwardCommand(owner, sender, args);
+        return true;
+    }
+
+    void forwardCommand(String owner, OnlinePlayer sender, String[] args) {
+        if (!cluster.isLive(owner, System.currentTimeMillis())) {
+            cluster.unavailable += 1;
+            sendMessage(sender.getUuid(), ChatColor.RED, "This game is not available right now. Please try again later.");
+            return;
+        }
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("kind", "command");
+        payload.put("player", sender.getUuid().toString());
+        payload.put("name", sender.getName());
+        payload.put("args", Arrays.asList(args));
+        send(owner, Cluster.CHANNEL, payload);
+        cluster.forwardedCommands += 1;
+    }
+
+    /**
+     * Tell the other members of the cluster about our slots and open
+     * games.
+     */
+    void announce() {
+        List<Object> listings = new ArrayList<>();
+        for (Game game: openGames.values()) {
+            Map<String, Object> listing = new HashMap<>();
+            game.storeListing(JsonSink.of(listing));
+            listings.add(listing);
+        }
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("kind", "announce");
+        payload.put("first_slot", firstSlot);
+        payload.put("slots", servers.size());
+        payload.put("games", listings);
+        for (String member: cluster.members) {
+            if (!member.equals(cluster.self)) send(member, Cluster.CHANNEL, payload);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    void syncClusterMessage(String from, Map<String, Object> payload) {
+        switch (String.valueOf(payload.get("kind"))) {
+        case "announce":
+            cluster.update(from, payload, System.currentTimeMillis());
+            break;
+        case "command": {
+            OnlinePlayer sender;
+            List<String> args;
+            try {
+                sender = new OnlinePlayer(UUID.fromString((String)payload.get("player")), (String)payload.get("name"));
+                args = (List<String>)payload.get("args");
+            } catch (IllegalArgumentException | NullPointerException | ClassCastException e) {
+                System.err.println("Dropping cluster command from " + from + ": " + e);
+                return;
+            }
+            syncGameCommand(sender, args.toArray(new String[0]), false);
+            break;
+        }
+        case "minigames": {
+            MinigamesMessage message;
+            try {
+                message = MinigamesMessage.decode(payload.get("message"));
+            } catch (IllegalArgumentException iae) {
+                malformedMessages.incrementAndGet();
+                return;
+            }
+            syncMinigamesMessage(String.valueOf(payload.get("from")), message);
+            break;
+        }
+        default:
+            break;
+        }
+    }
+
+    /**
+     * @param route Whether the command may go to another member of
+     *   the cluster, i.e. it did not come from one
+     */
+    void syncGameCommand(OnlinePlayer sender, String[] args, boolean route) {
+        if (route && cluster != null && routeGameCommand(sender, args)) return;
         User user = getUser(sender);
         if (args.length == 0) {
             if (user.currentGame != null) {
@@ -775,7 +1858,7 @@ public final class Daemon implements ConnectHandler {
                 } else if (args.length == 2) {
                     String inviteeName = args[1];
                     OnlinePlayer invitee = null;
-                    for (OnlinePlayer op: connect.getOnlinePlayers()) {
+                    for (OnlinePlayer op: network.getOnlinePlayers()) {
                         if (op.getName().equals(inviteeName)) {
                             invitee = op;
                             break;
@@ -795,17 +1878,15 @@ public final class Daemon implements ConnectHandler {
                         return;
                     }
                     game.invitees.add(invitee.getUuid());
+                    if (game.inviteTimes == null) game.inviteTimes = new HashMap<>();
+                    game.inviteTimes.put(invitee.getUuid(), System.currentTimeMillis());
                     dirtyGames = true;
-                    Map<String, Object> payload = new HashMap<>();
-                    payload.put("target", invitee.getUuid().toString());
-                    List<Object> chat = new ArrayList<>();
-                    chat.add("");
-                    chat.add(sender.getName() + " invited you to a game of " + game.displayName + ". ");
-                    chat.add(button(ChatColor.GREEN, "[Accept]", "/game " + game.uniqueId + " join", "Accept the game invite"));
-                    chat.add(" ");
-                    chat.add(button(ChatColor.YELLOW, "[Info]", "/game " + game.uniqueId + " info", "Read more"));
-                    payload.put("chat", chat);
-                    connect.broadcast("PLAYER_MESSAGE", payload);
+                    scheduleExpiry(game);
+                    sendRawMessage(invitee.getUuid(), "",
+                                   sender.getName() + " invited you to a game of " + game.displayName + ". ",
+                                   button(ChatColor.GREEN, "[Accept]", "/game " + game.uniqueId + " join", "Accept the game invite"),
+                                   " ",
+                                   button(ChatColor.YELLOW, "[Info]", "/game " + game.uniqueId + " info", "Read more"));
                     sendMessage(sender.getUuid(), "&aInvited %s to this game.", invitee.getName());
                 } else {
                     return;
@@ -831,19 +1912,18 @@ public final class Daemon implements ConnectHandler {
                 dirtyGames = true;
                 sendGameInfo(sender.getUuid(), game);
                 if (game.serverId < 0) {
-                    for (OnlinePlayer invitee: connect.getOnlinePlayers()) {
+                    // The same components for everyone
+                    Object[] chat = {
+                        "",
+                        sender.getName() + " opened a game of " + game.displayName + ". ",
+                        button(ChatColor.GREEN, "[Join]", "/game " + game.uniqueId + " join", "Join this game."),
+                        " ",
+                        button(ChatColor.YELLOW, "[Info]", "/game " + game.uniqueId + " info", "Read more")
+                    };
+                    for (OnlinePlayer invitee: network.getOnlinePlayers()) {
                         User inviteeUser = getUser(invitee);
                         if (inviteeUser.currentGame != null) continue;
-                        Map<String, Object> payload = new HashMap<>();
-                        payload.put("target", invitee.getUuid().toString());
-                        List<Object> chat = new ArrayList<>();
-                        chat.add("");
-                        chat.add(sender.getName() + " opened a game of " + game.displayName + ". ");
-                        chat.add(button(ChatColor.GREEN, "[Join]", "/game " + game.uniqueId + " join", "Join this game."));
-                        chat.add(" ");
-                        chat.add(button(ChatColor.YELLOW, "[Info]", "/game " + game.uniqueId + " info", "Read more"));
-                        payload.put("chat", chat);
-                        connect.broadcast("LAYER_MESSAGE", payload);
+                        broadcast("LAYER_MESSAGE", new ChatComponent.Message(invitee.getUuid(), chat));
                     }
                 }
             }
@@ -900,24 +1980,27 @@ public final class Daemon implements ConnectHandler {
             break;
         case "quit": case "leave":
             if (args.length == 1) {
-                if (user.currentGame == null) return;
-                users.remove(sender.getUuid());
-                dirtyUsers = true;
+                if (user.currentGame == null) {
+                    if (leaveMatchQueue(sender.getUuid())) {
+                        sendMessage(sender.getUuid(), "You left the matchmaking queue.");
+                    }
+                    return;
+                }
                 Game game = openGames.get(user.currentGame);
-                if (game == null) return;
-                game.members.remove(user);
-                game.spectators.remove(user);
-                dirtyGames = true;
+                if (game == null) {
+                    users.remove(sender.getUuid());
+                    dirtyUsers = true;
+                    return;
+                }
+                removeMember(game, sender.getUuid());
                 if (game.serverId < 0) {
                     if (sender.getUuid().equals(game.owner)) {
                         for (UUID member: game.members) {
-                            users.remove(member);
                             sendRawMessage(member,
                                            button(ChatColor.RED, sender.getName() + " cancelled the game. ", null, null),
                                            button(ChatColor.YELLOW, "[Menu]", "/game", "Back to menu"));
                         }
-                        openGames.remove(game.uniqueId);
-                        dirtyGames = true;
+                        removeGame(game);
                     } else {
                         for (UUID member: game.members) {
                             sendMessage(member, "%s left the game.", sender.getName());
@@ -927,11 +2010,8 @@ public final class Daemon implements ConnectHandler {
                     // The outbound player_leave_game only goes to the
                     // server running the game so they have an
                     // opportunity to kick said player.
-                    Map<String, Object> payload = new HashMap<>();
-                    payload.put("action", "player_leave_game");
-                    payload.put("player", sender.getUuid().toString());
-                    payload.put("game", game.uniqueId.toString());
-                    connect.send("game" + game.serverId, "minigames", payload);
+                    deliver(getServer(game.serverId), MinigamesMessage.of(MinigamesMessage.Action.PLAYER_LEAVE_GAME,
+                                                                            sender.getUuid(), game.uniqueId), null);
                 }
             }
             break;
@@ -961,21 +2041,7 @@ public final class Daemon implements ConnectHandler {
                     sendMessage(sender.getUuid(), ChatColor.RED, "%d players are required to start.", game.minPlayers);
                     return;
                 }
-                Server server = null;
-                for (Server serveri: servers) {
-                    if (serveri.currentGame == null) {
-                        server = serveri;
-                        break;
-                    }
-                }
-                if (server == null) {
-                    sendMessage(sender.getUuid(), "&eServers are busy right now. Please try again later.");
-                    return;
-                }
-                for (UUID member: game.members) {
-                    sendMessage(member, "Get ready. Your game will start momentarily.");
-                }
-                startGame(game, server);
+                requestStart(game);
             }
             break;
         default:
@@ -1013,12 +2079,13 @@ public final class Daemon implements ConnectHandler {
                                 sendMessage(sender.getUuid(), ChatColor.RED, "You are already in a game.");
                                 return;
                             }
+                            leaveMatchQueue(sender.getUuid());
                             game = createGame(game);
                             game.owner = sender.getUuid();
                             game.members.add(sender.getUuid());
-                            user.currentGame = game.uniqueId;
+                            enterGame(user, game.uniqueId);
                             dirtyGames = true;
-                            dirtyUsers = true;
+                            scheduleExpiry(game);
                             sendGameInfo(sender.getUuid(), game);
                         }
                         break;
@@ -1030,19 +2097,18 @@ public final class Daemon implements ConnectHandler {
                             return;
                         }
                         if (targetGeneralGame) {
-                            String gameName = game.name;
-                            game = null;
                             if (spectate) return;
-                            for (Game gamei: openGames.values()) {
-                                if (gamei.name.equals(gameName)
-                                    && (gamei.publicGame || gamei.invitees.contains(sender.getUuid()))
-                                    && ((!spectate && gamei.playersMayJoin) || (spectate && gamei.playersMaySpectate))) {
-                                    game = gamei;
-                                    break;
-                                }
+                            // Prefer the fullest lobby, then a running
+                            // game.  Failing both, wait in the queue.
+                            Game template = game;
+                            game = findLobby(template.name, sender.getUuid());
+                            if (game == null) game = findRunningGame(template.name, sender.getUuid());
+                            if (game == null) {
+                                enqueueMatch(sender.getUuid(), template);
+                                return;
                             }
                         }
-                        if (game == null) return; // The targetGeneralGame loop may leave game reset to null.
+                        if (game == null) return;
                         if (!spectate && !game.playersMayJoin) return;
                         if (spectate && !game.playersMaySpectate) return;
                         if (!game.publicGame && !game.invitees.contains(sender.getUuid())) return;
@@ -1050,36 +2116,23 @@ public final class Daemon implements ConnectHandler {
                             sendGameInfo(sender.getUuid(), game);
                         }
                         if (game.serverId >= 0) {
-                            // Game must be running.  Just send its server the
-                            // message.  Risk getting no response if the
-                            // server is still booting up.  Player has to
-                            // retry a few seconds later.
-                            Server server = servers.get(game.serverId);
-                            Map<String, Object> payload = new HashMap<>();
-                            payload.put("action", spectate ? "player_spectate_game" : "player_join_game");
-                            payload.put("player", sender.getUuid().toString());
-                            payload.put("game", game.uniqueId.toString());
-                            if (server.state == Server.State.BOOT) {
-                                if (server.postBootMessages == null) server.postBootMessages = new ArrayList<>();
-                                server.postBootMessages.add(payload);
-                            } else {
-                                connect.send("game" + game.serverId, "minigames", payload);
+                            // Game must be running, or booting.  Its server
+                            // gets the request through the outbox, which
+                            // holds it until the server is up.
+                            MinigamesMessage message = MinigamesMessage.of(spectate
+                                                                           ? MinigamesMessage.Action.PLAYER_SPECTATE_GAME
+                                                                           : MinigamesMessage.Action.PLAYER_JOIN_GAME,
+                                                                           sender.getUuid(), game.uniqueId);
+                            if (!deliver(getServer(game.serverId), message, sender.getUuid())) {
+                                sendMessage(sender.getUuid(), ChatColor.RED, "The game server is busy. Please try again.");
                             }
                         } else {
-                            user.currentGame = game.uniqueId;
-                            game.members.add(sender.getUuid());
-                            if (spectate) game.spectators.add(sender.getUuid());
-                            sendGameInfo(sender.getUuid(), game);
-                            dirtyUsers = true;
-                            dirtyGames = true;
-                            for (UUID member: game.members) {
-                                if (member.equals(sender.getUuid())) continue;
-                                if (spectate) {
-                                    sendMessage(member, "%s will spectate your game.", sender.getName());
-                                } else {
-                                    sendMessage(member, "%s has joined your game.", sender.getName());
-                                }
+                            if (!spectate && isFull(game)) {
+                                sendMessage(sender.getUuid(), ChatColor.RED, "This game is full.");
+                                return;
                             }
+                            leaveMatchQueue(sender.getUuid());
+                            joinLobby(game, user, spectate);
                         }
                         break;
                     case "info":
@@ -1098,6 +2151,31 @@ public final class Daemon implements ConnectHandler {
         }
     }
 
+    void joinLobby(Game game, User user, boolean spectate) {
+        enterGame(user, game.uniqueId);
+        game.members.add(user.uuid);
+        if (spectate) game.spectators.add(user.uuid);
+        sendGameInfo(user.uuid, game);
+        dirtyGames = true;
+        String name = getUserName(user.uuid);
+        for (UUID member: game.members) {
+            if (member.equals(user.uuid)) continue;
+            if (spectate) {
+                sendMessage(member, "%s will spectate your game.", name);
+            } else {
+                sendMessage(member, "%s has joined your game.", name);
+            }
+        }
+        // A full matched lobby does not wait for the timeout.
+        if (game.autoStart && isFull(game)) game.autoStartTime = System.currentTimeMillis();
+    }
+
+    ChatComponent gameButton(ChatColor color, UUID gameId, String displayName, List<UUID> members) {
+        StringBuilder tool = new StringBuilder(displayName);
+        for (UUID member: members) tool.append("\n").append(getUserName(member));
+        return button(color, "[" + displayName + "]", "/game " + gameId + " info", tool.toString());
+    }
+
     void sendGamesMenu(UUID target) {
         sendMessage(target, "");
         sendMessage(target, "&9> &a&lGames Menu");
@@ -1105,22 +2183,26 @@ public final class Daemon implements ConnectHandler {
         for (Game game: openGames.values()) {
             if (game.publicGame || game.members.contains(target) || game.invitees.contains(target)) availableGames.add(game);
         }
+        // The open games of the other members, too
+        List<Cluster.Listing> remoteGames = cluster != null
+            ? cluster.visibleGames(target, System.currentTimeMillis())
+            : Collections.emptyList();
         // Public game list
         Collections.shuffle(niceColors, random);
         int i = 0;
-        if (!availableGames.isEmpty()) {
+        if (!availableGames.isEmpty() || !remoteGames.isEmpty()) {
             List<Object> gamesJs = new ArrayList<>();
             gamesJs.add("");
             gamesJs.add(format("&9> &fOpen Games&7"));
             for (Game game: availableGames) {
                 i += 1;
                 gamesJs.add(" ");
-                StringBuilder tool = new StringBuilder(game.displayName);
-                for (UUID member: game.members) tool.append("\n").append(getUserName(member));
-                gamesJs.add(button(niceColors.get(i % niceColors.size()),
-                                   "[" + game.displayName + "]",
-                                   "/game " + game.uniqueId + " info",
-                                   tool.toString()));
+                gamesJs.add(gameButton(niceColors.get(i % niceColors.size()), game.uniqueId, game.displayName, game.members));
+            }
+            for (Cluster.Listing listing: remoteGames) {
+                i += 1;
+                gamesJs.add(" ");
+                gamesJs.add(gameButton(niceColors.get(i % niceColors.size()), listing.id, listing.displayName, listing.members));
             }
             sendRawMessage(target, gamesJs);
         }
@@ -1216,7 +2298,7 @@ public final class Daemon implements ConnectHandler {
         }
         if (select == GameInfoMode.INVITE) {
             List<OnlinePlayer> invitees = new ArrayList<>();
-            for (OnlinePlayer op: connect.getOnlinePlayers()) {
+            for (OnlinePlayer op: network.getOnlinePlayers()) {
                 User user = getUser(op);
                 if (user.currentGame == null) invitees.add(op);
             }
@@ -1365,20 +2447,35 @@ public final class Daemon implements ConnectHandler {
 
     // Messaging
 
-    void sendRawMessage(UUID target, Object... obj) {
-        Map<String, Object> js = new HashMap<>();
-        js.put("target", target.toString());
-        Object message;
-        if (obj.length == 0) {
-            return;
-        } else if (obj.length == 1) {
-            message = obj[0];
-        } else {
-            message = Arrays.asList(obj);
+    void send(String target, String channel, Object payload) {
+        Events.ConnectSend event = new Events.ConnectSend();
+        event.begin();
+        network.send(target, channel, payload);
+        event.end();
+        if (event.shouldCommit()) {
+            event.target = target;
+            event.channel = channel;
+            event.payloadSize = JsonWriter.length(payload);
+            event.commit();
         }
-        js.put("chat", message);
-        js.put("target", target.toString());
-        connect.broadcast("PLAYER_MESSAGE", js);
+    }
+
+    void broadcast(String channel, Object payload) {
+        Events.ConnectSend event = new Events.ConnectSend();
+        event.begin();
+        network.broadcast(channel, payload);
+        event.end();
+        if (event.shouldCommit()) {
+            event.target = "*";
+            event.channel = channel;
+            event.payloadSize = JsonWriter.length(payload);
+            event.commit();
+        }
+    }
+
+    void sendRawMessage(UUID target, Object... obj) {
+        if (obj.length == 0) return;
+        broadcast("PLAYER_MESSAGE", new ChatComponent.Message(target, obj.length == 1 ? obj[0] : obj));
     }
 
     void sendMessage(UUID target, String message, Object... args) {
@@ -1388,10 +2485,7 @@ public final class Daemon implements ConnectHandler {
     void sendMessage(UUID target, ChatColor color, String message, Object... args) {
         message = ChatColor.translateAlternateColorCodes('&', message);
         if (args.length > 0) message = String.format(message, args);
-        Map<String, Object> js = new HashMap<>();
-        js.put("text", message);
-        js.put("color", color.name().toLowerCase());
-        sendRawMessage(target, js);
+        sendRawMessage(target, new ChatComponent(color.name().toLowerCase(), message, null, null));
     }
 
     static String format(String msg, Object... args) {
@@ -1400,234 +2494,972 @@ public final class Daemon implements ConnectHandler {
         return msg;
     }
 
-    static Object button(ChatColor color, String chat, String command, String tooltip) {
-        Map<String, Object> map = new HashMap<>();
-        if (color != null) {
-            map.put("color", color.name().toLowerCase());
-        }
-        map.put("text", ChatColor.translateAlternateColorCodes('&', chat));
-        if (command != null) {
-            Map<String, Object> clickEvent = new HashMap<>();
-            map.put("clickEvent", clickEvent);
-            clickEvent.put("action", "run_command");
-            clickEvent.put("value", command);
+    static ChatComponent button(ChatColor color, String chat, String command, String tooltip) {
+        return new ChatComponent(color != null ? color.name().toLowerCase() : null,
+                                 ChatColor.translateAlternateColorCodes('&', chat), command,
+                                 tooltip != null ? ChatColor.translateAlternateColorCodes('&', tooltip) : null);
+    }
+
+    // Matchmaking
+
+    /**
+     * Players waiting for a game of one type, in order of arrival.
+     */
+    static final class MatchQueue {
+        private final List<UUID> players = new ArrayList<>();
+        private long lastArrival;
+        private double meanInterval; // Millis between arrivals, moving average
+    }
+
+    static boolean isFull(Game game) {
+        return game.maxPlayers > 0 && game.members.size() >= game.maxPlayers;
+    }
+
+    /**
+     * Find the fullest lobby of the given game type which the
+     * player may join.
+     */
+    Game findLobby(String gameName, UUID player) {
+        List<Game> list = openGamesByName.get(gameName);
+        if (list == null) return null;
+        Game result = null;
+        for (Game game: list) {
+            if (game.serverId >= 0 || !game.playersMayJoin || isFull(game)) continue;
+            if (!game.publicGame && !game.invitees.contains(player)) continue;
+            if (result == null || game.members.size() > result.members.size()) result = game;
         }
-        if (tooltip != null) {
-            Map<String, Object> hoverEvent = new HashMap<>();
-            map.put("hoverEvent", hoverEvent);
-            hoverEvent.put("action", "show_text");
-            hoverEvent.put("value", ChatColor.translateAlternateColorCodes('&', tooltip));
+        return result;
+    }
+
+    Game findRunningGame(String gameName, UUID player) {
+        List<Game> list = openGamesByName.get(gameName);
+        if (list == null) return null;
+        for (Game game: list) {
+            if (game.serverId < 0 || !game.playersMayJoin) continue;
+            if (!game.publicGame && !game.invitees.contains(player)) continue;
+            return game;
         }
-        return map;
+        return null;
     }
 
-    // Game and Server Startup
+    void enqueueMatch(UUID player, Game template) {
+        MatchQueue queue = matchQueues.get(template.name);
+        if (queue == null) {
+            queue = new MatchQueue();
+            matchQueues.put(template.name, queue);
+        }
+        if (!queue.players.contains(player)) {
+            long now = System.currentTimeMillis();
+            if (queue.lastArrival > 0) {
+                double interval = (double)(now - queue.lastArrival);
+                queue.meanInterval = queue.meanInterval == 0 ? interval : 0.8 * queue.meanInterval + 0.2 * interval;
+            }
+            queue.lastArrival = now;
+            queue.players.add(player);
+        }
+        matchmake(template);
+        int index = queue.players.indexOf(player);
+        if (index >= 0) sendMatchStatus(player, template, queue, index);
+    }
 
-    // A modified copy of the input argument will be created here.
-    Game createGame(Game template) {
-        Game game = new Game(template);
-        game.uniqueId = new UUID(System.nanoTime(), random.nextLong());
-        game.members = new ArrayList<>();
-        game.spectators = new ArrayList<>();
-        game.invitees = new ArrayList<>();
-        game.mapId = null;
-        game.serverId = -1;
-        openGames.put(game.uniqueId, game);
-        return game;
+    /**
+     * Move queued players into open lobbies, then group the rest
+     * into new public lobbies which start by themselves.
+     */
+    void matchmake(Game template) {
+        MatchQueue queue = matchQueues.get(template.name);
+        if (queue == null || queue.players.isEmpty()) return;
+        // Nobody tells us about logouts, so drop those who left the
+        // network, or got into a game some other way.
+        final long now = System.currentTimeMillis();
+        queue.players.removeIf(player -> {
+                User user = users.get(player);
+                return !isOnline(player, now) || (user != null && user.currentGame != null);
+            });
+        for (Iterator<UUID> iter = queue.players.iterator(); iter.hasNext();) {
+            UUID player = iter.next();
+            Game lobby = findLobby(template.name, player);
+            if (lobby == null) break;
+            iter.remove();
+            joinLobby(lobby, getUser(player), false);
+        }
+        boolean formed = false;
+        while (!queue.players.isEmpty() && queue.players.size() >= template.minPlayers) {
+            int size = queue.players.size();
+            if (template.maxPlayers > 0) size = Math.min(size, template.maxPlayers);
+            List<UUID> party = new ArrayList<>(queue.players.subList(0, size));
+            queue.players.subList(0, size).clear();
+            Game game = createGame(template);
+            game.owner = party.get(0);
+            game.publicGame = true;
+            game.autoStart = true;
+            game.autoStartTime = System.currentTimeMillis() + (long)game.matchTimeout * 1000L;
+            autoStartGames.add(game.uniqueId);
+            for (UUID member: party) {
+                sendMessage(member, "&aMatch found! Your game starts within %d seconds.", game.matchTimeout);
+                joinLobby(game, getUser(member), false);
+            }
+            formed = true;
+        }
+        if (formed) {
+            for (int i = 0; i < queue.players.size(); i += 1) {
+                sendMatchStatus(queue.players.get(i), template, queue, i);
+            }
+        }
     }
 
-    void startGame(final Game game, final Server server) {
-        server.currentGame = game.uniqueId;
-        game.serverId = server.index;
-        server.state = Server.State.BOOT;
-        dirtyServers = true;
-        dirtyGames = true;
-        // Running e.g.: ./script/base-game.setup colorfall /home/creative/minecraft/worlds/Colorhunt
-        WorldInfo worldInfo;
-        if (game.mapId != null) {
-            worldInfo = findWorldInfo(game.name, game.mapId);
+    void sendMatchStatus(UUID player, Game template, MatchQueue queue, int index) {
+        int missing = Math.max(0, template.minPlayers - queue.players.size());
+        String eta;
+        if (queue.meanInterval <= 0) {
+            eta = "unknown";
         } else {
-            List<WorldInfo> infos = findGameWorlds(game.name);
-            worldInfo = infos.get(random.nextInt(infos.size()));
-            game.mapId = worldInfo.mapId;
+            eta = formatDuration((long)(missing * queue.meanInterval) + (long)template.matchTimeout * 1000L);
         }
-        List<PlayMode> gamePlayModes = findPlayModes(game.name);
-        if (!gamePlayModes.isEmpty() && game.playMode == null) {
-            game.playMode = gamePlayModes.get(random.nextInt(gamePlayModes.size())).modeId;
+        sendRawMessage(player,
+                       button(ChatColor.YELLOW, format("You are #%d in the queue for %s, %d more needed. Estimated wait: %s. ",
+                                                       index + 1, template.displayName, missing, eta), null, null),
+                       button(ChatColor.RED, "[Leave]", "/game leave", "Leave the queue"));
+    }
+
+    boolean leaveMatchQueue(UUID player) {
+        boolean result = false;
+        for (MatchQueue queue: matchQueues.values()) {
+            if (queue.players.remove(player)) result = true;
         }
-        final ProcessBuilder pb = new ProcessBuilder("script/" + game.setupScript, game.name, "" + server.index, worldInfo.mapPath);
-        pb.inheritIO();
-        final int serverIndex = server.index;
-        Runnable run = () -> {
-            int ret;
-            try {
-                Process process = pb.start();
-                ret = process.waitFor();
-            } catch (InterruptedException ie) {
-                ie.printStackTrace();
-                ret = -1;
-            } catch (IOException ioe) {
-                ioe.printStackTrace();
-                ret = -1;
+        return result;
+    }
+
+    void checkAutoStart(long now) {
+        for (Iterator<UUID> iter = autoStartGames.iterator(); iter.hasNext();) {
+            Game game = openGames.get(iter.next());
+            if (game == null || game.serverId >= 0) {
+                iter.remove();
+                continue;
             }
-            // Store configurations
-            if (ret == 0) {
-                Map<String, Object> gameConfigMap = new HashMap<>();
-                game.store(gameConfigMap);
-                try {
-                    FileWriter fw;
-                    fw = new FileWriter("run/game" + server.index + "/game_config.json");
-                    JSONValue.writeJSONString(gameConfigMap, fw);
-                    fw.flush();
-                    fw.close();
-                } catch (IOException ioe) {
-                    ioe.printStackTrace();
+            if (game.members.size() < game.minPlayers) continue;
+            if (!isFull(game) && now < game.autoStartTime) continue;
+            requestStart(game);
+            iter.remove();
+        }
+    }
+
+    static String formatDuration(long millis) {
+        long seconds = (millis + 999L) / 1000L;
+        if (seconds < 60) return seconds + "s";
+        return (seconds / 60) + "m " + (seconds % 60) + "s";
+    }
+
+    // Pre-staging
+
+    /**
+     * Run the setup script of the game types most likely to start
+     * within the horizon on idle servers, so that a matching start
+     * skips straight to booting.  At most prestageBudget servers are
+     * staged at a time.
+     */
+    void prestage(long now) {
+        int staged = countServers(Server.State.STAGE) + countServers(Server.State.STAGED);
+        if (staged >= prestageBudget) return;
+        Map<String, Integer> stagedPerGame = new HashMap<>();
+        for (Server server: servers) {
+            if (server.stagedGame == null || server.currentGame != null) continue;
+            Integer old = stagedPerGame.get(server.stagedGame);
+            stagedPerGame.put(server.stagedGame, old == null ? 1 : old + 1);
+        }
+        final Map<String, Double> deficits = new HashMap<>();
+        List<Game> candidates = new ArrayList<>();
+        for (Game template: games) {
+            double expected = demand.forecast(template.name, now, PRESTAGE_HORIZON);
+            Integer have = stagedPerGame.get(template.name);
+            double deficit = expected - (have == null ? 0 : have);
+            if (deficit < 0.5) continue;
+            deficits.put(template.name, deficit);
+            candidates.add(template);
+        }
+        Collections.sort(candidates, (a, b) -> Double.compare(deficits.get(b.name), deficits.get(a.name)));
+        for (Game template: candidates) {
+            long count = Math.round(deficits.get(template.name));
+            for (long i = 0; i < count && staged < prestageBudget; i += 1) {
+                Server server = null;
+                for (Server serveri: servers) {
+                    if (serveri.isFree() && serveri.state == Server.State.OFF) {
+                        server = serveri;
+                        break;
+                    }
                 }
-                try {
-                    final ProcessBuilder pb2 = new ProcessBuilder("script/game.start", "" + server.index, "" + (2600 + server.index));
-                    pb2.inheritIO();
-                    Process process = pb2.start();
-                    ret = process.waitFor();
-                } catch (InterruptedException ie) {
-                    ie.printStackTrace();
-                    ret = -1;
-                } catch (IOException ioe) {
-                    ioe.printStackTrace();
-                    ret = -1;
+                if (server == null) return;
+                WorldInfo worldInfo = findWorldInfo(template.name, demand.likelyMap(template.name));
+                if (worldInfo == null) {
+                    List<WorldInfo> infos = findGameWorlds(template.name);
+                    if (infos.isEmpty()) break;
+                    worldInfo = infos.get(random.nextInt(infos.size()));
+                }
+                stageServer(server, template, worldInfo);
+                staged += 1;
+            }
+        }
+    }
+
+    void stageServer(final Server server, Game template, WorldInfo worldInfo) {
+        provisioning += 1;
+        server.state = Server.State.STAGE;
+        server.stagedGame = template.name;
+        server.stagedMap = worldInfo.mapId;
+        dirtyServers = true;
+        flushSlots();
+        final String setupScript = template.setupScript;
+        final String gameName = template.name;
+        final String mapPath = worldInfo.mapPath;
+        new Thread(() -> {
+                long start = System.currentTimeMillis();
+                final int retval = server.host.setup(setupScript, gameName, server.index, mapPath);
+                final long duration = System.currentTimeMillis() - start;
+                tasks.add(new Task("stage:game" + server.index, () -> syncStageFinished(server.index, retval, duration))
+                          .about("game" + server.index, null), TaskQueue.Lane.LIFECYCLE);
+        }).start();
+    }
+
+    void syncStageFinished(int serverIndex, int retval, long duration) {
+        provisioning -= 1;
+        Server server = getServer(serverIndex);
+        if (server.state != Server.State.STAGE) return; // Reset meanwhile
+        if (retval != 0) {
+            System.err.println("Staging game" + serverIndex + " for " + server.stagedGame + " failed: " + retval);
+            server.reset();
+        } else {
+            server.state = Server.State.STAGED;
+            server.stagedMillis = duration;
+        }
+        dirtyServers = true;
+        if (!startQueue.isEmpty()) drainStartQueue();
+    }
+
+    // Lobby Expiry
+
+    /**
+     * An unstarted lobby which is not waiting for a server is subject
+     * to expiry.  Matchmade lobbies start on their own.
+     */
+    boolean isExpirable(Game game) {
+        return game.serverId < 0 && !game.autoStart && game.startQueued == 0 && openGames.get(game.uniqueId) == game;
+    }
+
+    /**
+     * Arm the expiry timer of a lobby for its next deadline: the
+     * lobby TTL, the oldest invite, or the next look at whether the
+     * owner is online.  Any earlier timer of the game is replaced,
+     * so there is one per lobby, and nothing ever sweeps all of them.
+     */
+    void scheduleExpiry(Game game) {
+        cancelExpiry(game);
+        if (!isExpirable(game)) return;
+        final long now = System.currentTimeMillis();
+        long deadline = Long.MAX_VALUE;
+        if (lobbyTtl > 0) {
+            Long created = game.timeline == null ? null : game.timeline.get(GameTimings.CREATE);
+            deadline = Math.min(deadline, (created != null ? created : now) + lobbyTtl);
+        }
+        if (inviteTtl > 0 && !game.invitees.isEmpty()) {
+            // Invites saved before their time was kept count from now.
+            if (game.inviteTimes == null) game.inviteTimes = new HashMap<>();
+            for (UUID invitee: game.invitees) {
+                Long time = game.inviteTimes.get(invitee);
+                if (time == null) {
+                    time = now;
+                    game.inviteTimes.put(invitee, time);
+                    dirtyGames = true;
+                }
+                deadline = Math.min(deadline, time + inviteTtl);
+            }
+        }
+        if (ownerIdleTtl > 0 && game.owner != null) {
+            deadline = Math.min(deadline, now + Math.max(1000L, ownerIdleTtl / 2));
+        }
+        if (deadline == Long.MAX_VALUE) return;
+        final UUID gameId = game.uniqueId;
+        expiryTimers.put(gameId, schedule(Math.max(0L, deadline - now), new Task("expire", () -> checkExpiry(gameId))));
+    }
+
+    void cancelExpiry(Game game) {
+        TimerWheel.Timer<Task> timer = expiryTimers.remove(game.uniqueId);
+        if (timer != null) timer.cancel();
+    }
+
+    void scheduleAllExpiry() {
+        for (TimerWheel.Timer<Task> timer: expiryTimers.values()) timer.cancel();
+        expiryTimers.clear();
+        for (Game game: openGames.values()) scheduleExpiry(game);
+    }
+
+    void checkExpiry(UUID gameId) {
+        expiryTimers.remove(gameId);
+        Game game = openGames.get(gameId);
+        if (game == null || !isExpirable(game)) return;
+        final long now = System.currentTimeMillis();
+        Long created = game.timeline == null ? null : game.timeline.get(GameTimings.CREATE);
+        if (lobbyTtl > 0 && created != null && now - created >= lobbyTtl) {
+            expireLobby(game, String.format("Your game of %s was closed after %s without starting.",
+                                     game.displayName, formatDuration(now - created)));
+            return;
+        }
+        if (ownerIdleTtl > 0 && game.owner != null) {
+            if (isOnline(game.owner, now)) {
+                game.ownerAway = 0;
+            } else if (game.ownerAway == 0) {
+                game.ownerAway = now;
+            } else if (now - game.ownerAway >= ownerIdleTtl) {
+                expireLobby(game, String.format("Your game of %s was closed because its owner left.", game.displayName));
+                return;
+            }
+        }
+        if (inviteTtl > 0 && game.inviteTimes != null) {
+            for (Iterator<Map.Entry<UUID, Long>> iter = game.inviteTimes.entrySet().iterator(); iter.hasNext();) {
+                Map.Entry<UUID, Long> entry = iter.next();
+                if (now - entry.getValue() < inviteTtl) continue;
+                iter.remove();
+                UUID invitee = entry.getKey();
+                game.invitees.remove(invitee);
+                dirtyGames = true;
+                if (!game.members.contains(invitee)) {
+                    sendMessage(invitee, "&7Your invite to a game of %s expired.", game.displayName);
                 }
             }
+        }
+        scheduleExpiry(game);
+    }
+
+    void expireLobby(Game game, String message) {
+        System.out.println("Expiring lobby " + game.name + " " + game.uniqueId);
+        for (UUID member: game.members) {
+            sendRawMessage(member,
+                           button(ChatColor.RED, message + " ", null, null),
+                           button(ChatColor.YELLOW, "[Menu]", "/game", "Back to menu"));
+        }
+        markGame(game, GameTimings.END);
+        removeGame(game);
+    }
+
+    /**
+     * Whether the player is on the network, judging by a snapshot of
+     * the online players which is at most ONLINE_SNAPSHOT_AGE old, so
+     * a burst of expiry checks costs one list of players.
+     */
+    boolean isOnline(UUID player, long now) {
+        if (network == null) return true;
+        if (onlineSnapshot == null || now - onlineSnapshotTime > ONLINE_SNAPSHOT_AGE) {
+            onlineSnapshot = new HashSet<>();
+            for (OnlinePlayer op: network.getOnlinePlayers()) onlineSnapshot.add(op.getUuid());
+            onlineSnapshotTime = now;
+        }
+        return onlineSnapshot.contains(player);
+    }
+
+    // Game and Server Startup
+
+    // A modified copy of the input argument will be created here.
+    Game createGame(Game template) {
+        Game game = new Game(template);
+        game.uniqueId = new UUID(System.nanoTime(), random.nextLong());
+        game.members = new ArrayList<>();
+        game.spectators = new ArrayList<>();
+        game.invitees = new ArrayList<>();
+        game.inviteTimes = new HashMap<>();
+        game.mapId = null;
+        game.serverId = -1;
+        game.timeline = new LinkedHashMap<>();
+        openGames.put(game.uniqueId, game);
+        indexGame(game);
+        markGame(game, GameTimings.CREATE);
+        demand.recordCreate(game.name, System.currentTimeMillis());
+        dirtyDemand = true;
+        return game;
+    }
+
+    /**
+     * Remove a member from a game and release their user.  A game
+     * without members is removed.
+     */
+    void removeMember(Game game, UUID member) {
+        game.members.remove(member);
+        game.spectators.remove(member);
+        dirtyGames = true;
+        User user = users.get(member);
+        if (user != null && game.uniqueId.equals(user.currentGame)) {
+            users.remove(member);
+            dirtyUsers = true;
+        }
+        if (game.members.isEmpty()) removeGame(game);
+    }
+
+    /**
+     * Remove a game and release all users still in it.
+     */
+    void removeGame(Game game) {
+        if (openGames.remove(game.uniqueId) == null) return;
+        unindexGame(game);
+        cancelExpiry(game);
+        autoStartGames.remove(game.uniqueId);
+        if (game.startQueued > 0) startQueue.remove(game.uniqueId);
+        dirtyGames = true;
+        for (UUID member: game.members) {
+            User user = users.get(member);
+            if (user != null && game.uniqueId.equals(user.currentGame)) {
+                users.remove(member);
+                dirtyUsers = true;
+            }
+        }
+    }
+
+    /**
+     * Among the hosts which admit the game, prefer a server staged
+     * for it, then an unstaged one on the least busy host, and only
+     * then one staged for something else.  None while draining, so
+     * new starts wait in the start queue for the next run.
+     * @param verdicts Placement verdicts of this request, by host,
+     *   see placementOf()
+     */
+    Server findFreeServer(Game game, Map<GameHost, Placement.Verdict> verdicts) {
+        if (draining) return null;
+        Map<GameHost, Integer> busy = new HashMap<>();
+        for (Server server: servers) {
+            if (server.currentGame == null) continue;
+            Integer old = busy.get(server.host);
+            busy.put(server.host, old == null ? 1 : old + 1);
+        }
+        Server result = null;
+        double resultLoad = 0;
+        for (Server server: servers) {
+            if (!server.isFree()) continue;
+            if (placementOf(game, server.host, verdicts) != Placement.Verdict.ADMIT) continue;
+            if (server.isStagedFor(game.name, game.mapId)) return server;
+            Integer count = busy.get(server.host);
+            double load = (count == null ? 0.0 : (double)count) / (double)server.host.getCapacity();
+            boolean better;
+            if (result == null) {
+                better = true;
+            } else if ((result.state == Server.State.STAGED) != (server.state == Server.State.STAGED)) {
+                better = result.state == Server.State.STAGED;
+            } else {
+                better = load < resultLoad;
+            }
+            if (better) {
+                result = server;
+                resultLoad = load;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return true unless every available host refuses the game
+     */
+    boolean canHost(Game game, Map<GameHost, Placement.Verdict> verdicts) {
+        Set<GameHost> hosts = new LinkedHashSet<>();
+        for (Server server: servers) {
+            if (server.host.isAvailable()) hosts.add(server.host);
+        }
+        if (hosts.isEmpty()) return true; // Wait for a host to come back.
+        for (GameHost host: hosts) {
+            if (placementOf(game, host, verdicts) != Placement.Verdict.REFUSE) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Ask each host at most once per start request, since the
+     * placement engine only changes its mind with a new snapshot.
+     */
+    Placement.Verdict placementOf(Game game, GameHost host, Map<GameHost, Placement.Verdict> verdicts) {
+        Placement.Verdict verdict = verdicts.get(host);
+        if (verdict == null) {
+            verdict = checkPlacement(game, host);
+            verdicts.put(host, verdict);
+        }
+        return verdict;
+    }
+
+    /**
+     * @return Whether a server is free but its host is delaying the
+     *   game, as opposed to all servers being busy
+     */
+    boolean waitsForCapacity(Map<GameHost, Placement.Verdict> verdicts) {
+        for (Server server: servers) {
+            if (server.isFree() && verdicts.get(server.host) == Placement.Verdict.DELAY) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Start the game now if a server is free and no other game is
+     * waiting for one.  Otherwise, put it in the start queue.
+     */
+    void requestStart(Game game) {
+        Map<GameHost, Placement.Verdict> verdicts = new HashMap<>();
+        if (!canHost(game, verdicts)) {
+            for (UUID member: game.members) {
+                sendMessage(member, ChatColor.RED, "This game cannot be hosted right now. Please contact an administrator.");
+            }
+            return;
+        }
+        if (game.startQueued > 0) {
+            sendStartQueueStatus(game, startQueue.indexOf(game.uniqueId), System.currentTimeMillis(), false);
+            return;
+        }
+        if (startQueue.isEmpty() && tryStartGame(game, verdicts)) return;
+        game.startQueued = System.currentTimeMillis();
+        startQueue.add(game.uniqueId);
+        cancelExpiry(game);
+        dirtyGames = true;
+        sendStartQueueStatus(game, startQueue.size() - 1, game.startQueued, waitsForCapacity(verdicts));
+    }
+
+    /**
+     * Hand free servers to queued games, in order.  Games which lost
+     * too many players meanwhile drop out.
+     */
+    void drainStartQueue() {
+        boolean changed = false;
+        boolean delayed = false;
+        while (!startQueue.isEmpty()) {
+            Game game = openGames.get(startQueue.get(0));
+            Server server = null;
+            Map<GameHost, Placement.Verdict> verdicts = new HashMap<>();
+            if (game != null && canHost(game, verdicts)) {
+                server = findFreeServer(game, verdicts);
+                if (server == null) {
+                    delayed = waitsForCapacity(verdicts);
+                    break;
+                }
+            }
+            startQueue.remove(0);
+            changed = true;
+            if (game == null) continue;
+            game.startQueued = 0;
+            dirtyGames = true;
+            if (game.serverId >= 0) continue;
+            if (server == null) {
+                for (UUID member: game.members) {
+                    sendMessage(member, ChatColor.RED, "This game cannot be hosted right now. Please contact an administrator.");
+                }
+                scheduleExpiry(game);
+                continue;
+            }
+            if (game.members.size() < game.minPlayers) {
+                for (UUID member: game.members) {
+                    sendMessage(member, ChatColor.RED, "%d players are required to start.", game.minPlayers);
+                }
+                scheduleExpiry(game);
+                continue;
+            }
+            for (UUID member: game.members) {
+                sendMessage(member, "Get ready. Your game will start momentarily.");
+            }
+            startGame(game, server);
+        }
+        if (!changed) return;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < startQueue.size(); i += 1) {
+            Game game = openGames.get(startQueue.get(i));
+            if (game != null) sendStartQueueStatus(game, i, now, delayed);
+        }
+    }
+
+    /**
+     * @param delayed Whether placement holds the game back rather
+     *   than a lack of free servers
+     */
+    void sendStartQueueStatus(Game game, int index, long now, boolean delayed) {
+        long wait = estimateStartWait(index, now);
+        String eta = wait < 0 ? "unknown" : formatDuration(wait);
+        String reason = delayed ? "Waiting for capacity" : "All servers are busy";
+        for (UUID member: game.members) {
+            sendMessage(member, "&e%s. Your game is #%d in line. Estimated wait: %s.", reason, index + 1, eta);
+        }
+    }
+
+    /**
+     * Estimate the millis until the queued game at the given index
+     * gets a server.  Every busy server is assumed to take the median
+     * startup plus run time of its game type, and so is every game
+     * ahead in the queue.
+     * @return The estimate, or -1 if a game type has no history
+     */
+    long estimateStartWait(int index, long now) {
+        if (servers.isEmpty() || index < 0) return -1;
+        long[] free = new long[servers.size()];
+        for (int i = 0; i < free.length; i += 1) {
+            Server server = servers.get(i);
+            Game game = server.currentGame == null ? null : openGames.get(server.currentGame);
+            if (game == null) continue;
+            long expected = expectedDuration(game.name);
+            if (expected < 0) return -1;
+            Long start = game.timeline == null ? null : game.timeline.get(GameTimings.START);
+            long elapsed = start == null ? 0 : now - start;
+            free[i] = Math.max(0, expected - elapsed);
+        }
+        for (int i = 0; i < index; i += 1) {
+            int slot = 0;
+            for (int j = 1; j < free.length; j += 1) {
+                if (free[j] < free[slot]) slot = j;
+            }
+            Game game = openGames.get(startQueue.get(i));
+            long expected = game == null ? 0 : expectedDuration(game.name);
+            if (expected < 0) return -1;
+            free[slot] += expected;
+        }
+        long result = free[0];
+        for (long value: free) result = Math.min(result, value);
+        return result;
+    }
+
+    long expectedDuration(String gameName) {
+        Histogram startup = timings.find(GameTimings.typeKey(gameName), "start_to_sent");
+        Histogram run = timings.find(GameTimings.typeKey(gameName), "run");
+        if (startup == null || run == null || run.getCount() == 0) return -1;
+        return startup.percentile(50) + run.percentile(50);
+    }
+
+    // Placement
+
+    /**
+     * Ask the placement engine whether the host can boot one more
+     * server for the game, counting its servers which are still
+     * booting.
+     */
+    Placement.Verdict checkPlacement(Game game, GameHost host) {
+        if (!placement.enabled) return Placement.Verdict.ADMIT;
+        Map<Integer, String> booting = new HashMap<>();
+        for (Server server: servers) {
+            if (server.host != host || server.state != Server.State.BOOT || server.currentGame == null) continue;
+            Game other = openGames.get(server.currentGame);
+            if (other != null) booting.put(server.index, other.name);
+        }
+        Placement.Verdict verdict = placement.admit(host.getSnapshot(), game.name, booting, System.currentTimeMillis());
+        String log = verdict == Placement.Verdict.ADMIT ? null : "Placement " + verdict + " " + game.name + " on " + host.getName() + ": " + placement.getLastReason();
+        if (log != null && !log.equals(lastPlacementLog)) System.out.println(log);
+        lastPlacementLog = log;
+        return verdict;
+    }
+
+    /**
+     * Feed the usage of running game servers into the resource
+     * profile of their game type, once per new snapshot.
+     */
+    void updateProfiles() {
+        Map<GameHost, HostMetrics.Snapshot> fresh = new HashMap<>();
+        for (Server server: servers) {
+            if (fresh.containsKey(server.host)) continue;
+            HostMetrics.Snapshot snapshot = server.host.getSnapshot();
+            if (snapshot == null || snapshot == lastSnapshots.get(server.host)) continue;
+            fresh.put(server.host, snapshot);
+        }
+        if (fresh.isEmpty()) return;
+        lastSnapshots.putAll(fresh);
+        for (Server server: servers) {
+            if (server.state != Server.State.RUN || server.currentGame == null) continue;
+            HostMetrics.Snapshot snapshot = fresh.get(server.host);
+            if (snapshot == null) continue;
+            HostMetrics.Usage usage = snapshot.servers.get(server.index);
+            Game game = openGames.get(server.currentGame);
+            if (usage == null || game == null) continue;
+            placement.update(game.name, usage);
+        }
+    }
+
+    /**
+     * Return the server to the pool and give it to the next
+     * queued game, if any.
+     */
+    void releaseServer(Server server) {
+        server.reset();
+        dirtyServers = true;
+        if (!startQueue.isEmpty()) drainStartQueue();
+    }
+
+    /**
+     * Start the game on a free server, if there is one.
+     * @return true if the game was started
+     */
+    boolean tryStartGame(Game game, Map<GameHost, Placement.Verdict> verdicts) {
+        Server server = findFreeServer(game, verdicts);
+        if (server == null) return false;
+        for (UUID member: game.members) {
+            sendMessage(member, "Get ready. Your game will start momentarily.");
+        }
+        startGame(game, server);
+        return true;
+    }
+
+    void startGame(final Game game, final Server server) {
+        // A random map may as well be the one already staged.
+        if (game.mapId == null && server.isStagedFor(game.name, null)) game.mapId = server.stagedMap;
+        final boolean staged = server.isStagedFor(game.name, game.mapId);
+        if (staged) {
+            demand.hits += 1;
+            demand.savedMillis += server.stagedMillis;
+        } else if (prestageBudget > 0) {
+            demand.misses += 1;
+            if (server.state == Server.State.STAGED) demand.evictions += 1;
+        }
+        server.reset();
+        server.currentGame = game.uniqueId;
+        game.serverId = server.index;
+        server.state = Server.State.BOOT;
+        dirtyServers = true;
+        dirtyGames = true;
+        markGame(game, GameTimings.START);
+        // Running e.g.: ./script/base-game.setup colorfall /home/creative/minecraft/worlds/Colorhunt
+        WorldInfo worldInfo;
+        if (game.mapId != null) {
+            worldInfo = findWorldInfo(game.name, game.mapId);
+        } else {
+            List<WorldInfo> infos = findGameWorlds(game.name);
+            worldInfo = infos.get(random.nextInt(infos.size()));
+            game.mapId = worldInfo.mapId;
+        }
+        List<PlayMode> gamePlayModes = findPlayModes(game.name);
+        if (!gamePlayModes.isEmpty() && game.playMode == null) {
+            game.playMode = gamePlayModes.get(random.nextInt(gamePlayModes.size())).modeId;
+        }
+        demand.recordStart(game.name, game.mapId, System.currentTimeMillis());
+        dirtyDemand = true;
+        launchServer(game, server, staged, worldInfo.mapPath, false);
+    }
+
+    /**
+     * Set up and start the server for the game on a worker thread,
+     * then report back to syncGameSetupFinished().
+     * @param resume Try to adopt a server launched by an earlier run
+     *   first
+     */
+    void launchServer(final Game game, final Server server, final boolean staged, final String mapPath, final boolean resume) {
+        final GameHost host = server.host;
+        provisioning += 1;
+        flushSlots();
+        Runnable run = () -> {
+            // Phase timestamps are collected here and handed to the
+            // main thread along with the result.
+            final Map<String, Long> phases = new HashMap<>();
+            int ret = -1;
+            if (resume) {
+                ret = host.resume(server.index, phases);
+                if (ret == 0) phases.put(GameTimings.READY, System.currentTimeMillis());
+            }
+            if (ret != 0 && ret != GameHost.HOST_LOST) {
+                if (staged) {
+                    // Setup already ran ahead of demand; no setup interval.
+                    ret = 0;
+                } else {
+                    phases.put(GameTimings.SETUP, System.currentTimeMillis());
+                    ret = host.setup(game.setupScript, game.name, server.index, mapPath);
+                }
+                phases.put(GameTimings.SETUP_DONE, System.currentTimeMillis());
+            }
+            if (ret == 0 && !phases.containsKey(GameTimings.READY)) {
+                Map<String, Object> gameConfigMap = new HashMap<>();
+                game.store(JsonSink.of(gameConfigMap));
+                ret = host.start(server.index, 2600 + server.index, gameConfigMap, phases);
+                if (ret == 0) phases.put(GameTimings.READY, System.currentTimeMillis());
+            }
             final int retval = ret; // Value type must be final :(
-            tasks.add(() -> syncGameSetupFinished(retval, server.index, game.uniqueId));
+            final long pid = ret == 0 ? host.getPid(server.index) : -1L;
+            tasks.add(new Task("setup:game" + server.index, () -> syncGameSetupFinished(retval, server.index, game.uniqueId, phases, pid))
+                      .about("game" + server.index, phases),
+                      TaskQueue.Lane.LIFECYCLE);
         };
         new Thread(run).start();
     }
 
-    void syncGameSetupFinished(int retval, int serverIndex, UUID gameId) {
-        final Server server = servers.get(serverIndex);
+    void syncGameSetupFinished(int retval, int serverIndex, UUID gameId, Map<String, Long> phases, long pid) {
+        provisioning -= 1;
+        final Server server = getServer(serverIndex);
         final Game game = openGames.get(gameId);
+        if (game == null) {
+            // Cancelled while booting.  Stop what came up and free
+            // the slot.
+            if (retval == 0) stopGameSession(serverIndex);
+            releaseServer(server);
+            return;
+        }
+        for (String phase: Arrays.asList(GameTimings.SETUP, GameTimings.SETUP_DONE, GameTimings.LAUNCH, GameTimings.READY)) {
+            Long time = phases.get(phase);
+            if (time != null) markGame(game, phase, time);
+        }
+        if (retval == GameHost.HOST_LOST) {
+            // Fail over to another host.  The game keeps its map.
+            System.err.println("Host " + server.host.getName() + " lost game" + serverIndex + ", restarting " + game.uniqueId);
+            for (UUID member: game.members) {
+                sendMessage(member, ChatColor.YELLOW, "Your game server went away. Starting your game elsewhere.");
+            }
+            game.serverId = -1;
+            // The host may have gone on to bring the server up, so
+            // the slot stays out of use until it reports the slot
+            // empty, see checkServerLiveness().
+            server.reset();
+            server.state = Server.State.SHUTDOWN;
+            server.host.stop(serverIndex);
+            dirtyServers = true;
+            dirtyGames = true;
+            requestStart(game);
+            return;
+        }
+        markGame(game, GameTimings.FINISH);
         if (retval != 0) {
             for (UUID member: game.members) {
                 sendMessage(member, ChatColor.RED, "Your game could not be created. Please contact an administrator, or try again later.");
-                users.remove(member);
             }
-            server.reset();
+            removeGame(game);
+            releaseServer(server);
         } else {
             server.state = Server.State.RUN;
+            server.pid = pid;
             for (UUID member: game.members) {
                 sendMessage(member, "Your game is ready.");
-                sendPlayerToServer(member, "game" + server.index);
             }
+            sendPlayersToServer(game.members, "game" + server.index);
+            markGame(game, GameTimings.SENT);
         }
         dirtyServers = true;
     }
 
     void sendPlayerToServer(UUID playerId, String serverName) {
-        Map<String, String> map = new HashMap<>();
-        map.put("player", playerId.toString());
-        map.put("server", serverName);
-        connect.broadcast("SEND_PLAYER_SERVER", map);
+        sendPlayersToServer(Collections.singletonList(playerId), serverName);
     }
 
-    // Messages sent by a running game (server) to the daemon.
-    @SuppressWarnings("unchecked")
-    void syncMinigamesMessage(Message message) {
-        Map<String, Object> map = (Map<String, Object>)message.getPayload();
-        String action = (String)map.get("action");
-        switch (action) {
+    /**
+     * Move the players to the server, and check on them later, see
+     * Transfers.
+     */
+    void sendPlayersToServer(Collection<UUID> players, String serverName) {
+        if (players.isEmpty()) return;
+        sendTransfers(transfers.request(players, serverName, playerLocations()));
+        if (transferTimer == null) transferTimer = schedule(Transfers.VERIFY_DELAY, new Task("transfers", this::verifyTransfers));
+    }
+
+    void verifyTransfers() {
+        transferTimer = null;
+        List<Transfers.Pending> failures = new ArrayList<>();
+        sendTransfers(transfers.verify(playerLocations(), this::isTransferWanted, failures));
+        for (Transfers.Pending failure: failures) {
+            System.err.println("Transfer of " + failure.player + " to " + failure.server + " failed");
+            sendMessage(failure.player, ChatColor.RED, "Could not send you to your game. Please contact an administrator.");
+        }
+        if (!transfers.isEmpty()) transferTimer = schedule(Transfers.VERIFY_DELAY, new Task("transfers", this::verifyTransfers));
+    }
+
+    /**
+     * Whether the player is still in the game running on the server
+     * the transfer goes to.
+     */
+    boolean isTransferWanted(Transfers.Pending transfer) {
+        User user = users.get(transfer.player);
+        if (user == null || user.currentGame == null) return false;
+        Game game = openGames.get(user.currentGame);
+        return game != null && game.serverId >= 0 && transfer.server.equals("game" + game.serverId);
+    }
+
+    void sendTransfers(List<Transfers.Send> sends) {
+        for (Transfers.Send transfer: sends) {
+            if (transfer.target == null) {
+                broadcast(Transfers.CHANNEL, transfer.payload);
+            } else {
+                send(transfer.target, Transfers.CHANNEL, transfer.payload);
+            }
+        }
+    }
+
+    /**
+     * @return Each online player's current server
+     */
+    Map<UUID, String> playerLocations() {
+        Map<UUID, String> result = new HashMap<>();
+        for (Map.Entry<String, List<OnlinePlayer>> entry: network.listPlayers().entrySet()) {
+            for (OnlinePlayer player: entry.getValue()) result.put(player.getUuid(), entry.getKey());
+        }
+        return result;
+    }
+
+    /**
+     * Messages sent by a running game (server) to the daemon, already
+     * checked by MinigamesMessage.decode().
+     */
+    void syncMinigamesMessage(String from, MinigamesMessage message) {
+        if (cluster != null && findServer(from) == null) {
+            // A server of another member which sent to the wrong one.
+            String owner = cluster.findSlot(from, System.currentTimeMillis());
+            if (owner != null) {
+                Map<String, Object> payload = new HashMap<>();
+                payload.put("kind", "minigames");
+                payload.put("from", from);
+                payload.put("message", message.encode(false));
+                send(owner, Cluster.CHANNEL, payload);
+                cluster.forwardedMessages += 1;
+                return;
+            }
+        }
+        switch (message.action) {
             // The inbound player_leave_game comes from the server
             // running the game.  They will have done most of the work
             // already, which is to kick the player.
-        case "player_leave_game":
-            if (map.containsKey("player") && map.containsKey("game")) {
-                UUID player = UUID.fromString((String)map.get("player"));
-                UUID gameId = UUID.fromString((String)map.get("game"));
-                User user = users.get(player);
-                if (user == null || user.currentGame == null || !user.currentGame.equals(gameId)) return;
-                users.remove(player);
+        case PLAYER_LEAVE_GAME: {
+            User user = users.get(message.player);
+            if (user == null || user.currentGame == null || !user.currentGame.equals(message.game)) return;
+            Game game = openGames.get(message.game);
+            if (game == null) {
+                users.remove(message.player);
                 dirtyUsers = true;
-                Game game = openGames.get(gameId);
-                if (game == null) return;
-                game.members.remove(player);
-                game.spectators.remove(player);
+                return;
             }
+            removeMember(game, message.player);
             break;
-        case "game_add_player":
+        }
             // We assume that the player issued the command to join an
             // already game.  The plugin on the server running said
             // game did the necessary internal checks and then sent
             // this message to the Daemon.
-            if (map.containsKey("player") && map.containsKey("game")) {
-                UUID playerId = UUID.fromString((String)map.get("player"));
-                UUID gameId = UUID.fromString((String)map.get("game"));
-                User user = getUser(playerId);
-                if (user.currentGame != null) {
-                    sendMessage(playerId, ChatColor.RED, "You are already in a game.");
-                    return;
-                }
-                Game game = openGames.get(gameId);
-                if (game == null) {
-                    sendMessage(playerId, ChatColor.RED, "Game not found.");
-                    return;
-                }
-                user.currentGame = gameId;
-                game.members.add(playerId);
-                dirtyUsers = true;
-                dirtyGames = true;
-                if (game.serverId >= 0) { // Should always be true in this situation.
-                    sendPlayerToServer(playerId, "game" + game.serverId);
-                }
+        case GAME_ADD_PLAYER:
+        case GAME_ADD_SPECTATOR: {
+            User user = getUser(message.player);
+            if (user.currentGame != null) {
+                sendMessage(message.player, ChatColor.RED, "You are already in a game.");
+                return;
             }
-            break;
-        case "game_add_spectator":
-            if (map.containsKey("player") && map.containsKey("game")) {
-                UUID playerId = UUID.fromString((String)map.get("player"));
-                UUID gameId = UUID.fromString((String)map.get("game"));
-                User user = getUser(playerId);
-                if (user.currentGame != null) {
-                    sendMessage(playerId, ChatColor.RED, "You are already in a game.");
-                    return;
-                }
-                Game game = openGames.get(gameId);
-                if (game == null) {
-                    sendMessage(playerId, ChatColor.RED, "Game not found.");
-                    return;
-                }
-                user.currentGame = gameId;
-                game.members.add(playerId);
-                game.spectators.add(playerId);
-                dirtyUsers = true;
-                dirtyGames = true;
-                if (game.serverId >= 0) { // Should always be true in this situation.
-                    sendPlayerToServer(playerId, "game" + game.serverId);
-                }
+            Game game = openGames.get(message.game);
+            if (game == null) {
+                sendMessage(message.player, ChatColor.RED, "Game not found.");
+                return;
             }
-            break;
-        case "game_end":
-            if (map.containsKey("game")) {
-                UUID gameId = UUID.fromString((String)map.get("game"));
-                if (gameId == null) return;
-                Game game = openGames.get(gameId);
-                if (game == null) return;
-                for (UUID memberId: game.members) {
-                    users.remove(memberId);
-                    dirtyUsers = true;
-                }
-                openGames.remove(gameId);
-                dirtyGames = true;
+            enterGame(user, message.game);
+            game.members.add(message.player);
+            if (message.action == MinigamesMessage.Action.GAME_ADD_SPECTATOR) game.spectators.add(message.player);
+            dirtyGames = true;
+            if (game.serverId >= 0) { // Should always be true in this situation.
+                sendPlayerToServer(message.player, "game" + game.serverId);
             }
             break;
-        case "game_config":
-            if (map.containsKey("game") && map.containsKey("key") && map.containsKey("value")) {
-                UUID gameId = UUID.fromString((String)map.get("game"));
-                if (gameId == null) return;
-                Game game = openGames.get(gameId);
-                if (game == null) return;
-                Map<String, Object> config = new HashMap<>();
-                config.put((String)map.get("key"), map.get("value"));
-                game.load(config);
-                dirtyGames = true;
-            }
+        }
+        case GAME_END: {
+            Game game = openGames.get(message.game);
+            if (game == null) return;
+            markGame(game, GameTimings.END);
+            removeGame(game);
+            break;
+        }
+        case ACK: {
+            Server server = findServer(from);
+            if (server != null && server.outbox.ack(message.seq)) dirtyServers = true;
+            break;
+        }
+        case GAME_CONFIG: {
+            Game game = openGames.get(message.game);
+            if (game == null) return;
+            Map<String, Object> config = new HashMap<>();
+            config.put(message.key, message.value);
+            game.load(config);
+            dirtyGames = true;
             break;
+        }
         default:
             break;
         }
@@ -1638,6 +3470,11 @@ public final class Daemon implements ConnectHandler {
         case "stop":
             if (args.length == 0) {
                 System.out.println("Stopping Daemon...");
+                beginDrain();
+                return;
+            }
+            if (args.length == 1 && args[0].equals("now")) {
+                System.out.println("Stopping Daemon now...");
                 shouldStop = true;
                 return;
             }
@@ -1645,7 +3482,7 @@ public final class Daemon implements ConnectHandler {
         case "list":
             if (args.length == 0) {
                 System.out.println("Server Player List");
-                for (Map.Entry<String, List<OnlinePlayer>> entry: connect.listPlayers().entrySet()) {
+                for (Map.Entry<String, List<OnlinePlayer>> entry: network.listPlayers().entrySet()) {
                     System.out.println("= " + entry.getKey() + " (" + entry.getValue().size() + ")");
                     for (OnlinePlayer player: entry.getValue()) {
                         System.out.println("  - " + player.getName());
@@ -1658,21 +3495,15 @@ public final class Daemon implements ConnectHandler {
             if (args.length == 0) {
                 System.out.println("Users " + users.size());
                 for (User user: users.values()) {
-                    Map<String, Object> map = new HashMap<>();
-                    user.store(map);
-                    System.out.println("  " + JSONValue.toJSONString(map));
+                    System.out.println("  " + JsonWriter.record(user, User::store));
                 }
                 System.out.println("Servers " + servers.size());
                 for (Server server: servers) {
-                    Map<String, Object> map = new HashMap<>();
-                    server.store(map);
-                    System.out.println("  " + JSONValue.toJSONString(map));
+                    System.out.println("  " + JsonWriter.record(server, Server::store));
                 }
                 System.out.println("Games " + openGames.size());
                 for (Game game: openGames.values()) {
-                    Map<String, Object> map = new HashMap<>();
-                    game.store(map);
-                    System.out.println("  " + JSONValue.toJSONString(map));
+                    System.out.println("  " + JsonWriter.record(game, Game::store));
                 }
                 return;
             }
@@ -1696,6 +3527,8 @@ public final class Daemon implements ConnectHandler {
                 loadGames();
                 System.out.println("Loading open games...");
                 loadOpenGames();
+                loadDaemonConfig();
+                schedule(0L, new Task("audit", this::audit));
                 System.out.println("Flushing all cached config files...");
                 playerCache = null;
                 worldInfos = null;
@@ -1704,13 +3537,20 @@ public final class Daemon implements ConnectHandler {
             }
             break;
         case "sleep":
-            if (args.length == 0) {
-                System.out.println("Sleeping for 10 seconds...");
+            // Never on the main thread: the rest runs when it is due.
+            if (args.length >= 1) {
+                final long seconds;
                 try {
-                    Thread.sleep(10000);
-                } catch (InterruptedException ie) {
-                    ie.printStackTrace();
+                    seconds = Long.parseLong(args[0]);
+                } catch (NumberFormatException nfe) {
+                    break;
                 }
+                final String[] rest = Arrays.copyOfRange(args, 1, args.length);
+                System.out.println("Sleeping for " + seconds + " seconds...");
+                schedule(seconds * 1000L, new Task("console:sleep", () -> {
+                            System.out.println("Slept for " + seconds + " seconds");
+                            if (rest.length > 0) syncConsoleCommand(rest[0], Arrays.copyOfRange(rest, 1, rest.length));
+                        }));
                 return;
             }
             break;
@@ -1718,10 +3558,13 @@ public final class Daemon implements ConnectHandler {
             if (args.length == 0) {
                 System.out.println("Resetting all runtime data...");
                 users.clear();
+                userCache.clear();
                 for (Server server: servers) {
                     server.reset();
                 }
                 openGames.clear();
+                indexOpenGames();
+                matchQueues.clear();
                 dirtyUsers = true;
                 dirtyServers = true;
                 dirtyGames = true;
@@ -1731,20 +3574,175 @@ public final class Daemon implements ConnectHandler {
                 return;
             }
             break;
+        case "timings":
+            if (args.length <= 1) {
+                String filter = args.length == 0 ? null : args[0];
+                System.out.println("Game timings (ms)" + (filter == null ? "" : " matching " + filter));
+                for (String line: timings.report(filter)) {
+                    System.out.println("  " + line);
+                }
+                for (Game game: openGames.values()) {
+                    if (game.timeline == null) continue;
+                    if (filter != null && !game.name.contains(filter)) continue;
+                    System.out.println("  open " + game.name + " " + game.uniqueId + " " + game.timeline);
+                }
+                return;
+            }
+            break;
+        case "demand":
+            if (args.length == 0) {
+                System.out.println("Demand forecast for the next " + (PRESTAGE_HORIZON / 60000L) + " minutes, budget " + prestageBudget);
+                for (String line: demand.report(System.currentTimeMillis(), PRESTAGE_HORIZON)) {
+                    System.out.println("  " + line);
+                }
+                for (Server server: servers) {
+                    if (server.stagedGame == null) continue;
+                    System.out.println("  game" + server.index + " " + server.state + " " + server.stagedGame + "/" + server.stagedMap);
+                }
+                return;
+            }
+            break;
+        case "placement":
+            if (args.length == 0) {
+                System.out.println("Placement");
+                for (String line: placement.report(localHost.getSnapshot())) {
+                    System.out.println("  " + line);
+                }
+                for (RemoteHost host: remoteHosts) {
+                    System.out.println("Host " + host.getName() + (host.isConnected() ? " connected" : " disconnected")
+                                       + " slots=" + host.getCapacity() + " children=" + host.getChildren());
+                    for (String line: Placement.reportHost(host.getSnapshot())) {
+                        System.out.println("  " + line);
+                    }
+                }
+                return;
+            }
+            break;
+        case "log":
+            if (args.length == 1 || args.length == 2) {
+                int index;
+                int lines;
+                try {
+                    index = Integer.parseInt(args[0]);
+                    lines = args.length == 2 ? Integer.parseInt(args[1]) : 20;
+                } catch (NumberFormatException nfe) {
+                    break;
+                }
+                Server server = getServer(index);
+                if (server == null) break;
+                final GameHost host = server.host;
+                final int logIndex = index;
+                final int logLines = lines;
+                // A remote host answers over the network, so not on
+                // the main thread.
+                new Thread(() -> {
+                        List<String> log = host.getLog(logIndex, logLines);
+                        System.out.println("game" + logIndex + " on " + host.getName() + " pid " + host.getPid(logIndex));
+                        for (String line: log) {
+                            System.out.println("  " + line);
+                        }
+                    }, "Log-game" + index).start();
+                return;
+            }
+            break;
         case "exec":
             if (args.length > 0) {
                 System.out.println("Executing " + Arrays.asList(args));
                 ProcessBuilder pb = new ProcessBuilder(args);
-                pb.redirectOutput(ProcessBuilder.Redirect.PIPE);
-                pb.redirectError(ProcessBuilder.Redirect.PIPE);
+                pb.directory(baseDir);
                 try {
-                    pb.start();
+                    final Processes.Child child = Processes.capture(pb, EXEC_TIMEOUT);
+                    child.process.onExit().thenRun(() -> {
+                            System.out.println("Exec " + child.command + " exited with " + child.process.exitValue()
+                                               + (child.timedOut ? " (timed out)" : ""));
+                            for (String line: child.output.tail(EXEC_LINES)) System.out.println("  " + line);
+                        });
                 } catch (IOException ioe) {
                     ioe.printStackTrace();
                 }
                 return;
             }
             break;
+        case "admission":
+            if (args.length == 0) {
+                for (String line: admission.report()) System.out.println(line);
+                System.out.println("malformed minigames messages: " + malformedMessages.get());
+                return;
+            }
+            break;
+        case "expiry":
+            if (args.length == 0) {
+                System.out.println(String.format("lobby_ttl=%s owner_idle_ttl=%s invite_ttl=%s armed=%d",
+                                                 formatDuration(lobbyTtl), formatDuration(ownerIdleTtl),
+                                                 formatDuration(inviteTtl), expiryTimers.size()));
+                return;
+            }
+            break;
+        case "cluster":
+            if (args.length == 0) {
+                if (cluster == null) {
+                    System.out.println("Not in a cluster, see the cluster section");
+                } else {
+                    List<String> names = new ArrayList<>();
+                    for (Game game: games) names.add(game.name);
+                    for (String line: cluster.report(System.currentTimeMillis(), names)) System.out.println(line);
+                }
+                return;
+            }
+            break;
+        case "replication":
+            if (args.length == 0) {
+                if (replication == null) {
+                    System.out.println("Replication is off, see replication_port");
+                } else {
+                    for (String line: replication.report()) System.out.println(line);
+                }
+                return;
+            }
+            break;
+        case "watchdog":
+            if (args.length == 0) {
+                for (String line: watchdog.report()) System.out.println(line);
+                return;
+            }
+            break;
+        case "queue":
+            if (args.length == 0) {
+                for (String line: tasks.report()) System.out.println(line);
+                return;
+            }
+            if (args.length == 1 && args[0].equals("reset")) {
+                tasks.clearStats();
+                System.out.println("Queue stats cleared");
+                return;
+            }
+            break;
+        case "transfers":
+            if (args.length == 0) {
+                System.out.println(transfers.report());
+                return;
+            }
+            break;
+        case "outbox":
+            if (args.length == 0) {
+                for (Server server: servers) {
+                    System.out.println("game" + server.index + " " + server.outbox.report());
+                }
+                return;
+            }
+            break;
+        case "users":
+            if (args.length == 0) {
+                for (String line: reportUsers()) System.out.println(line);
+                return;
+            }
+            break;
+        case "children":
+            if (args.length == 0) {
+                for (String line: Processes.report(System.currentTimeMillis())) System.out.println(line);
+                return;
+            }
+            break;
         case "worlds":
             if (args.length == 0) {
                 int i = 0;
@@ -1761,37 +3759,32 @@ public final class Daemon implements ConnectHandler {
     }
 
     boolean gameSessionExists(int id) {
-        try {
-            ProcessBuilder pb = new ProcessBuilder("script/game.exists", "" + id);
-            int retval = pb.start().waitFor();
-            return retval == 0;
-        } catch (IOException ioe) {
-            ioe.printStackTrace();
-            return false;
-        } catch (InterruptedException ie) {
-            ie.printStackTrace();
-            return false;
-        }
+        return getServer(id).host.exists(id);
     }
 
     void stopGameSession(int id) {
-        try {
-            ProcessBuilder pb = new ProcessBuilder("script/game.stop", "" + id);
-            pb.start();
-        } catch (IOException ioe) {
-            ioe.printStackTrace();
-        }
+        getServer(id).host.stop(id);
     }
 
     void usage() {
         System.out.println("Available Commands:");
-        System.out.println("stop - stop the server");
+        System.out.println("stop [now] - stop the server, gracefully unless now");
         System.out.println("list - list servers and players");
         System.out.println("info - dump info about users, servers, games");
         System.out.println("save - save servers and users");
         System.out.println("reload - reload all configs");
-        System.out.println("sleep - sleep for 10 seconds");
+        System.out.println("sleep <seconds> [command] - run a command later");
         System.out.println("exec - execute file");
+        System.out.println("children - live child processes");
+        System.out.println("queue [reset] - task queue wait per priority lane");
+        System.out.println("admission - task admission limits and rejections");
+        System.out.println("watchdog - main thread stalls");
+        System.out.println("replication - connected standbys");
+        System.out.println("cluster - members and game type owners");
+        System.out.println("timings [filter] - game startup phase percentiles");
+        System.out.println("demand - demand forecast and pre-staging report");
+        System.out.println("placement - host metrics and game resource profiles");
+        System.out.println("log <index> [lines] - recent output of a game server");
     }
 
     // Database
@@ -1800,15 +3793,18 @@ public final class Daemon implements ConnectHandler {
     Connection getDatabaseConnection(String database) throws Exception {
         Class.forName("com.mysql.jdbc.Driver");
         Map<String, Object> map;
-        map = (Map<String, Object>)JSONValue.parseWithException(new FileReader("config/sql.conf"));
+        map = (Map<String, Object>)JSONValue.parseWithException(new FileReader(file("config/sql.conf")));
         return DriverManager.getConnection("jdbc:mysql://" + map.get("host") + ":" + map.get("port") + "/" + database, (String)map.get("user"), (String)map.get("password"));
     }
 
     Map<UUID, String> getPlayerCache() {
         if (playerCache == null) {
             playerCache = new HashMap<>();
+            final String query = "SELECT `uuid`, `name` FROM `players`";
+            Events.Query event = new Events.Query();
+            event.begin();
             try {
-                ResultSet result = getDatabaseConnection("PlayerCache").createStatement().executeQuery("SELECT `uuid`, `name` FROM `players`");
+                ResultSet result = getDatabaseConnection("PlayerCache").createStatement().executeQuery(query);
                 while (result.next()) {
                     UUID uuid = UUID.fromString(result.getString("uuid"));
                     String name = result.getString("name");
@@ -1817,12 +3813,20 @@ public final class Daemon implements ConnectHandler {
             } catch (Exception e) {
                 e.printStackTrace();
             }
+            event.end();
+            if (event.shouldCommit()) {
+                event.target = "PlayerCache";
+                event.query = query;
+                event.rows = playerCache.size();
+                event.commit();
+            }
         }
         return playerCache;
     }
 
     String getUserName(UUID uuid) {
         User user = users.get(uuid);
+        if (user == null) user = userCache.get(uuid);
         if (user != null && user.name != null) return user.name;
         String result = getPlayerCache().get(uuid);
         if (result != null) return result;
@@ -0,0 +1,215 @@
+package com.winthier.daemon;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * Forecast game starts per game type from the local hour of the
+ * week in which past games were created and started.  Each of the
+ * 168 hourly slots keeps a count which halves with every week of
+ * age, so recent weeks weigh more than old ones.  Maps are counted
+ * the same way, without regard to the hour.
+ */
+final class DemandForecast {
+    static final long HOUR = 60L * 60L * 1000L;
+    static final long WEEK = 7L * 24L * HOUR;
+    static final int SLOTS = 168;
+    static final double DECAY = 0.5;
+    private final Map<String, Type> types = new TreeMap<>();
+    // Outcome of pre-staged servers
+    long hits, misses, evictions, savedMillis;
+
+    static final class Type {
+        private final Counter creates = new Counter();
+        private final Counter starts = new Counter();
+        private final Map<String, Double> maps = new HashMap<>();
+    }
+
+    static final class Counter {
+        private final double[] counts = new double[SLOTS];
+        private final long[] weeks = new long[SLOTS]; // Week of the last update, per slot
+
+        void add(long time) {
+            int slot = slotOf(time);
+            counts[slot] = valueAt(slot, weekOf(time)) + 1.0;
+            weeks[slot] = weekOf(time);
+        }
+
+        // Count of the slot, aged to the given week.
+        double valueAt(int slot, long week) {
+            if (counts[slot] == 0 || week <= weeks[slot]) return counts[slot];
+            return counts[slot] * Math.pow(DECAY, week - weeks[slot]);
+        }
+
+        // Expected events per week within the slot.
+        double perWeek(int slot, long week) {
+            return valueAt(slot, week) * (1.0 - DECAY);
+        }
+
+        void store(List<Object> list) {
+            for (int i = 0; i < SLOTS; i += 1) {
+                if (counts[i] == 0) continue;
+                List<Object> triple = new ArrayList<>(3);
+                triple.add(i);
+                triple.add(counts[i]);
+                triple.add(weeks[i]);
+                list.add(triple);
+            }
+        }
+
+        void load(List<List<Number>> list) {
+            for (List<Number> triple: list) {
+                int slot = triple.get(0).intValue();
+                if (slot < 0 || slot >= SLOTS) continue;
+                counts[slot] = triple.get(1).doubleValue();
+                weeks[slot] = triple.get(2).longValue();
+            }
+        }
+    }
+
+    static long localTime(long time) {
+        return time + TimeZone.getDefault().getOffset(time);
+    }
+
+    static int slotOf(long time) {
+        return (int)((localTime(time) % WEEK) / HOUR);
+    }
+
+    static long weekOf(long time) {
+        return localTime(time) / WEEK;
+    }
+
+    Type get(String gameName) {
+        Type type = types.get(gameName);
+        if (type == null) {
+            type = new Type();
+            types.put(gameName, type);
+        }
+        return type;
+    }
+
+    void recordCreate(String gameName, long time) {
+        get(gameName).creates.add(time);
+    }
+
+    void recordStart(String gameName, String mapId, long time) {
+        Type type = get(gameName);
+        type.starts.add(time);
+        if (mapId == null) return;
+        for (Map.Entry<String, Double> entry: type.maps.entrySet()) {
+            entry.setValue(entry.getValue() * 0.95);
+        }
+        Double old = type.maps.get(mapId);
+        type.maps.put(mapId, (old == null ? 0.0 : old) + 1.0);
+    }
+
+    /**
+     * Expected number of starts of the game type between now and
+     * now + horizon, from the starts in the overlapping hourly
+     * slots of past weeks.
+     */
+    double forecast(String gameName, long now, long horizon) {
+        Type type = types.get(gameName);
+        if (type == null) return 0;
+        long week = weekOf(now);
+        double result = 0;
+        long time = now;
+        long end = now + horizon;
+        while (time < end) {
+            long slotEnd = Math.min(end, time - localTime(time) % HOUR + HOUR);
+            result += type.starts.perWeek(slotOf(time), week) * (double)(slotEnd - time) / (double)HOUR;
+            time = slotEnd;
+        }
+        return result;
+    }
+
+    /**
+     * @return The map most often started lately, or null
+     */
+    String likelyMap(String gameName) {
+        Type type = types.get(gameName);
+        if (type == null) return null;
+        String result = null;
+        double best = 0;
+        for (Map.Entry<String, Double> entry: type.maps.entrySet()) {
+            if (entry.getValue() > best) {
+                best = entry.getValue();
+                result = entry.getKey();
+            }
+        }
+        return result;
+    }
+
+    void clear() {
+        types.clear();
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+        savedMillis = 0;
+    }
+
+    void store(Map<String, Object> map) {
+        Map<String, Object> typesMap = new HashMap<>();
+        for (Map.Entry<String, Type> entry: types.entrySet()) {
+            Type type = entry.getValue();
+            Map<String, Object> typeMap = new HashMap<>();
+            List<Object> creates = new ArrayList<>();
+            type.creates.store(creates);
+            typeMap.put("creates", creates);
+            List<Object> starts = new ArrayList<>();
+            type.starts.store(starts);
+            typeMap.put("starts", starts);
+            typeMap.put("maps", new HashMap<>(type.maps));
+            typesMap.put(entry.getKey(), typeMap);
+        }
+        map.put("types", typesMap);
+        map.put("hits", hits);
+        map.put("misses", misses);
+        map.put("evictions", evictions);
+        map.put("saved_millis", savedMillis);
+    }
+
+    @SuppressWarnings("unchecked")
+    void load(Map<String, Object> map) {
+        clear();
+        if (map.containsKey("types")) {
+            Map<String, Object> typesMap = (Map<String, Object>)map.get("types");
+            for (Map.Entry<String, Object> entry: typesMap.entrySet()) {
+                Map<String, Object> typeMap = (Map<String, Object>)entry.getValue();
+                Type type = get(entry.getKey());
+                if (typeMap.containsKey("creates")) type.creates.load((List<List<Number>>)typeMap.get("creates"));
+                if (typeMap.containsKey("starts")) type.starts.load((List<List<Number>>)typeMap.get("starts"));
+                if (typeMap.containsKey("maps")) {
+                    for (Map.Entry<String, Object> entry2: ((Map<String, Object>)typeMap.get("maps")).entrySet()) {
+                        type.maps.put(entry2.getKey(), ((Number)entry2.getValue()).doubleValue());
+                    }
+                }
+            }
+        }
+        if (map.containsKey("hits")) hits = ((Number)map.get("hits")).longValue();
+        if (map.containsKey("misses")) misses = ((Number)map.get("misses")).longValue();
+        if (map.containsKey("evictions")) evictions = ((Number)map.get("evictions")).longValue();
+        if (map.containsKey("saved_millis")) savedMillis = ((Number)map.get("saved_millis")).longValue();
+    }
+
+    List<String> report(long now, long horizon) {
+        List<String> lines = new ArrayList<>();
+        long week = weekOf(now);
+        int slot = slotOf(now);
+        for (Map.Entry<String, Type> entry: types.entrySet()) {
+            Type type = entry.getValue();
+            lines.add(String.format("%s next=%.2f this_hour_creates=%.2f this_hour_starts=%.2f map=%s",
+                                    entry.getKey(), forecast(entry.getKey(), now, horizon),
+                                    type.creates.perWeek(slot, week), type.starts.perWeek(slot, week),
+                                    likelyMap(entry.getKey())));
+        }
+        long total = hits + misses;
+        lines.add(String.format("staging hits=%d misses=%d evictions=%d hit_rate=%.1f%% saved=%dms",
+                                hits, misses, evictions, total == 0 ? 0.0 : 100.0 * hits / total, savedMillis));
+        return lines;
+    }
+}
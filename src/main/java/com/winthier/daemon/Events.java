@@ -0,0 +1,122 @@
+package com.winthier.daemon;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events emitted by the daemon.  They cost next
+ * to nothing unless a recording is running, e.g.
+ *   jcmd <pid> JFR.start name=daemon settings=profile
+ * Payload sizes are only computed when the event is going to be
+ * committed.
+ */
+final class Events {
+    private Events() { }
+
+    @Name("com.winthier.daemon.Task")
+    @Label("Daemon Task")
+    @Description("A task executed on the daemon main thread")
+    @Category({"Daemon", "Tasks"})
+    @StackTrace(false)
+    static final class Task extends Event {
+        @Label("Origin")
+        String origin;
+        @Label("Target")
+        String target;
+        @Label("Payload Size")
+        @DataAmount
+        long payloadSize;
+        @Label("Queue Size")
+        int queueSize;
+    }
+
+    @Name("com.winthier.daemon.Persist")
+    @Label("Daemon Persist")
+    @Description("A state file written to disk")
+    @Category({"Daemon", "Persistence"})
+    @StackTrace(false)
+    static final class Persist extends Event {
+        @Label("Target")
+        String target;
+        @Label("Payload Size")
+        @DataAmount
+        long payloadSize;
+    }
+
+    @Name("com.winthier.daemon.Fork")
+    @Label("Daemon Fork")
+    @Description("A child process started, and possibly waited for, by the daemon")
+    @Category({"Daemon", "Processes"})
+    @StackTrace(false)
+    static final class Fork extends Event {
+        @Label("Target")
+        String target;
+        @Label("Payload Size")
+        @DataAmount
+        long payloadSize;
+        @Label("Waited")
+        boolean waited;
+        @Label("Exit Code")
+        int exitCode;
+    }
+
+    @Name("com.winthier.daemon.Reject")
+    @Label("Task Rejected")
+    @Description("A task from outside refused by admission control")
+    @Category({"Daemon", "Tasks"})
+    @StackTrace(false)
+    static final class Reject extends Event {
+        @Label("Source")
+        String source;
+        @Label("Verdict")
+        String verdict;
+    }
+
+    @Name("com.winthier.daemon.ConnectSend")
+    @Label("Connect Send")
+    @Description("A message sent or broadcast via Connect")
+    @Category({"Daemon", "Connect"})
+    @StackTrace(false)
+    static final class ConnectSend extends Event {
+        @Label("Target")
+        String target;
+        @Label("Channel")
+        String channel;
+        @Label("Payload Size")
+        @DataAmount
+        long payloadSize;
+    }
+
+    @Name("com.winthier.daemon.Query")
+    @Label("Database Query")
+    @Description("A database query issued by the daemon")
+    @Category({"Daemon", "Database"})
+    @StackTrace(false)
+    static final class Query extends Event {
+        @Label("Target")
+        String target;
+        @Label("Query")
+        String query;
+        @Label("Rows")
+        int rows;
+    }
+
+    @Name("com.winthier.daemon.Stall")
+    @Label("Main Thread Stall")
+    @Description("A task which kept the daemon main thread past the watchdog threshold")
+    @Category({"Daemon", "Tasks"})
+    @StackTrace(false)
+    static final class Stall extends Event {
+        @Label("Origin")
+        String origin;
+        @Label("Stalled For")
+        @Timespan(Timespan.MILLISECONDS)
+        long stalledFor;
+    }
+}
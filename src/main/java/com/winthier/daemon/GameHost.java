@@ -0,0 +1,79 @@
+package com.winthier.daemon;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A machine which runs game server slots, see LocalHost and
+ * RemoteHost.  Slots are named by their global server index, which
+ * is also the server name on the network (gameN) and picks the port.
+ * Setup and start block for as long as the scripts run and are
+ * called from worker threads; the rest is quick enough for the main
+ * thread.
+ */
+interface GameHost {
+    // Exit code when the host went away during the call.
+    int HOST_LOST = -2;
+
+    String getName();
+
+    /**
+     * @return true if the host can take new games right now
+     */
+    boolean isAvailable();
+
+    /**
+     * @return The number of slots the host is willing to run
+     */
+    int getCapacity();
+
+    /**
+     * @return The latest host metrics, or null
+     */
+    HostMetrics.Snapshot getSnapshot();
+
+    /**
+     * Run the setup script, e.g. base-game.setup.
+     * @return The exit code
+     */
+    int setup(String script, String gameName, int index, String mapPath);
+
+    /**
+     * Write the game config, run game.prepare and launch the server
+     * via game.run, then wait for it to finish starting up.  The
+     * launch phase is added to the phases if known.
+     * @return The exit code, 0 if the server is up
+     */
+    int start(int index, int port, Map<String, Object> gameConfig, Map<String, Long> phases);
+
+    /**
+     * Wait for a server launched before the daemon restarted to
+     * finish starting up.
+     * @return 0 if the server is up.  Otherwise no server process
+     *   is left and it has to be set up again, or HOST_LOST.
+     */
+    int resume(int index, Map<String, Long> phases);
+
+    boolean exists(int index);
+
+    /**
+     * Stop the server gracefully, and forcibly if that fails.
+     */
+    void stop(int index);
+
+    /**
+     * @return The process id of the server, or -1
+     */
+    long getPid(int index);
+
+    /**
+     * @return The most recent lines of server output
+     */
+    List<String> getLog(int index, int lines);
+
+    /**
+     * Called from any thread when a server launched by start()
+     * exits.
+     */
+    void setExitListener(GameProcess.ExitListener listener);
+}
@@ -0,0 +1,121 @@
+package com.winthier.daemon;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.PushbackReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A game server JVM owned by this process, see script/game.run.
+ * Output goes into a ring buffer, which is also where the Done
+ * token of a finished startup shows up.  A stop sends "stop" on
+ * stdin, and escalates to SIGTERM and then SIGKILL if the server
+ * takes too long.
+ */
+final class GameProcess {
+    static final int LOG_LINES = 500;
+    static final String DONE_TOKEN = " Done ";
+    static final long STOP_TIMEOUT = 30000L;
+    private final int index;
+    private final Process process;
+    private final PrintWriter stdin;
+    private final LineBuffer log = new LineBuffer(LOG_LINES);
+    // Counted down by the Done token, or by the exit.
+    private final CountDownLatch startup = new CountDownLatch(1);
+    private volatile boolean ready, stopping;
+
+    interface ExitListener {
+        void onExit(int index, long pid, int exitCode);
+    }
+
+    private GameProcess(int index, Process process) {
+        this.index = index;
+        this.process = process;
+        this.stdin = new PrintWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8), true);
+    }
+
+    /**
+     * Start the process with stderr merged into stdout.
+     */
+    static GameProcess start(int index, ProcessBuilder pb, final ExitListener listener) throws IOException {
+        pb.redirectErrorStream(true);
+        final GameProcess result = new GameProcess(index, Processes.fork(pb));
+        Thread pump = new Thread(result::pump, "GameProcess-game" + index);
+        pump.setDaemon(true);
+        pump.start();
+        result.process.onExit().thenAccept(p -> {
+                result.startup.countDown();
+                if (listener != null) listener.onExit(result.index, p.pid(), p.exitValue());
+            });
+        return result;
+    }
+
+    private void pump() {
+        try (PushbackReader reader = new PushbackReader(new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8)))) {
+            String line;
+            while ((line = LineBuffer.readLine(reader)) != null) {
+                log.add(line);
+                if (!ready && line.contains(DONE_TOKEN)) {
+                    ready = true;
+                    startup.countDown();
+                }
+            }
+        } catch (IOException ioe) {
+            // Closed along with the process.
+        }
+    }
+
+    /**
+     * Wait for the Done token.
+     * @return true if the server is up, false if it exited or the
+     *   time ran out
+     */
+    boolean awaitReady(long timeout) throws InterruptedException {
+        startup.await(timeout, TimeUnit.MILLISECONDS);
+        return ready && process.isAlive();
+    }
+
+    boolean isAlive() {
+        return process.isAlive();
+    }
+
+    long getPid() {
+        return process.pid();
+    }
+
+    List<String> getLog(int lines) {
+        return log.tail(lines);
+    }
+
+    void command(String command) {
+        stdin.println(command);
+    }
+
+    /**
+     * Kill the server right away and wait until it is gone.
+     */
+    void kill() throws InterruptedException {
+        process.destroyForcibly();
+        process.waitFor();
+    }
+
+    /**
+     * Ask the server to stop, and make sure it does.
+     */
+    void stop() {
+        if (stopping || !process.isAlive()) return;
+        stopping = true;
+        command("stop");
+        Processes.schedule(() -> {
+                if (!process.isAlive()) return;
+                System.err.println("game" + index + " ignored stop, terminating");
+                Processes.terminate(process, STOP_TIMEOUT);
+            }, STOP_TIMEOUT);
+    }
+}
@@ -0,0 +1,149 @@
+package com.winthier.daemon;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aggregate the phase timelines of created games into histograms,
+ * keyed by game type and by map.  See Game#timeline for the phase
+ * names.
+ */
+final class GameTimings {
+    // Phase names, in the order in which a game passes them.
+    static final String CREATE = "create";
+    static final String START = "start";
+    static final String SETUP = "setup";
+    static final String SETUP_DONE = "setup_done";
+    static final String LAUNCH = "launch";
+    static final String READY = "ready";
+    static final String FINISH = "finish";
+    static final String SENT = "sent";
+    static final String END = "end";
+    // Intervals: name, from, to.
+    static final String[][] INTERVALS = {
+        {"lobby", CREATE, START},
+        {"setup", SETUP, SETUP_DONE},
+        {"boot", SETUP_DONE, LAUNCH},
+        {"log_wait", LAUNCH, READY},
+        {"handoff", READY, FINISH},
+        {"send", FINISH, SENT},
+        {"start_to_sent", START, SENT},
+        {"run", SENT, END}
+    };
+    // key -> interval -> histogram
+    private final Map<String, Map<String, Histogram>> histograms = new TreeMap<>();
+
+    static String typeKey(String gameName) {
+        return "type:" + gameName;
+    }
+
+    static String mapKey(String gameName, String mapId) {
+        return "map:" + gameName + "/" + mapId;
+    }
+
+    /**
+     * Record every interval of the timeline which has both ends
+     * and contains the given phase as its end.  This way, each
+     * interval is counted exactly once, as soon as it completes.
+     */
+    void record(String gameName, String mapId, Map<String, Long> timeline, String phase) {
+        if (timeline == null) return;
+        for (String[] interval: INTERVALS) {
+            if (!interval[2].equals(phase)) continue;
+            Long from = timeline.get(interval[1]);
+            Long to = timeline.get(interval[2]);
+            if (from == null || to == null) continue;
+            long duration = to - from;
+            get(typeKey(gameName), interval[0]).record(duration);
+            if (mapId != null) get(mapKey(gameName, mapId), interval[0]).record(duration);
+        }
+    }
+
+    Histogram get(String key, String interval) {
+        Map<String, Histogram> map = histograms.get(key);
+        if (map == null) {
+            map = new TreeMap<>();
+            histograms.put(key, map);
+        }
+        Histogram histogram = map.get(interval);
+        if (histogram == null) {
+            histogram = new Histogram();
+            map.put(interval, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * @return The histogram, or null if nothing has been recorded.
+     */
+    Histogram find(String key, String interval) {
+        Map<String, Histogram> map = histograms.get(key);
+        if (map == null) return null;
+        return map.get(interval);
+    }
+
+    Map<String, Map<String, Histogram>> getHistograms() {
+        return histograms;
+    }
+
+    void clear() {
+        histograms.clear();
+    }
+
+    void store(List<Object> list) {
+        for (Map.Entry<String, Map<String, Histogram>> entry: histograms.entrySet()) {
+            for (Map.Entry<String, Histogram> entry2: entry.getValue().entrySet()) {
+                Map<String, Object> map = new HashMap<>();
+                map.put("key", entry.getKey());
+                map.put("interval", entry2.getKey());
+                entry2.getValue().store(map);
+                list.add(map);
+            }
+        }
+    }
+
+    void load(List<Map<String, Object>> list) {
+        histograms.clear();
+        for (Map<String, Object> map: list) {
+            String key = (String)map.get("key");
+            String interval = (String)map.get("interval");
+            if (key == null || interval == null) continue;
+            get(key, interval).load(map);
+        }
+    }
+
+    /**
+     * The same as report(), as a map of key to interval to summary.
+     */
+    Map<String, Object> summarize(String filter) {
+        Map<String, Object> result = new TreeMap<>();
+        for (Map.Entry<String, Map<String, Histogram>> entry: histograms.entrySet()) {
+            if (filter != null && !entry.getKey().contains(filter)) continue;
+            Map<String, Object> intervals = new HashMap<>();
+            for (Map.Entry<String, Histogram> entry2: entry.getValue().entrySet()) {
+                Map<String, Object> summary = new HashMap<>();
+                entry2.getValue().summarize(summary);
+                intervals.put(entry2.getKey(), summary);
+            }
+            result.put(entry.getKey(), intervals);
+        }
+        return result;
+    }
+
+    List<String> report(String filter) {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Histogram>> entry: histograms.entrySet()) {
+            if (filter != null && !entry.getKey().contains(filter)) continue;
+            lines.add(entry.getKey());
+            for (String[] interval: INTERVALS) {
+                Histogram histogram = entry.getValue().get(interval[0]);
+                if (histogram == null) continue;
+                lines.add("  " + interval[0] + " " + histogram.summary());
+            }
+        }
+        return lines;
+    }
+}
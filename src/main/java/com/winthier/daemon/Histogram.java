@@ -0,0 +1,127 @@
+package com.winthier.daemon;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Log-linear histogram of non-negative long values, usually
+ * milliseconds.  Every power of two is split into a fixed number of
+ * sub-buckets, so the relative error of a reported percentile stays
+ * below 1 / SUB_BUCKETS while the memory footprint stays constant.
+ */
+final class Histogram {
+    private static final int SUB_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+    private final long[] counts = new long[BUCKETS];
+    private long count, sum, max;
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) return (int)Math.max(0, value);
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int)(value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // Largest value which still falls into the given bucket.
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long lower = (1L << exp) + (sub << (exp - SUB_BITS));
+        return lower + (1L << (exp - SUB_BITS)) - 1;
+    }
+
+    void record(long value) {
+        if (value < 0) value = 0;
+        counts[bucketOf(value)] += 1;
+        count += 1;
+        sum += value;
+        if (value > max) max = value;
+    }
+
+    void add(Histogram other) {
+        for (int i = 0; i < BUCKETS; i += 1) counts[i] += other.counts[i];
+        count += other.count;
+        sum += other.sum;
+        if (other.max > max) max = other.max;
+    }
+
+    void clear() {
+        for (int i = 0; i < BUCKETS; i += 1) counts[i] = 0;
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    long getMax() {
+        return max;
+    }
+
+    long getMean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * @param percentile A value between 0 and 100
+     */
+    long percentile(double percentile) {
+        if (count == 0) return 0;
+        long rank = (long)Math.ceil(percentile / 100.0 * count);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i += 1) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(max, upperBoundOf(i));
+        }
+        return max;
+    }
+
+    String summary() {
+        return String.format("n=%d p50=%d p90=%d p99=%d max=%d", count, percentile(50), percentile(90), percentile(99), max);
+    }
+
+    void summarize(Map<String, Object> map) {
+        map.put("n", count);
+        map.put("p50", percentile(50));
+        map.put("p90", percentile(90));
+        map.put("p99", percentile(99));
+        map.put("max", max);
+    }
+
+    // Sparse list of [bucket, count] pairs.
+    void store(Map<String, Object> map) {
+        List<Object> list = new ArrayList<>();
+        for (int i = 0; i < BUCKETS; i += 1) {
+            if (counts[i] == 0) continue;
+            List<Object> pair = new ArrayList<>(2);
+            pair.add(i);
+            pair.add(counts[i]);
+            list.add(pair);
+        }
+        map.put("buckets", list);
+        map.put("count", count);
+        map.put("sum", sum);
+        map.put("max", max);
+    }
+
+    @SuppressWarnings("unchecked")
+    void load(Map<String, Object> map) {
+        clear();
+        if (map.containsKey("buckets")) {
+            for (List<Number> pair: (List<List<Number>>)map.get("buckets")) {
+                int bucket = pair.get(0).intValue();
+                if (bucket < 0 || bucket >= BUCKETS) continue;
+                counts[bucket] = pair.get(1).longValue();
+            }
+        }
+        if (map.containsKey("count")) count = ((Number)map.get("count")).longValue();
+        if (map.containsKey("sum")) sum = ((Number)map.get("sum")).longValue();
+        if (map.containsKey("max")) max = ((Number)map.get("max")).longValue();
+    }
+}
@@ -0,0 +1,258 @@
+package com.winthier.daemon;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sample host CPU, memory and disk utilization from /proc, along
+ * with the CPU and resident memory of the game server processes,
+ * which are found by their working directory run/gameN.  Snapshots
+ * travel from agents to the daemon via store() and load().  Sampling
+ * happens on its own thread; the main thread only reads the latest
+ * immutable snapshot.  Outside of Linux, there never is one.
+ */
+final class HostMetrics implements Runnable {
+    static final long INTERVAL = 2000L;
+    static final double TICKS_PER_SECOND = 100.0; // USER_HZ
+    static final Pattern GAME_DIR = Pattern.compile("game([0-9]+)");
+    private final File runDir;
+    private volatile Snapshot snapshot;
+    private volatile boolean stopped;
+    // Previous readings, sampler thread only
+    private long lastTime, lastCpuTotal, lastCpuIdle;
+    private Map<String, Long> lastIoTicks = new HashMap<>();
+    private Map<Integer, Long> lastProcessTicks = new HashMap<>();
+
+    static final class Snapshot {
+        final long time;
+        final int cores;
+        final double cpuBusy; // 0 to 1, over all cores
+        final long memTotal, memAvailable; // bytes
+        final double diskBusy; // 0 to 1, busiest disk
+        final Map<Integer, Usage> servers; // server index -> usage
+
+        Snapshot(long time, int cores, double cpuBusy, long memTotal, long memAvailable, double diskBusy, Map<Integer, Usage> servers) {
+            this.time = time;
+            this.cores = cores;
+            this.cpuBusy = cpuBusy;
+            this.memTotal = memTotal;
+            this.memAvailable = memAvailable;
+            this.diskBusy = diskBusy;
+            this.servers = servers;
+        }
+    }
+
+    static final class Usage {
+        double cpu; // cores
+        long rss; // bytes
+    }
+
+    HostMetrics(File runDir) {
+        this.runDir = runDir;
+    }
+
+    Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    void stop() {
+        stopped = true;
+    }
+
+    @Override
+    public void run() {
+        if (!new File("/proc/stat").isFile()) return;
+        while (!stopped) {
+            try {
+                sample();
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            }
+            try {
+                Thread.sleep(INTERVAL);
+            } catch (InterruptedException ie) {
+                return;
+            }
+        }
+    }
+
+    void sample() throws IOException {
+        long now = System.currentTimeMillis();
+        double seconds = lastTime == 0 ? 0 : (now - lastTime) / 1000.0;
+        // CPU: first line of /proc/stat, idle is idle + iowait.
+        long total = 0;
+        long idle = 0;
+        String[] cpu = readFirstLine("/proc/stat").trim().split("\\s+");
+        for (int i = 1; i < cpu.length; i += 1) {
+            long value = Long.parseLong(cpu[i]);
+            total += value;
+            if (i == 4 || i == 5) idle += value;
+        }
+        double cpuBusy = 0;
+        if (total > lastCpuTotal && lastCpuTotal > 0) {
+            cpuBusy = 1.0 - (double)(idle - lastCpuIdle) / (double)(total - lastCpuTotal);
+        }
+        lastCpuTotal = total;
+        lastCpuIdle = idle;
+        // Memory
+        long memTotal = 0;
+        long memAvailable = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/meminfo"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("MemTotal:")) memTotal = parseKilobytes(line);
+                if (line.startsWith("MemAvailable:")) memAvailable = parseKilobytes(line);
+            }
+        }
+        // Disk: io_ticks is the 10th value after the device name.
+        double diskBusy = 0;
+        Map<String, Long> ioTicks = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/diskstats"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] toks = line.trim().split("\\s+");
+                if (toks.length < 13) continue;
+                String device = toks[2];
+                if (!new File("/sys/block/" + device + "/device").exists()) continue; // Partitions, loop devices
+                long ticks = Long.parseLong(toks[12]);
+                ioTicks.put(device, ticks);
+                Long last = lastIoTicks.get(device);
+                if (last != null && seconds > 0) {
+                    diskBusy = Math.max(diskBusy, Math.min(1.0, (ticks - last) / (seconds * 1000.0)));
+                }
+            }
+        }
+        lastIoTicks = ioTicks;
+        // Game server processes
+        Map<String, Integer> dirs = new HashMap<>();
+        File[] gameDirs = runDir.listFiles();
+        if (gameDirs != null) {
+            for (File gameDir: gameDirs) {
+                Matcher matcher = GAME_DIR.matcher(gameDir.getName());
+                if (!matcher.matches()) continue;
+                try {
+                    dirs.put(gameDir.getCanonicalPath(), Integer.parseInt(matcher.group(1)));
+                } catch (IOException ioe) {
+                    continue;
+                }
+            }
+        }
+        Map<Integer, Usage> servers = new HashMap<>();
+        Map<Integer, Long> processTicks = new HashMap<>();
+        File[] procs = new File("/proc").listFiles();
+        if (procs != null) {
+            for (File proc: procs) {
+                String name = proc.getName();
+                if (name.isEmpty() || !Character.isDigit(name.charAt(0))) continue;
+                Integer index;
+                try {
+                    Path cwd = Files.readSymbolicLink(new File(proc, "cwd").toPath());
+                    index = dirs.get(cwd.toString());
+                } catch (IOException | SecurityException e) {
+                    continue;
+                }
+                if (index == null) continue;
+                String stat;
+                long rss;
+                try {
+                    stat = readFirstLine(new File(proc, "stat").getPath());
+                    rss = readRss(new File(proc, "status").getPath());
+                } catch (IOException ioe) {
+                    continue;
+                }
+                // Skip past the command name, which may contain spaces.
+                String[] toks = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                long ticks = Long.parseLong(toks[11]) + Long.parseLong(toks[12]);
+                int pid = Integer.parseInt(name);
+                processTicks.put(pid, ticks);
+                Usage usage = servers.get(index);
+                if (usage == null) {
+                    usage = new Usage();
+                    servers.put(index, usage);
+                }
+                usage.rss += rss;
+                Long last = lastProcessTicks.get(pid);
+                if (last != null && seconds > 0) usage.cpu += (ticks - last) / TICKS_PER_SECOND / seconds;
+            }
+        }
+        lastProcessTicks = processTicks;
+        boolean first = lastTime == 0;
+        lastTime = now;
+        if (first) return; // Deltas need two samples.
+        snapshot = new Snapshot(now, Runtime.getRuntime().availableProcessors(), cpuBusy,
+                                memTotal, memAvailable, diskBusy, Collections.unmodifiableMap(servers));
+    }
+
+    static void store(Snapshot snapshot, Map<String, Object> map) {
+        map.put("cores", snapshot.cores);
+        map.put("cpu", snapshot.cpuBusy);
+        map.put("mem_total", snapshot.memTotal);
+        map.put("mem_available", snapshot.memAvailable);
+        map.put("disk", snapshot.diskBusy);
+        Map<String, Object> servers = new HashMap<>();
+        for (Map.Entry<Integer, Usage> entry: snapshot.servers.entrySet()) {
+            Map<String, Object> usage = new HashMap<>();
+            usage.put("cpu", entry.getValue().cpu);
+            usage.put("rss", entry.getValue().rss);
+            servers.put("" + entry.getKey(), usage);
+        }
+        map.put("servers", servers);
+    }
+
+    /**
+     * @param time The local time of the snapshot
+     */
+    @SuppressWarnings("unchecked")
+    static Snapshot load(Map<String, Object> map, long time) {
+        Map<Integer, Usage> servers = new HashMap<>();
+        Map<String, Object> serversMap = (Map<String, Object>)map.get("servers");
+        if (serversMap != null) {
+            for (Map.Entry<String, Object> entry: serversMap.entrySet()) {
+                Map<String, Object> usageMap = (Map<String, Object>)entry.getValue();
+                Usage usage = new Usage();
+                usage.cpu = ((Number)usageMap.get("cpu")).doubleValue();
+                usage.rss = ((Number)usageMap.get("rss")).longValue();
+                servers.put(Integer.parseInt(entry.getKey()), usage);
+            }
+        }
+        return new Snapshot(time, ((Number)map.get("cores")).intValue(), ((Number)map.get("cpu")).doubleValue(),
+                            ((Number)map.get("mem_total")).longValue(), ((Number)map.get("mem_available")).longValue(),
+                            ((Number)map.get("disk")).doubleValue(), Collections.unmodifiableMap(servers));
+    }
+
+    static String readFirstLine(String path) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line = reader.readLine();
+            if (line == null) throw new IOException("Empty file: " + path);
+            return line;
+        }
+    }
+
+    /**
+     * Resident memory in bytes, from VmRSS in kB rather than the page
+     * count in stat, since pages are not 4K on every kernel.
+     */
+    static long readRss(String path) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) return parseKilobytes(line);
+            }
+        }
+        return 0L; // Zombies and kernel threads
+    }
+
+    static long parseKilobytes(String line) {
+        String[] toks = line.trim().split("\\s+");
+        return Long.parseLong(toks[1]) * 1024L;
+    }
+}
@@ -0,0 +1,211 @@
+package com.winthier.daemon;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Streaming JSON input, the counterpart of JsonWriter for the save
+ * files.  readRecords() hands over the elements of a top level array
+ * one at a time, so loading a save never holds more than one record
+ * besides what it keeps.  Values come out as json-simple would
+ * parse them: HashMap, ArrayList, String, Long, Double, Boolean or
+ * null.
+ */
+final class JsonReader {
+    private final Reader in;
+    private final char[] buffer = new char[8192];
+    private int pos, limit;
+    private long offset; // Of the buffer in the input, for errors
+
+    JsonReader(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * Read a top level array and pass each element on as soon as it
+     * is complete.  An empty input counts as an empty array.
+     * @throws IOException on a read error or malformed JSON
+     */
+    static void readRecords(Reader in, Consumer<Object> each) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        int c = reader.skipSpace();
+        if (c < 0) return;
+        reader.expect('[');
+        if (reader.skipSpace() == ']') {
+            reader.pos += 1;
+            return;
+        }
+        while (true) {
+            each.accept(reader.readValue());
+            c = reader.skipSpace();
+            reader.pos += 1;
+            if (c == ']') return;
+            if (c != ',') throw reader.error("Expected , or ]");
+        }
+    }
+
+    Object readValue() throws IOException {
+        int c = skipSpace();
+        switch (c) {
+        case '{': return readObject();
+        case '[': return readArray();
+        case '"':
+            pos += 1;
+            return readString();
+        case 't': return literal("true", Boolean.TRUE);
+        case 'f': return literal("false", Boolean.FALSE);
+        case 'n': return literal("null", null);
+        case -1: throw error("Unexpected end");
+        default:
+            if (c == '-' || (c >= '0' && c <= '9')) return readNumber();
+            throw error("Unexpected " + (char)c);
+        }
+    }
+
+    private Map<String, Object> readObject() throws IOException {
+        expect('{');
+        Map<String, Object> map = new HashMap<>();
+        if (skipSpace() == '}') {
+            pos += 1;
+            return map;
+        }
+        while (true) {
+            expect('"');
+            String key = readString();
+            expect(':');
+            map.put(key, readValue());
+            int c = skipSpace();
+            pos += 1;
+            if (c == '}') return map;
+            if (c != ',') throw error("Expected , or }");
+        }
+    }
+
+    private List<Object> readArray() throws IOException {
+        expect('[');
+        List<Object> list = new ArrayList<>();
+        if (skipSpace() == ']') {
+            pos += 1;
+            return list;
+        }
+        while (true) {
+            list.add(readValue());
+            int c = skipSpace();
+            pos += 1;
+            if (c == ']') return list;
+            if (c != ',') throw error("Expected , or ]");
+        }
+    }
+
+    // After the opening quote
+    private String readString() throws IOException {
+        StringBuilder sb = null;
+        while (true) {
+            if (pos >= limit && !fill()) throw error("Unterminated string");
+            // Scan the buffer for the end or an escape.
+            int start = pos;
+            while (pos < limit && buffer[pos] != '"' && buffer[pos] != '\\') pos += 1;
+            if (pos < limit && buffer[pos] == '"' && sb == null) {
+                String result = new String(buffer, start, pos - start);
+                pos += 1;
+                return result;
+            }
+            if (sb == null) sb = new StringBuilder();
+            sb.append(buffer, start, pos - start);
+            if (pos >= limit) continue;
+            char c = buffer[pos++];
+            if (c == '"') return sb.toString();
+            int e = read();
+            switch (e) {
+            case '"': case '\\': case '/': sb.append((char)e); break;
+            case 'b': sb.append('\b'); break;
+            case 'f': sb.append('\f'); break;
+            case 'n': sb.append('\n'); break;
+            case 'r': sb.append('\r'); break;
+            case 't': sb.append('\t'); break;
+            case 'u':
+                int code = 0;
+                for (int i = 0; i < 4; i += 1) {
+                    int digit = Character.digit(read(), 16);
+                    if (digit < 0) throw error("Bad unicode escape");
+                    code = code * 16 + digit;
+                }
+                sb.append((char)code);
+                break;
+            default: throw error("Bad escape");
+            }
+        }
+    }
+
+    private Object readNumber() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        boolean decimal = false;
+        while (true) {
+            if (pos >= limit && !fill()) break;
+            char c = buffer[pos];
+            if ((c >= '0' && c <= '9') || c == '-' || c == '+') {
+                sb.append(c);
+            } else if (c == '.' || c == 'e' || c == 'E') {
+                decimal = true;
+                sb.append(c);
+            } else {
+                break;
+            }
+            pos += 1;
+        }
+        try {
+            return decimal ? (Object)Double.valueOf(sb.toString()) : (Object)Long.valueOf(sb.toString());
+        } catch (NumberFormatException nfe) {
+            throw error("Bad number " + sb);
+        }
+    }
+
+    private Object literal(String word, Object value) throws IOException {
+        for (int i = 0; i < word.length(); i += 1) {
+            if (read() != word.charAt(i)) throw error("Expected " + word);
+        }
+        return value;
+    }
+
+    private void expect(char c) throws IOException {
+        if (skipSpace() != c) throw error("Expected " + c);
+        pos += 1;
+    }
+
+    /**
+     * @return The next character which is not white space, without
+     *   consuming it, or -1 at the end
+     */
+    private int skipSpace() throws IOException {
+        while (true) {
+            if (pos >= limit && !fill()) return -1;
+            char c = buffer[pos];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') return c;
+            pos += 1;
+        }
+    }
+
+    private int read() throws IOException {
+        if (pos >= limit && !fill()) return -1;
+        return buffer[pos++];
+    }
+
+    private boolean fill() throws IOException {
+        offset += limit;
+        pos = 0;
+        limit = 0;
+        int n = in.read(buffer, 0, buffer.length);
+        if (n <= 0) return false;
+        limit = n;
+        return true;
+    }
+
+    private IOException error(String message) {
+        return new IOException(message + " at position " + (offset + pos));
+    }
+}
@@ -0,0 +1,47 @@
+package com.winthier.daemon;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Where a record stores its fields, see JsonWriter.
+ */
+interface JsonSink {
+    void put(String name, Object value);
+
+    /**
+     * Put a list of UUIDs as strings.
+     */
+    void putUuids(String name, Collection<UUID> uuids);
+
+    /**
+     * @return A sink which fills the map.  Maps and lists are copied,
+     *   with map keys as strings, just as JsonWriter writes them, so
+     *   the map stays valid if the record changes later.
+     */
+    static JsonSink of(final Map<String, Object> map) {
+        return new JsonSink() {
+            @Override
+            public void put(String name, Object value) {
+                if (value instanceof Map) {
+                    Map<String, Object> copy = new LinkedHashMap<>();
+                    for (Map.Entry<?, ?> entry: ((Map<?, ?>)value).entrySet()) copy.put(String.valueOf(entry.getKey()), entry.getValue());
+                    value = copy;
+                }
+                if (value instanceof List) value = new ArrayList<>((List<?>)value);
+                map.put(name, value);
+            }
+
+            @Override
+            public void putUuids(String name, Collection<UUID> uuids) {
+                List<String> list = new ArrayList<>(uuids.size());
+                for (UUID uuid: uuids) list.add(uuid.toString());
+                map.put(name, list);
+            }
+        };
+    }
+}
@@ -0,0 +1,261 @@
+package com.winthier.daemon;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+import org.json.simple.JSONStreamAware;
+
+/**
+ * Streaming JSON output, straight into a Writer, without building
+ * maps and lists first.  Records such as User, Server and Game write
+ * their fields into a JsonSink, which is either a JsonWriter inside
+ * an object, or a plain Map where one is needed, e.g. the game
+ * config.
+ *
+ * Anything json-simple writes is understood, including objects
+ * which are JSONStreamAware, so payloads built from these still
+ * serialize in one pass inside Connect.  Write errors come out as
+ * UncheckedIOException.
+ */
+final class JsonWriter implements JsonSink {
+    private static final int MAX_DEPTH = 64;
+    private final Writer out;
+    private final boolean[] empty = new boolean[MAX_DEPTH]; // Nothing written at this level yet
+    private int depth;
+    private boolean afterName;
+
+    JsonWriter(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * @return The length of the value as JSON, counted as it is
+     *   written rather than built into a string
+     */
+    static long length(Object value) {
+        Counter counter = new Counter();
+        new JsonWriter(counter).value(value);
+        return counter.count;
+    }
+
+    /**
+     * @return The record as one JSON object
+     */
+    static <T> JSONStreamAware record(final T item, final BiConsumer<T, JsonSink> store) {
+        return w -> {
+            JsonWriter json = new JsonWriter(w);
+            json.beginObject();
+            store.accept(item, json);
+            json.endObject();
+        };
+    }
+
+    /**
+     * @return The records as a JSON array of objects, written as
+     *   they are iterated
+     */
+    static <T> JSONStreamAware records(final Iterable<T> items, final BiConsumer<T, JsonSink> store) {
+        return w -> {
+            JsonWriter json = new JsonWriter(w);
+            json.beginArray();
+            for (T item: items) {
+                json.beginObject();
+                store.accept(item, json);
+                json.endObject();
+            }
+            json.endArray();
+        };
+    }
+
+    JsonWriter beginObject() {
+        beforeValue();
+        return open('{');
+    }
+
+    JsonWriter endObject() {
+        return close('}');
+    }
+
+    JsonWriter beginArray() {
+        beforeValue();
+        return open('[');
+    }
+
+    JsonWriter endArray() {
+        return close(']');
+    }
+
+    JsonWriter name(String name) {
+        separate();
+        string(name);
+        write(':');
+        afterName = true;
+        return this;
+    }
+
+    @Override
+    public void put(String name, Object value) {
+        name(name);
+        value(value);
+    }
+
+    @Override
+    public void putUuids(String name, Collection<UUID> uuids) {
+        name(name);
+        beginArray();
+        for (UUID uuid: uuids) value(uuid.toString());
+        endArray();
+    }
+
+    /**
+     * Write any value json-simple could, plus UUIDs as strings.
+     */
+    @SuppressWarnings("unchecked")
+    JsonWriter value(Object value) {
+        if (value instanceof Map) {
+            beginObject();
+            for (Map.Entry<Object, Object> entry: ((Map<Object, Object>)value).entrySet()) {
+                put(String.valueOf(entry.getKey()), entry.getValue());
+            }
+            return endObject();
+        }
+        if (value instanceof Iterable) {
+            beginArray();
+            for (Object item: (Iterable<Object>)value) value(item);
+            return endArray();
+        }
+        if (value instanceof Object[]) {
+            beginArray();
+            for (Object item: (Object[])value) value(item);
+            return endArray();
+        }
+        beforeValue();
+        if (value == null) {
+            raw("null");
+        } else if (value instanceof String) {
+            string((String)value);
+        } else if (value instanceof Double || value instanceof Float) {
+            double d = ((Number)value).doubleValue();
+            raw(Double.isNaN(d) || Double.isInfinite(d) ? "null" : value.toString());
+        } else if (value instanceof Number || value instanceof Boolean) {
+            raw(value.toString());
+        } else if (value instanceof JSONStreamAware) {
+            try {
+                ((JSONStreamAware)value).writeJSONString(out);
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        } else {
+            string(value.toString());
+        }
+        return this;
+    }
+
+    private JsonWriter open(char c) {
+        if (depth + 1 >= MAX_DEPTH) throw new IllegalStateException("Nested too deep");
+        write(c);
+        depth += 1;
+        empty[depth] = true;
+        return this;
+    }
+
+    private JsonWriter close(char c) {
+        if (depth == 0) throw new IllegalStateException("Nothing to close");
+        depth -= 1;
+        write(c);
+        return this;
+    }
+
+    private void beforeValue() {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        separate();
+    }
+
+    private void separate() {
+        if (depth == 0) return;
+        if (empty[depth]) {
+            empty[depth] = false;
+        } else {
+            write(',');
+        }
+    }
+
+    private void string(String s) {
+        write('"');
+        int start = 0;
+        final int len = s.length();
+        for (int i = 0; i < len; i += 1) {
+            char c = s.charAt(i);
+            String escape;
+            switch (c) {
+            case '"': escape = "\\\""; break;
+            case '\\': escape = "\\\\"; break;
+            case '\n': escape = "\\n"; break;
+            case '\r': escape = "\\r"; break;
+            case '\t': escape = "\\t"; break;
+            case '\b': escape = "\\b"; break;
+            case '\f': escape = "\\f"; break;
+            default:
+                if (c >= 0x20 && c != '\u2028' && c != '\u2029') continue;
+                escape = String.format("\\u%04x", (int)c);
+            }
+            if (i > start) raw(s, start, i);
+            raw(escape);
+            start = i + 1;
+        }
+        if (len > start) raw(s, start, len);
+        write('"');
+    }
+
+    private void write(char c) {
+        try {
+            out.write(c);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    private void raw(String s) {
+        raw(s, 0, s.length());
+    }
+
+    private void raw(String s, int from, int to) {
+        try {
+            out.write(s, from, to - from);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    private static final class Counter extends Writer {
+        private long count;
+
+        @Override
+        public void write(int c) {
+            count += 1;
+        }
+
+        @Override
+        public void write(char[] buf, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void flush() { }
+
+        @Override
+        public void close() { }
+    }
+}
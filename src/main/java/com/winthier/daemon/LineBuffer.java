@@ -0,0 +1,73 @@
+package com.winthier.daemon;
+
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ring buffer of the last lines of some output.  Memory stays
+ * bounded no matter how much is written: old lines are overwritten,
+ * and overlong lines are cut, while they are read if they come in
+ * through readLine().
+ */
+final class LineBuffer {
+    static final int MAX_LINE_LENGTH = 1024;
+    private final String[] lines;
+    private long count; // Lines ever added
+
+    LineBuffer(int capacity) {
+        this.lines = new String[capacity];
+    }
+
+    synchronized void add(String line) {
+        if (line.length() > MAX_LINE_LENGTH) line = line.substring(0, MAX_LINE_LENGTH) + "...";
+        lines[(int)(count % lines.length)] = line;
+        count += 1;
+    }
+
+    /**
+     * Read a line like BufferedReader.readLine(), but keep no more
+     * than MAX_LINE_LENGTH chars of it and skip the rest, so output
+     * without line breaks cannot pile up in memory.
+     * @return The line, or null at the end of the stream
+     */
+    static String readLine(PushbackReader in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        boolean cut = false;
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') break;
+            if (c == '\r') {
+                int next = in.read();
+                if (next != '\n' && next != -1) in.unread(next);
+                break;
+            }
+            if (sb.length() < MAX_LINE_LENGTH) {
+                sb.append((char)c);
+            } else {
+                cut = true;
+            }
+        }
+        if (c == -1 && sb.length() == 0 && !cut) return null;
+        if (cut) sb.append("...");
+        return sb.toString();
+    }
+
+    synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @return Up to the given number of most recent lines, oldest
+     *   first
+     */
+    synchronized List<String> tail(int max) {
+        int size = (int)Math.min(Math.min(count, lines.length), max);
+        List<String> result = new ArrayList<>(size);
+        for (long i = count - size; i < count; i += 1) {
+            result.add(lines[(int)(i % lines.length)]);
+        }
+        return result;
+    }
+}
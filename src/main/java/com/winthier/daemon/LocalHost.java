@@ -0,0 +1,232 @@
+package com.winthier.daemon;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import org.json.simple.JSONValue;
+
+/**
+ * Game server slots on this machine, driven by the scripts in the
+ * script directory of the base dir.  Used by the daemon for its own
+ * slots and by the Agent on every other host.
+ *
+ * Servers are child processes, see GameProcess.  A server left
+ * behind by an earlier run of this process is still found via the
+ * pid file which game.run writes, and can be probed and stopped, but
+ * not read from.
+ */
+final class LocalHost implements GameHost {
+    static final long SETUP_TIMEOUT = 5L * 60L * 1000L;
+    static final long PREPARE_TIMEOUT = 60000L;
+    static final long START_TIMEOUT = 60000L;
+    private final File baseDir; // Null means the working directory
+    private final int capacity;
+    private HostMetrics metrics;
+    private final Map<Integer, GameProcess> processes = new ConcurrentHashMap<>();
+    private volatile GameProcess.ExitListener exitListener;
+
+    LocalHost(File baseDir, int capacity) {
+        this.baseDir = baseDir;
+        this.capacity = capacity;
+    }
+
+    void setMetrics(HostMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    File file(String path) {
+        return baseDir == null ? new File(path) : new File(baseDir, path);
+    }
+
+    @Override
+    public String getName() {
+        return "local";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public HostMetrics.Snapshot getSnapshot() {
+        return metrics == null ? null : metrics.getSnapshot();
+    }
+
+    @Override
+    public int setup(String script, String gameName, int index, String mapPath) {
+        // Running e.g.: ./script/base-game.setup colorfall 3 /home/creative/minecraft/worlds/Colorhunt
+        ProcessBuilder pb = script(script, gameName, "" + index, mapPath);
+        pb.inheritIO();
+        try {
+            return Processes.run(pb, SETUP_TIMEOUT);
+        } catch (InterruptedException ie) {
+            ie.printStackTrace();
+            return -1;
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            return -1;
+        }
+    }
+
+    @Override
+    public int start(int index, int port, Map<String, Object> gameConfig, Map<String, Long> phases) {
+        try {
+            FileWriter fw = new FileWriter(file("run/game" + index + "/game_config.json"));
+            JSONValue.writeJSONString(gameConfig, fw);
+            fw.flush();
+            fw.close();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+        try {
+            ProcessBuilder pb = script("game.prepare", "" + index, "" + port);
+            pb.inheritIO();
+            int ret = Processes.run(pb, PREPARE_TIMEOUT);
+            if (ret != 0) return ret;
+            phases.put(GameTimings.LAUNCH, System.currentTimeMillis());
+            GameProcess process = GameProcess.start(index, script("game.run", "" + index), (i, pid, code) -> {
+                    processes.computeIfPresent(i, (k, v) -> v.getPid() == pid ? null : v);
+                    GameProcess.ExitListener listener = exitListener;
+                    if (listener != null) listener.onExit(i, pid, code);
+                });
+            processes.put(index, process);
+            if (process.awaitReady(START_TIMEOUT)) return 0;
+            // Gone before the slot is handed out again.
+            System.err.println("game" + index + " did not start up in time");
+            process.kill();
+            return 1;
+        } catch (InterruptedException ie) {
+            ie.printStackTrace();
+            return -1;
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            return -1;
+        }
+    }
+
+    /**
+     * A server started by this process, e.g. in an agent which
+     * outlived the daemon, reports readiness as usual.  An orphan is
+     * ready once the Done token shows up in its log file.
+     */
+    @Override
+    public int resume(int index, Map<String, Long> phases) {
+        try {
+            GameProcess process = processes.get(index);
+            if (process != null) {
+                if (process.awaitReady(START_TIMEOUT)) return 0;
+                process.kill();
+                return 1;
+            }
+            Optional<ProcessHandle> orphan = findOrphan(index);
+            if (!orphan.isPresent()) return 1;
+            File log = file("run/game" + index + "/logs/latest.log");
+            long deadline = System.currentTimeMillis() + START_TIMEOUT;
+            while (orphan.get().isAlive()) {
+                if (logContains(log, GameProcess.DONE_TOKEN)) return 0;
+                if (System.currentTimeMillis() > deadline) {
+                    System.err.println("game" + index + " did not start up in time");
+                    orphan.get().destroyForcibly();
+                    orphan.get().onExit().get();
+                    break;
+                }
+                Thread.sleep(1000L);
+            }
+            return 1;
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    static boolean logContains(File file, String token) {
+        if (!file.isFile()) return false;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.contains(token)) return true;
+            }
+        } catch (IOException ioe) {
+            return false;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean exists(int index) {
+        GameProcess process = processes.get(index);
+        if (process != null) return process.isAlive();
+        return findOrphan(index).isPresent();
+    }
+
+    @Override
+    public void stop(int index) {
+        GameProcess process = processes.get(index);
+        if (process != null) {
+            process.stop();
+        } else {
+            findOrphan(index).ifPresent(ProcessHandle::destroy);
+        }
+    }
+
+    @Override
+    public long getPid(int index) {
+        GameProcess process = processes.get(index);
+        if (process != null) return process.getPid();
+        return findOrphan(index).map(ProcessHandle::pid).orElse(-1L);
+    }
+
+    @Override
+    public List<String> getLog(int index, int lines) {
+        GameProcess process = processes.get(index);
+        if (process == null) return Collections.emptyList();
+        return process.getLog(lines);
+    }
+
+    @Override
+    public void setExitListener(GameProcess.ExitListener listener) {
+        this.exitListener = listener;
+    }
+
+    /**
+     * A live server process which this process did not start.
+     */
+    Optional<ProcessHandle> findOrphan(int index) {
+        File file = file("run/game" + index + "/server.pid");
+        if (!file.isFile()) return Optional.empty();
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            String line = reader.readLine();
+            reader.close();
+            if (line == null) return Optional.empty();
+            return ProcessHandle.of(Long.parseLong(line.trim())).filter(ProcessHandle::isAlive);
+        } catch (IOException | NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    ProcessBuilder script(String name, String... args) {
+        List<String> command = new ArrayList<>(args.length + 1);
+        command.add(file("script/" + name).getPath());
+        command.addAll(Arrays.asList(args));
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.directory(baseDir);
+        return pb;
+    }
+}
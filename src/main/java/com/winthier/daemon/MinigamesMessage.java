@@ -0,0 +1,207 @@
+package com.winthier.daemon;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A message on the minigames channel between the daemon and the
+ * game servers.  Payloads are decoded and checked once, at the
+ * edge, so the handlers on the main thread only ever see a known
+ * action with the fields it needs.  Two wire forms are read:
+ *
+ * Legacy: {"action": "game_end", "game": "<uuid>", ...}
+ *
+ * Compact, version 1: [1, code, player_msb, player_lsb, game_msb,
+ * game_lsb, key, value, seq], where each UUID is two numbers, or two
+ * nulls if absent, and trailing fields may be left out.  It saves
+ * the action name, the field names and UUID parsing.
+ *
+ * Messages from the daemon's Outbox carry a sequence number, which a
+ * game server may confirm with an ack message naming it.  Servers
+ * which do not know about acks simply ignore the field.
+ *
+ * Outbound messages use the legacy form unless the game servers are
+ * known to read the compact one, see minigames_compact in
+ * config/daemon.yml.
+ */
+final class MinigamesMessage {
+    static final int VERSION = 1;
+    final Action action;
+    final UUID player; // Null unless the action names a player
+    final UUID game; // Null only for ack
+    final String key; // game_config only
+    final Object value; // game_config only
+    final long seq; // Outbox sequence number, or 0
+
+    enum Action {
+        PLAYER_JOIN_GAME(1, true),
+        PLAYER_SPECTATE_GAME(2, true),
+        PLAYER_LEAVE_GAME(3, true),
+        GAME_ADD_PLAYER(4, true),
+        GAME_ADD_SPECTATOR(5, true),
+        GAME_END(6, false),
+        GAME_CONFIG(7, false),
+        ACK(8, false);
+
+        final int code;
+        final String key;
+        final boolean hasPlayer;
+
+        Action(int code, boolean hasPlayer) {
+            this.code = code;
+            this.key = name().toLowerCase();
+            this.hasPlayer = hasPlayer;
+        }
+
+        static Action of(String key) {
+            for (Action action: values()) {
+                if (action.key.equals(key)) return action;
+            }
+            return null;
+        }
+
+        static Action of(int code) {
+            for (Action action: values()) {
+                if (action.code == code) return action;
+            }
+            return null;
+        }
+    }
+
+    private MinigamesMessage(Action action, UUID player, UUID game, String key, Object value, long seq) {
+        this.action = action;
+        this.player = player;
+        this.game = game;
+        this.key = key;
+        this.value = value;
+        this.seq = seq;
+    }
+
+    static MinigamesMessage of(Action action, UUID player, UUID game) {
+        if (action.hasPlayer && player == null) throw new IllegalArgumentException(action.key + ": player missing");
+        if (game == null) throw new IllegalArgumentException(action.key + ": game missing");
+        if (action == Action.GAME_CONFIG || action == Action.ACK) throw new IllegalArgumentException("Use config() or ack()");
+        return new MinigamesMessage(action, action.hasPlayer ? player : null, game, null, null, 0L);
+    }
+
+    static MinigamesMessage config(UUID game, String key, Object value) {
+        if (game == null || key == null) throw new IllegalArgumentException("game_config: game or key missing");
+        return new MinigamesMessage(Action.GAME_CONFIG, null, game, key, value, 0L);
+    }
+
+    static MinigamesMessage ack(long seq) {
+        if (seq <= 0) throw new IllegalArgumentException("ack: seq missing");
+        return new MinigamesMessage(Action.ACK, null, null, null, null, seq);
+    }
+
+    MinigamesMessage withSeq(long newSeq) {
+        return new MinigamesMessage(action, player, game, key, value, newSeq);
+    }
+
+    /**
+     * Read either wire form.
+     * @throws IllegalArgumentException if the payload is malformed
+     *   or its action unknown
+     */
+    static MinigamesMessage decode(Object payload) {
+        if (payload instanceof List) return decodeCompact((List<?>)payload);
+        if (payload instanceof Map) return decodeLegacy((Map<?, ?>)payload);
+        throw new IllegalArgumentException("Not a message: " + (payload == null ? null : payload.getClass().getSimpleName()));
+    }
+
+    private static MinigamesMessage decodeLegacy(Map<?, ?> map) {
+        Object name = map.get("action");
+        Action action = name instanceof String ? Action.of((String)name) : null;
+        if (action == null) throw new IllegalArgumentException("Unknown action: " + name);
+        long seq = map.get("seq") instanceof Long ? (Long)map.get("seq") : 0L;
+        if (action == Action.ACK) return ack(seq);
+        UUID game = parseUuid(map.get("game"), "game");
+        if (action == Action.GAME_CONFIG) {
+            if (!(map.get("key") instanceof String) || !map.containsKey("value")) {
+                throw new IllegalArgumentException("game_config: key or value missing");
+            }
+            return config(game, (String)map.get("key"), map.get("value")).withSeq(seq);
+        }
+        UUID player = action.hasPlayer ? parseUuid(map.get("player"), "player") : null;
+        return of(action, player, game).withSeq(seq);
+    }
+
+    private static MinigamesMessage decodeCompact(List<?> list) {
+        if (list.size() < 2 || !(list.get(0) instanceof Number) || !(list.get(1) instanceof Number)) {
+            throw new IllegalArgumentException("Compact header missing");
+        }
+        int version = ((Number)list.get(0)).intValue();
+        if (version != VERSION) throw new IllegalArgumentException("Unknown version: " + version);
+        Action action = Action.of(((Number)list.get(1)).intValue());
+        if (action == null) throw new IllegalArgumentException("Unknown action code: " + list.get(1));
+        long seq = list.size() > 8 && list.get(8) instanceof Long ? (Long)list.get(8) : 0L;
+        if (action == Action.ACK) return ack(seq);
+        UUID player = compactUuid(list, 2);
+        UUID game = compactUuid(list, 4);
+        if (action == Action.GAME_CONFIG) {
+            if (list.size() < 8 || !(list.get(6) instanceof String)) {
+                throw new IllegalArgumentException("game_config: key or value missing");
+            }
+            return config(game, (String)list.get(6), list.get(7)).withSeq(seq);
+        }
+        return of(action, player, game).withSeq(seq);
+    }
+
+    private static UUID parseUuid(Object value, String field) {
+        if (!(value instanceof String)) throw new IllegalArgumentException(field + " missing");
+        try {
+            return UUID.fromString((String)value);
+        } catch (IllegalArgumentException iae) {
+            throw new IllegalArgumentException(field + " malformed: " + value);
+        }
+    }
+
+    private static UUID compactUuid(List<?> list, int index) {
+        if (list.size() < index + 2 || list.get(index) == null) return null;
+        Object msb = list.get(index);
+        Object lsb = list.get(index + 1);
+        if (!(msb instanceof Long) || !(lsb instanceof Long)) throw new IllegalArgumentException("UUID malformed at " + index);
+        return new UUID((Long)msb, (Long)lsb);
+    }
+
+    /**
+     * @param compact Whether to use the compact form, else legacy
+     * @return The payload for Connect
+     */
+    Object encode(boolean compact) {
+        if (compact) {
+            List<Object> list = new ArrayList<>(9);
+            list.add(VERSION);
+            list.add(action.code);
+            list.add(player == null ? null : player.getMostSignificantBits());
+            list.add(player == null ? null : player.getLeastSignificantBits());
+            list.add(game == null ? null : game.getMostSignificantBits());
+            list.add(game == null ? null : game.getLeastSignificantBits());
+            if (action == Action.GAME_CONFIG || seq > 0) {
+                list.add(key);
+                list.add(value);
+            }
+            if (seq > 0) list.add(seq);
+            return list;
+        }
+        Map<String, Object> map = new HashMap<>();
+        map.put("action", action.key);
+        if (player != null) map.put("player", player.toString());
+        if (game != null) map.put("game", game.toString());
+        if (action == Action.GAME_CONFIG) {
+            map.put("key", key);
+            map.put("value", value);
+        }
+        if (seq > 0) map.put("seq", seq);
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return action.key + (player != null ? " player=" + player : "") + (game != null ? " game=" + game : "")
+            + (key != null ? " " + key + "=" + value : "") + (seq > 0 ? " seq=" + seq : "");
+    }
+}
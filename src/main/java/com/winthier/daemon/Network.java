@@ -0,0 +1,20 @@
+package com.winthier.daemon;
+
+import com.winthier.connect.OnlinePlayer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The part of Connect which the daemon talks to.  In production,
+ * this is backed by ConnectNetwork.  Benchmarks and simulations
+ * plug in their own implementation.
+ */
+interface Network {
+    void send(String target, String channel, Object payload);
+
+    void broadcast(String channel, Object payload);
+
+    List<OnlinePlayer> getOnlinePlayers();
+
+    Map<String, List<OnlinePlayer>> listPlayers();
+}
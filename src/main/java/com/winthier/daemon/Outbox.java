@@ -0,0 +1,164 @@
+package com.winthier.daemon;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Minigames messages to one game server, numbered in the order they
+ * were queued.  While the server boots, messages wait here and go
+ * out in one pass as soon as it connects.  A server which has
+ * acknowledged a message before gets every message until it
+ * acknowledges it, up to MAX_ATTEMPTS sends ACK_TIMEOUT apart; the
+ * player is told about one which never gets through.  A server which
+ * never acknowledged anything is assumed not to know about acks, and
+ * every message is sent to it exactly once, as it always was.
+ *
+ * Saved with the server, so a daemon restart loses nothing.  Main
+ * thread only.
+ */
+final class Outbox {
+    static final long ACK_TIMEOUT = 5000L;
+    static final int MAX_ATTEMPTS = 5;
+    static final int LIMIT = 256; // Entries waiting at once
+    private final List<Entry> entries = new ArrayList<>(); // By seq
+    private long nextSeq = 1;
+    private boolean acking; // Whether the server has acknowledged anything
+    private long retries, expired; // Metrics
+
+    static final class Entry {
+        final MinigamesMessage message;
+        final UUID player; // To tell if it never arrives, or null
+        int attempts;
+        long lastSent;
+
+        Entry(MinigamesMessage message, UUID player) {
+            this.message = message;
+            this.player = player;
+        }
+    }
+
+    /**
+     * Queue a message with the next sequence number.
+     * @return The entry, or null if the outbox is full
+     */
+    Entry add(MinigamesMessage message, UUID player) {
+        if (entries.size() >= LIMIT) return null;
+        Entry entry = new Entry(message.withSeq(nextSeq++), player);
+        entries.add(entry);
+        return entry;
+    }
+
+    /**
+     * @param all Whether to resend everything which is not
+     *   acknowledged, e.g. after a reconnect, rather than only what
+     *   is new or timed out
+     * @return The entries to send now, in order
+     */
+    List<Entry> due(long now, boolean all) {
+        List<Entry> result = new ArrayList<>();
+        for (Entry entry: entries) {
+            if (all || entry.attempts == 0 || (acking && now - entry.lastSent >= ACK_TIMEOUT && entry.attempts < MAX_ATTEMPTS)) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The entry went out.  Without acks, that is the end of it.
+     */
+    void sent(Entry entry, long now) {
+        if (entry.attempts > 0) retries += 1;
+        entry.attempts += 1;
+        entry.lastSent = now;
+        if (!acking) entries.remove(entry);
+    }
+
+    /**
+     * @return Whether an entry was waiting for this ack
+     */
+    boolean ack(long seq) {
+        acking = true;
+        for (Iterator<Entry> iter = entries.iterator(); iter.hasNext();) {
+            if (iter.next().message.seq == seq) {
+                iter.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove and return the entries which ran out of attempts.
+     */
+    List<Entry> expire(long now) {
+        List<Entry> result = new ArrayList<>();
+        for (Iterator<Entry> iter = entries.iterator(); iter.hasNext();) {
+            Entry entry = iter.next();
+            if (entry.attempts < MAX_ATTEMPTS || now - entry.lastSent < ACK_TIMEOUT) continue;
+            iter.remove();
+            result.add(entry);
+        }
+        expired += result.size();
+        return result;
+    }
+
+    /**
+     * Forget the pending messages, e.g. when the server is released.
+     * Sequence numbers keep counting, and the next game on the slot
+     * runs the same plugin, so it is still trusted to acknowledge.
+     */
+    void clear() {
+        entries.clear();
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    void load(Map<String, Object> map) {
+        entries.clear();
+        if (map.containsKey("next_seq")) nextSeq = ((Number)map.get("next_seq")).longValue();
+        acking = map.get("acking") == Boolean.TRUE;
+        if (!map.containsKey("entries")) return;
+        for (Map<String, Object> js: (List<Map<String, Object>>)map.get("entries")) {
+            try {
+                MinigamesMessage message = MinigamesMessage.decode(js.get("message"));
+                UUID player = js.containsKey("player") ? UUID.fromString((String)js.get("player")) : null;
+                Entry entry = new Entry(message, player);
+                if (js.containsKey("attempts")) entry.attempts = ((Number)js.get("attempts")).intValue();
+                entries.add(entry);
+            } catch (IllegalArgumentException iae) {
+                System.err.println("Dropping saved outbox message: " + iae.getMessage());
+            }
+        }
+    }
+
+    void store(Map<String, Object> map) {
+        map.put("next_seq", nextSeq);
+        if (acking) map.put("acking", acking);
+        List<Object> list = new ArrayList<>();
+        for (Entry entry: entries) {
+            Map<String, Object> js = new HashMap<>();
+            js.put("message", entry.message.encode(false));
+            if (entry.player != null) js.put("player", entry.player.toString());
+            if (entry.attempts > 0) js.put("attempts", entry.attempts);
+            list.add(js);
+        }
+        map.put("entries", list);
+    }
+
+    String report() {
+        return String.format("pending=%d next_seq=%d acking=%s retries=%d expired=%d",
+                             entries.size(), nextSeq, acking, retries, expired);
+    }
+}
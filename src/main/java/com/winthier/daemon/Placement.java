@@ -0,0 +1,160 @@
+package com.winthier.daemon;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Decide whether the host can take one more game server, given the
+ * latest host metrics and what game servers of each type have used
+ * so far.  Servers which are still booting have not reached their
+ * usual footprint, so the rest of their profile is counted as
+ * already taken.
+ */
+final class Placement {
+    enum Verdict {
+        ADMIT, DELAY, REFUSE;
+    }
+    static final double ALPHA = 0.2; // Weight of a new sample in the profile
+    static final long MAX_AGE = 30000L; // Older snapshots are ignored
+    // Configuration, see config/daemon.yml
+    boolean enabled = false;
+    double cpuLimit = 0.85; // Fraction of all cores
+    long memoryReserve = 1024L * 1024L * 1024L; // Bytes kept available
+    double diskLimit = 0.9; // Utilization of the busiest disk
+    // Used for types with no samples yet
+    static final Profile DEFAULT_PROFILE = new Profile(1.0, 1024L * 1024L * 1024L, 0);
+    private final Map<String, Profile> profiles = new TreeMap<>();
+    private String lastReason;
+
+    static final class Profile {
+        double cpu; // Cores
+        long memory; // Bytes
+        long samples;
+
+        Profile(double cpu, long memory, long samples) {
+            this.cpu = cpu;
+            this.memory = memory;
+            this.samples = samples;
+        }
+    }
+
+    Profile getProfile(String gameName) {
+        Profile profile = profiles.get(gameName);
+        return profile != null ? profile : DEFAULT_PROFILE;
+    }
+
+    void update(String gameName, HostMetrics.Usage usage) {
+        Profile profile = profiles.get(gameName);
+        if (profile == null) {
+            profiles.put(gameName, new Profile(usage.cpu, usage.rss, 1));
+            return;
+        }
+        profile.cpu += ALPHA * (usage.cpu - profile.cpu);
+        profile.memory += (long)(ALPHA * (usage.rss - profile.memory));
+        profile.samples += 1;
+    }
+
+    /**
+     * @param booting Game names of the servers still booting,
+     *   by server index
+     */
+    Verdict admit(HostMetrics.Snapshot snapshot, String gameName, Map<Integer, String> booting, long now) {
+        lastReason = null;
+        if (!enabled || snapshot == null || now - snapshot.time > MAX_AGE) return Verdict.ADMIT;
+        Profile profile = getProfile(gameName);
+        double cpuCapacity = cpuLimit * snapshot.cores;
+        // Only a measured footprint is reason enough to refuse.
+        if (profile.samples > 0 && (profile.cpu > cpuCapacity || profile.memory > snapshot.memTotal - memoryReserve)) {
+            lastReason = "needs more than the host has";
+            return Verdict.REFUSE;
+        }
+        // With no game server on the host, there is nothing to protect.
+        if (snapshot.servers.isEmpty() && booting.isEmpty()) return Verdict.ADMIT;
+        double cpu = snapshot.cpuBusy * snapshot.cores + profile.cpu;
+        long memory = snapshot.memAvailable - profile.memory;
+        for (Map.Entry<Integer, String> entry: booting.entrySet()) {
+            Profile other = getProfile(entry.getValue());
+            HostMetrics.Usage usage = snapshot.servers.get(entry.getKey());
+            cpu += Math.max(0.0, other.cpu - (usage == null ? 0.0 : usage.cpu));
+            memory -= Math.max(0L, other.memory - (usage == null ? 0L : usage.rss));
+        }
+        if (cpu > cpuCapacity) {
+            lastReason = String.format("cpu %.1f/%.1f cores", cpu, cpuCapacity);
+            return Verdict.DELAY;
+        }
+        if (memory < memoryReserve) {
+            lastReason = String.format("memory %dMiB left", memory >> 20);
+            return Verdict.DELAY;
+        }
+        if (snapshot.diskBusy > diskLimit) {
+            lastReason = String.format("disk %.0f%% busy", snapshot.diskBusy * 100.0);
+            return Verdict.DELAY;
+        }
+        return Verdict.ADMIT;
+    }
+
+    /**
+     * @return Why the last call to admit() did not admit, or null
+     */
+    String getLastReason() {
+        return lastReason;
+    }
+
+    void load(Map<String, Object> map) {
+        if (map.containsKey("placement_enabled")) enabled = map.get("placement_enabled") == Boolean.TRUE;
+        if (map.containsKey("placement_cpu_limit")) cpuLimit = ((Number)map.get("placement_cpu_limit")).doubleValue();
+        if (map.containsKey("placement_memory_reserve")) memoryReserve = ((Number)map.get("placement_memory_reserve")).longValue() << 20;
+        if (map.containsKey("placement_disk_limit")) diskLimit = ((Number)map.get("placement_disk_limit")).doubleValue();
+    }
+
+    void storeProfiles(Map<String, Object> map) {
+        for (Map.Entry<String, Profile> entry: profiles.entrySet()) {
+            Map<String, Object> profileMap = new HashMap<>();
+            profileMap.put("cpu", entry.getValue().cpu);
+            profileMap.put("memory", entry.getValue().memory);
+            profileMap.put("samples", entry.getValue().samples);
+            map.put(entry.getKey(), profileMap);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    void loadProfiles(Map<String, Object> map) {
+        profiles.clear();
+        for (Map.Entry<String, Object> entry: map.entrySet()) {
+            Map<String, Object> profileMap = (Map<String, Object>)entry.getValue();
+            profiles.put(entry.getKey(), new Profile(((Number)profileMap.get("cpu")).doubleValue(),
+                                                     ((Number)profileMap.get("memory")).longValue(),
+                                                     ((Number)profileMap.get("samples")).longValue()));
+        }
+    }
+
+    static List<String> reportHost(HostMetrics.Snapshot snapshot) {
+        List<String> lines = new ArrayList<>();
+        if (snapshot == null) {
+            lines.add("no host metrics");
+            return lines;
+        }
+        lines.add(String.format("host cores=%d cpu=%.0f%% memory=%d/%dMiB available disk=%.0f%%",
+                                snapshot.cores, snapshot.cpuBusy * 100.0, snapshot.memAvailable >> 20,
+                                snapshot.memTotal >> 20, snapshot.diskBusy * 100.0));
+        for (Map.Entry<Integer, HostMetrics.Usage> entry: new TreeMap<>(snapshot.servers).entrySet()) {
+            lines.add(String.format("game%d cpu=%.2f rss=%dMiB", entry.getKey(), entry.getValue().cpu, entry.getValue().rss >> 20));
+        }
+        return lines;
+    }
+
+    List<String> report(HostMetrics.Snapshot snapshot) {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("enabled=%s cpu_limit=%.2f memory_reserve=%dMiB disk_limit=%.2f",
+                                enabled, cpuLimit, memoryReserve >> 20, diskLimit));
+        lines.addAll(reportHost(snapshot));
+        for (Map.Entry<String, Profile> entry: profiles.entrySet()) {
+            Profile profile = entry.getValue();
+            lines.add(String.format("profile %s cpu=%.2f memory=%dMiB samples=%d", entry.getKey(), profile.cpu, profile.memory >> 20, profile.samples));
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,190 @@
+package com.winthier.daemon;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PushbackReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every child process of the daemon and the agent is started here.
+ * Output is either inherited or read into a LineBuffer as it comes,
+ * never left sitting in a pipe, so a chatty child cannot block on a
+ * full pipe buffer.  Children are tracked until their exit, which
+ * also reaps them.  A child which runs past its timeout gets SIGTERM,
+ * along with anything it started, and SIGKILL if that is not enough.
+ */
+final class Processes {
+    static final long KILL_DELAY = 10000L;
+    static final int OUTPUT_LINES = 200;
+    private static final Map<Long, Child> LIVE = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Processes");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    private Processes() { }
+
+    static final class Child {
+        final Process process;
+        final String command;
+        final long started;
+        final LineBuffer output; // Null unless captured
+        volatile boolean timedOut;
+
+        Child(Process process, String command, LineBuffer output) {
+            this.process = process;
+            this.command = command;
+            this.started = System.currentTimeMillis();
+            this.output = output;
+        }
+    }
+
+    /**
+     * Start a process without waiting for it.  Its output is up to
+     * the caller, who must either redirect it or read it.
+     */
+    static Process fork(ProcessBuilder pb) throws IOException {
+        return start(pb, null, 0).process;
+    }
+
+    /**
+     * Start a process with stderr merged into stdout, and keep the
+     * last lines of its output.
+     * @param timeout Millis until it is terminated, or 0 for never
+     */
+    static Child capture(ProcessBuilder pb, long timeout) throws IOException {
+        pb.redirectErrorStream(true);
+        final Child child = start(pb, new LineBuffer(OUTPUT_LINES), timeout);
+        Thread pump = new Thread(() -> pump(child), "Processes-" + child.process.pid());
+        pump.setDaemon(true);
+        pump.start();
+        return child;
+    }
+
+    /**
+     * Start a process and wait for it to exit.  Output which is left
+     * as a pipe is discarded.
+     * @return The exit code, or -1 if it ran past the timeout
+     */
+    static int run(ProcessBuilder pb, long timeout) throws IOException, InterruptedException {
+        if (pb.redirectOutput() == ProcessBuilder.Redirect.PIPE) pb.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        if (pb.redirectError() == ProcessBuilder.Redirect.PIPE) pb.redirectError(ProcessBuilder.Redirect.DISCARD);
+        Events.Fork event = new Events.Fork();
+        event.begin();
+        int ret = -1;
+        try {
+            Child child = track(pb.start(), pb, null, 0);
+            if (child.process.waitFor(timeout, TimeUnit.MILLISECONDS)) {
+                ret = child.process.exitValue();
+            } else {
+                System.err.println("Timed out after " + timeout + "ms: " + child.command);
+                child.timedOut = true;
+                terminate(child.process, KILL_DELAY);
+            }
+            return ret;
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.target = String.join(" ", pb.command());
+                event.payloadSize = event.target.length(); // All that goes in
+                event.waited = true;
+                event.exitCode = ret;
+                event.commit();
+            }
+        }
+    }
+
+    private static Child start(ProcessBuilder pb, LineBuffer output, long timeout) throws IOException {
+        Events.Fork event = new Events.Fork();
+        event.begin();
+        Process process;
+        try {
+            process = pb.start();
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.target = String.join(" ", pb.command());
+                event.payloadSize = event.target.length(); // All that goes in
+                event.commit();
+            }
+        }
+        return track(process, pb, output, timeout);
+    }
+
+    /**
+     * Register a started process until it exits.  run() records its
+     * own Fork event, which covers the wait, so it comes here
+     * directly rather than through start().
+     */
+    private static Child track(Process process, ProcessBuilder pb, LineBuffer output, long timeout) {
+        final Child child = new Child(process, String.join(" ", pb.command()), output);
+        final long pid = process.pid();
+        LIVE.put(pid, child);
+        process.onExit().thenRun(() -> LIVE.remove(pid));
+        if (timeout > 0) {
+            schedule(() -> {
+                    if (!child.process.isAlive()) return;
+                    System.err.println("Timed out after " + timeout + "ms: " + child.command);
+                    child.timedOut = true;
+                    terminate(child.process, KILL_DELAY);
+                }, timeout);
+        }
+        return child;
+    }
+
+    private static void pump(Child child) {
+        try (PushbackReader reader = new PushbackReader(new BufferedReader(new InputStreamReader(child.process.getInputStream(), StandardCharsets.UTF_8)))) {
+            String line;
+            while ((line = LineBuffer.readLine(reader)) != null) {
+                child.output.add(line);
+            }
+        } catch (IOException ioe) {
+            // Closed along with the process.
+        }
+    }
+
+    /**
+     * SIGTERM the process and its descendants now, and SIGKILL
+     * whichever of them are still around after the delay.
+     */
+    static void terminate(Process process, long killDelay) {
+        final List<ProcessHandle> handles = new ArrayList<>();
+        process.descendants().forEach(handles::add);
+        handles.add(process.toHandle());
+        for (ProcessHandle handle: handles) handle.destroy();
+        schedule(() -> {
+                for (ProcessHandle handle: handles) {
+                    if (handle.isAlive()) handle.destroyForcibly();
+                }
+            }, killDelay);
+    }
+
+    static void schedule(Runnable runnable, long delay) {
+        SCHEDULER.schedule(runnable, delay, TimeUnit.MILLISECONDS);
+    }
+
+    static int getLiveCount() {
+        return LIVE.size();
+    }
+
+    static List<String> report(long now) {
+        List<String> lines = new ArrayList<>();
+        lines.add("live children: " + LIVE.size());
+        for (Map.Entry<Long, Child> entry: new TreeMap<>(LIVE).entrySet()) {
+            Child child = entry.getValue();
+            lines.add(String.format("pid=%d age=%ds%s %s", entry.getKey(), (now - child.started) / 1000L,
+                                    child.timedOut ? " timed_out" : "", child.command));
+        }
+        return lines;
+    }
+}
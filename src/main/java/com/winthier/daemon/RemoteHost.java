@@ -0,0 +1,412 @@
+package com.winthier.daemon;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.simple.JSONValue;
+
+/**
+ * Game server slots on another machine, driven by an Agent over
+ * TCP.  Both sides exchange one JSON object per line.  Every
+ * request carries an id which the response repeats, so slow setup
+ * calls don't hold up the rest.  Lines without an id are events,
+ * such as a server exit.  The connection thread reconnects forever;
+ * the status thread refreshes capacity, host metrics and the
+ * running slots, which answer exists() without a round trip.
+ *
+ * A host which drops out is still trusted for GRACE millis, so a
+ * short network hiccup does not end the games running there.  A
+ * stop is remembered until it reached the agent and a later status
+ * shows the slot empty, so a slot whose call was cut off by a
+ * disconnect is not handed out while its server may still be up.
+ */
+final class RemoteHost implements GameHost {
+    static final long RECONNECT_DELAY = 2000L;
+    static final long STATUS_INTERVAL = 5000L;
+    static final long GRACE = 30000L;
+    static final long SHORT_TIMEOUT = 5000L;
+    static final long LONG_TIMEOUT = 5L * 60L * 1000L; // Setup and start
+    private final String name;
+    private final String address;
+    private final int port;
+    private final String token;
+    private final int firstSlot; // Server index of the first slot, must match the agent
+    private final AtomicLong nextId = new AtomicLong();
+    private final Map<Long, CompletableFuture<Map<String, Object>>> pending = new ConcurrentHashMap<>();
+    private volatile PrintWriter out;
+    private volatile boolean connected, stopped;
+    private volatile int capacity, children;
+    private volatile long lastSeen;
+    private volatile HostMetrics.Snapshot snapshot;
+    private volatile GameProcess.ExitListener exitListener;
+    private final Map<Integer, Long> pids = new ConcurrentHashMap<>();
+    private final Map<Integer, Long> startTimes = new ConcurrentHashMap<>(); // When the pid came in
+    private volatile Running running; // As of the last status, null before the first
+    private final Map<Integer, Long> stopping = new ConcurrentHashMap<>(); // When the stop went out, 0 if not yet
+    private boolean complained; // Connection thread only
+
+    RemoteHost(String name, String address, int port, String token, int firstSlot) {
+        this.name = name;
+        this.address = address;
+        this.port = port;
+        this.token = token;
+        this.firstSlot = firstSlot;
+        // Games already running there get the grace period after a
+        // daemon restart.
+        this.lastSeen = System.currentTimeMillis();
+    }
+
+    void start() {
+        Thread thread = new Thread(this::connectLoop, "RemoteHost-" + name);
+        thread.setDaemon(true);
+        thread.start();
+        Thread statusThread = new Thread(this::statusLoop, "RemoteHost-" + name + "-status");
+        statusThread.setDaemon(true);
+        statusThread.start();
+    }
+
+    void stop() {
+        stopped = true;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return connected;
+    }
+
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public HostMetrics.Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @return The live child processes of the agent as of the last
+     *   status
+     */
+    int getChildren() {
+        return children;
+    }
+
+    long getLastSeen() {
+        return lastSeen;
+    }
+
+    @Override
+    public int setup(String script, String gameName, int index, String mapPath) {
+        Map<String, Object> request = new HashMap<>();
+        request.put("op", "setup");
+        request.put("script", script);
+        request.put("game", gameName);
+        request.put("index", index);
+        request.put("map_path", mapPath);
+        stopping.remove(index);
+        Map<String, Object> response = call(request, LONG_TIMEOUT);
+        if (response == null) return HOST_LOST;
+        return ((Number)response.get("ret")).intValue();
+    }
+
+    @Override
+    public int start(int index, int port, Map<String, Object> gameConfig, Map<String, Long> phases) {
+        Map<String, Object> request = new HashMap<>();
+        request.put("op", "start");
+        request.put("index", index);
+        request.put("port", port);
+        request.put("config", gameConfig);
+        stopping.remove(index);
+        Map<String, Object> response = call(request, LONG_TIMEOUT);
+        if (response == null) return HOST_LOST;
+        // Agent clock, close enough for the boot phase.
+        if (response.get("launch") instanceof Number) phases.put(GameTimings.LAUNCH, ((Number)response.get("launch")).longValue());
+        if (response.get("pid") instanceof Number) putPid(index, ((Number)response.get("pid")).longValue());
+        return ((Number)response.get("ret")).intValue();
+    }
+
+    /**
+     * The slots with a live session, and when the agent was asked.
+     */
+    static final class Running {
+        final Set<Integer> slots;
+        final long time;
+
+        Running(Set<Integer> slots, long time) {
+            this.slots = slots;
+            this.time = time;
+        }
+    }
+
+    private void putPid(int index, long pid) {
+        startTimes.put(index, System.currentTimeMillis());
+        pids.put(index, pid);
+    }
+
+    /**
+     * Right after a daemon restart, the agent may not be connected
+     * yet, so wait for it as long as the grace period.
+     */
+    @Override
+    public int resume(int index, Map<String, Long> phases) {
+        try {
+            while (!connected && System.currentTimeMillis() - lastSeen < GRACE) Thread.sleep(500L);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return HOST_LOST;
+        }
+        Map<String, Object> request = new HashMap<>();
+        request.put("op", "resume");
+        request.put("index", index);
+        stopping.remove(index);
+        Map<String, Object> response = call(request, LONG_TIMEOUT);
+        if (response == null) return HOST_LOST;
+        if (response.get("pid") instanceof Number) putPid(index, ((Number)response.get("pid")).longValue());
+        return ((Number)response.get("ret")).intValue();
+    }
+
+    /**
+     * Answered from the last status, so the main thread never waits
+     * on the network.  A session started after that status was
+     * requested counts as alive.  While disconnected, the session
+     * counts as alive until the grace period is over.  A stopped
+     * session counts as alive until a status requested after the
+     * stop went out no longer lists it.
+     */
+    @Override
+    public boolean exists(int index) {
+        Long stopSent = stopping.get(index);
+        if (stopSent != null) {
+            Running known = running;
+            if (stopSent == 0L || known == null || known.time < stopSent || known.slots.contains(index)) return true;
+            stopping.remove(index, stopSent);
+            return false;
+        }
+        if (!connected) return System.currentTimeMillis() - lastSeen < GRACE;
+        Running known = running;
+        if (known == null || known.slots.contains(index)) return true;
+        Long started = startTimes.get(index);
+        return started != null && started >= known.time;
+    }
+
+    /**
+     * Sent now if connected, or else right after the next connect.
+     */
+    @Override
+    public void stop(int index) {
+        stopping.put(index, 0L);
+        sendStops(null, 0L);
+    }
+
+    /**
+     * Send the stops which have not gone out yet, and again those of
+     * slots which are still running in a status requested after the
+     * stop, such as one which was still being set up when it came.
+     * Stopping twice does no harm.
+     * @param running The running slots, or null
+     * @param requested When the status was requested
+     */
+    private void sendStops(Set<Integer> running, long requested) {
+        for (Map.Entry<Integer, Long> entry: stopping.entrySet()) {
+            int index = entry.getKey();
+            long sent = entry.getValue();
+            if (sent != 0L && (running == null || !running.contains(index) || sent > requested)) continue;
+            Map<String, Object> request = new HashMap<>();
+            request.put("op", "stop");
+            request.put("index", index);
+            long now = System.currentTimeMillis();
+            if (send(request, null) >= 0) stopping.replace(index, sent, now);
+        }
+    }
+
+    @Override
+    public long getPid(int index) {
+        Long pid = pids.get(index);
+        return pid != null ? pid : -1L;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<String> getLog(int index, int lines) {
+        Map<String, Object> request = new HashMap<>();
+        request.put("op", "log");
+        request.put("index", index);
+        request.put("lines", lines);
+        Map<String, Object> response = call(request, SHORT_TIMEOUT);
+        if (response == null || !(response.get("lines") instanceof List)) return Collections.emptyList();
+        return new ArrayList<>((List<String>)response.get("lines"));
+    }
+
+    @Override
+    public void setExitListener(GameProcess.ExitListener listener) {
+        this.exitListener = listener;
+    }
+
+    /**
+     * Send a request and wait for the response.
+     * @return The response, or null if the host is gone or did not
+     *   answer in time
+     */
+    Map<String, Object> call(Map<String, Object> request, long timeout) {
+        CompletableFuture<Map<String, Object>> future = new CompletableFuture<>();
+        long id = send(request, future);
+        if (id < 0) return null;
+        try {
+            Map<String, Object> response = future.get(timeout, TimeUnit.MILLISECONDS);
+            if (response != null && response.containsKey("error")) {
+                System.err.println("Host " + name + ": " + request.get("op") + ": " + response.get("error"));
+                return null;
+            }
+            return response;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException e) {
+            System.err.println("Host " + name + ": " + request.get("op") + ": " + e);
+            return null;
+        } finally {
+            pending.remove(id);
+        }
+    }
+
+    void send(Map<String, Object> request) {
+        send(request, null);
+    }
+
+    private long send(Map<String, Object> request, CompletableFuture<Map<String, Object>> future) {
+        PrintWriter writer = out;
+        if (writer == null) return -1;
+        long id = nextId.incrementAndGet();
+        request.put("id", id);
+        if (future != null) {
+            pending.put(id, future);
+            // Lost the race against a disconnect.
+            if (out != writer) future.complete(null);
+        }
+        String line = JSONValue.toJSONString(request);
+        synchronized (writer) {
+            writer.println(line);
+            writer.flush();
+        }
+        return id;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void connectLoop() {
+        while (!stopped) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(address, port), (int)SHORT_TIMEOUT);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                PrintWriter writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                // The hello exchange happens before anything else.
+                Map<String, Object> hello = new HashMap<>();
+                hello.put("op", "hello");
+                hello.put("id", 0);
+                if (token != null) hello.put("token", token);
+                writer.println(JSONValue.toJSONString(hello));
+                writer.flush();
+                String line = in.readLine();
+                if (line == null) throw new IOException("Closed during hello");
+                Map<String, Object> reply = (Map<String, Object>)JSONValue.parse(line);
+                if (reply == null || reply.containsKey("error")) {
+                    throw new IOException("Hello refused: " + (reply == null ? line : reply.get("error")));
+                }
+                capacity = ((Number)reply.get("slots")).intValue();
+                int agentSlot = reply.get("first_slot") instanceof Number ? ((Number)reply.get("first_slot")).intValue() : 0;
+                if (agentSlot != firstSlot) {
+                    System.err.println("Host " + name + " runs slots from " + agentSlot + " but should from " + firstSlot
+                                       + ", see --first-slot");
+                }
+                lastSeen = System.currentTimeMillis();
+                out = writer;
+                connected = true;
+                complained = false;
+                System.out.println("Host " + name + " connected with " + capacity + " slots");
+                sendStops(null, 0L);
+                while ((line = in.readLine()) != null) {
+                    Map<String, Object> response = (Map<String, Object>)JSONValue.parse(line);
+                    if (response == null) continue;
+                    lastSeen = System.currentTimeMillis();
+                    if ("exit".equals(response.get("event"))) {
+                        int index = ((Number)response.get("index")).intValue();
+                        long pid = ((Number)response.get("pid")).longValue();
+                        pids.remove(index, pid);
+                        GameProcess.ExitListener listener = exitListener;
+                        if (listener != null) listener.onExit(index, pid, ((Number)response.get("code")).intValue());
+                        continue;
+                    }
+                    if (!(response.get("id") instanceof Number)) continue;
+                    CompletableFuture<Map<String, Object>> future = pending.remove(((Number)response.get("id")).longValue());
+                    if (future != null) future.complete(response);
+                }
+            } catch (IOException | RuntimeException e) {
+                // Only the first of a series of failures is worth a line.
+                if (!complained) System.err.println("Host " + name + ": " + e);
+                complained = true;
+            }
+            if (connected) System.out.println("Host " + name + " disconnected");
+            connected = false;
+            out = null;
+            for (CompletableFuture<Map<String, Object>> future: pending.values()) future.complete(null);
+            pending.clear();
+            try {
+                Thread.sleep(RECONNECT_DELAY);
+            } catch (InterruptedException ie) {
+                return;
+            }
+        }
+    }
+
+    private void statusLoop() {
+        while (!stopped) {
+            try {
+                Thread.sleep(STATUS_INTERVAL);
+            } catch (InterruptedException ie) {
+                return;
+            }
+            if (!connected) continue;
+            Map<String, Object> request = new HashMap<>();
+            request.put("op", "status");
+            long requested = System.currentTimeMillis();
+            Map<String, Object> response = call(request, SHORT_TIMEOUT);
+            if (response == null) continue;
+            if (response.get("running") instanceof List) {
+                Set<Integer> set = new HashSet<>();
+                for (Object index: (List<?>)response.get("running")) set.add(((Number)index).intValue());
+                running = new Running(set, requested);
+                sendStops(set, requested);
+            }
+            capacity = ((Number)response.get("slots")).intValue();
+            if (response.get("children") instanceof Number) children = ((Number)response.get("children")).intValue();
+            if (response.containsKey("cores")) snapshot = HostMetrics.load(response, System.currentTimeMillis());
+        }
+    }
+}
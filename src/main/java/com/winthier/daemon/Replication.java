@@ -0,0 +1,394 @@
+package com.winthier.daemon;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import org.json.simple.JSONValue;
+
+/**
+ * Hot standby.  The primary daemon streams every save file it writes
+ * to its standbys over TCP, one JSON object per line, as RemoteHost
+ * and Agent do.  A standby which connects first gets all current
+ * save files, then each one as it is written, plus a heartbeat every
+ * HEARTBEAT_INTERVAL.
+ *
+ * A standby takes over once the primary has been silent for
+ * FAILOVER_TIMEOUT, or its connection is gone, and only if it gets
+ * the lock file, which the primary holds for as long as its process
+ * lives.  A primary which is merely slow or cut off keeps the lock,
+ * so there are never two daemons handing out the same server slots.
+ * The lock only fences daemons which share it, i.e. both instances
+ * on the same machine.
+ *
+ * See replication_* in config/daemon.yml and the --standby option of
+ * Daemon.
+ */
+final class Replication {
+    static final long HEARTBEAT_INTERVAL = 1000L;
+    static final long FAILOVER_TIMEOUT = 5000L;
+    static final long RECONNECT_DELAY = 1000L;
+    static final int QUEUE_LIMIT = 1024; // Lines waiting per standby
+    static final Pattern SAVE_PATH = Pattern.compile("save/[A-Za-z0-9_.-]+\\.save");
+    private final String address;
+    private final int port;
+    private final String token;
+    private final List<Follower> followers = new CopyOnWriteArrayList<>();
+    private ServerSocket serverSocket;
+    private volatile boolean stopped;
+    // Metrics
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong publishedBytes = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    Replication(String address, int port, String token) {
+        this.address = address;
+        this.port = port;
+        this.token = token;
+    }
+
+    /**
+     * @return The replication settings, or null if there is no
+     *   replication_port
+     */
+    static Replication fromConfig(Map<String, Object> map) {
+        if (!(map.get("replication_port") instanceof Number)) return null;
+        String address = map.containsKey("replication_address") ? (String)map.get("replication_address") : "127.0.0.1";
+        return new Replication(address, ((Number)map.get("replication_port")).intValue(), (String)map.get("replication_token"));
+    }
+
+    /**
+     * @return The lock, or null if another process, or this one,
+     *   holds it already
+     */
+    @SuppressWarnings("resource") // The channel lives as long as the lock
+    static FileLock tryLock(File file) {
+        file.getParentFile().mkdirs();
+        try {
+            FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+            FileLock lock;
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException ofle) {
+                lock = null;
+            }
+            if (lock == null) channel.close();
+            return lock;
+        } catch (IOException ioe) {
+            System.err.println("Lock " + file + ": " + ioe.getMessage());
+            return null;
+        }
+    }
+
+    // Primary
+
+    /**
+     * Listen for standbys.  Each new one gets a snapshot of the save
+     * files, read on the main thread so that no save is half written.
+     * @param mainThread Runs a task on the main thread
+     * @param baseDir The directory with save/ in it
+     */
+    void startPrimary(final Executor mainThread, final File baseDir) throws IOException {
+        serverSocket = new ServerSocket(port, 0, InetAddress.getByName(address));
+        serverSocket.setReuseAddress(true);
+        System.out.println("Replication listening on " + address + ":" + serverSocket.getLocalPort());
+        Thread acceptThread = new Thread(() -> {
+                while (!stopped) {
+                    final Socket socket;
+                    try {
+                        socket = serverSocket.accept();
+                    } catch (IOException ioe) {
+                        if (!stopped) ioe.printStackTrace();
+                        continue;
+                    }
+                    Thread thread = new Thread(() -> handleStandby(socket, mainThread, baseDir), "Replication-" + socket.getRemoteSocketAddress());
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            }, "Replication");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        Thread heartbeatThread = new Thread(() -> {
+                while (!stopped) {
+                    try {
+                        Thread.sleep(HEARTBEAT_INTERVAL);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                    Map<String, Object> event = new HashMap<>();
+                    event.put("event", "heartbeat");
+                    event.put("time", System.currentTimeMillis());
+                    String line = JSONValue.toJSONString(event);
+                    for (Follower follower: followers) follower.send(line);
+                }
+            }, "Replication-heartbeat");
+        heartbeatThread.setDaemon(true);
+        heartbeatThread.start();
+    }
+
+    void stop() {
+        stopped = true;
+        for (Follower follower: followers) follower.close();
+        followers.clear();
+        if (serverSocket == null) return;
+        try {
+            serverSocket.close();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+    }
+
+    /**
+     * A replicated save file, with the time the primary wrote it.
+     */
+    static final class SaveFile {
+        final String data;
+        final long modified;
+
+        SaveFile(String data, long modified) {
+            this.data = data;
+            this.modified = modified;
+        }
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Send a save file which was just written to every standby.
+     * Main thread only, so the order of saves is kept.
+     */
+    void publish(String path, File file) {
+        if (followers.isEmpty()) return;
+        String data;
+        try {
+            data = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            return;
+        }
+        String line = saveEvent(path, data, file.lastModified());
+        for (Follower follower: followers) follower.send(line);
+        published.incrementAndGet();
+        publishedBytes.addAndGet(data.length());
+    }
+
+    private static String saveEvent(String path, String data, long modified) {
+        Map<String, Object> event = new HashMap<>();
+        event.put("event", "save");
+        event.put("path", path);
+        event.put("data", data);
+        event.put("modified", modified);
+        return JSONValue.toJSONString(event);
+    }
+
+    private boolean checkToken(Object given) {
+        if (!(given instanceof String)) return false;
+        return MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), ((String)given).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void handleStandby(Socket socket, Executor mainThread, final File baseDir) {
+        final Follower follower;
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            socket.setSoTimeout((int)FAILOVER_TIMEOUT);
+            String line = in.readLine();
+            Map<String, Object> hello = line == null ? null : (Map<String, Object>)JSONValue.parse(line);
+            Map<String, Object> reply = new HashMap<>();
+            if (hello == null || !"hello".equals(hello.get("op"))) {
+                reply.put("error", "Expected hello");
+            } else if (token != null && !checkToken(hello.get("token"))) {
+                reply.put("error", "Bad token");
+            } else {
+                reply.put("ok", true);
+            }
+            out.println(JSONValue.toJSONString(reply));
+            out.flush();
+            if (reply.containsKey("error")) {
+                socket.close();
+                return;
+            }
+            socket.setSoTimeout(0);
+            follower = new Follower(socket, out);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Standby " + socket.getRemoteSocketAddress() + ": " + e);
+            try {
+                socket.close();
+            } catch (IOException ioe) { }
+            return;
+        }
+        System.out.println("Standby connected from " + socket.getRemoteSocketAddress());
+        mainThread.execute(() -> {
+                File[] files = new File(baseDir, "save").listFiles();
+                if (files != null) {
+                    for (File file: files) {
+                        String path = "save/" + file.getName();
+                        if (!SAVE_PATH.matcher(path).matches()) continue;
+                        try {
+                            follower.send(saveEvent(path, new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8),
+                                                    file.lastModified()));
+                        } catch (IOException ioe) {
+                            ioe.printStackTrace();
+                        }
+                    }
+                }
+                if (!follower.closed) followers.add(follower);
+            });
+        follower.writeLoop();
+        followers.remove(follower);
+        System.out.println("Standby disconnected from " + socket.getRemoteSocketAddress());
+    }
+
+    /**
+     * A connected standby.  Lines wait in a bounded queue, so a slow
+     * standby never holds up the main thread; one which falls too
+     * far behind is dropped and syncs again when it reconnects.
+     */
+    private final class Follower {
+        private final Socket socket;
+        private final PrintWriter out;
+        private final BlockingQueue<String> queue = new LinkedBlockingQueue<>(QUEUE_LIMIT);
+        private volatile boolean closed;
+
+        Follower(Socket socket, PrintWriter out) {
+            this.socket = socket;
+            this.out = out;
+        }
+
+        void send(String line) {
+            if (closed) return;
+            if (!queue.offer(line)) {
+                System.err.println("Standby " + socket.getRemoteSocketAddress() + " fell behind");
+                dropped.incrementAndGet();
+                close();
+            }
+        }
+
+        void writeLoop() {
+            try {
+                while (!closed) {
+                    String line = queue.poll(HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+                    if (line == null) continue;
+                    out.println(line);
+                    if (queue.isEmpty()) out.flush();
+                    if (out.checkError()) break;
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            close();
+        }
+
+        void close() {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException ioe) { }
+        }
+    }
+
+    // Standby
+
+    /**
+     * Follow the primary until it is gone and the lock file is ours.
+     * Blocks the calling thread.
+     * @param files Gets the latest save files of the primary, by
+     *   path.  They may lag behind what the primary wrote to its own
+     *   disk.
+     * @return The lock, which the caller keeps for as long as it is
+     *   the primary
+     */
+    @SuppressWarnings("unchecked")
+    FileLock follow(File lockFile, Map<String, SaveFile> files) {
+        boolean complained = false;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(address, port), (int)FAILOVER_TIMEOUT);
+                socket.setSoTimeout((int)FAILOVER_TIMEOUT);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                Map<String, Object> hello = new HashMap<>();
+                hello.put("op", "hello");
+                if (token != null) hello.put("token", token);
+                out.println(JSONValue.toJSONString(hello));
+                out.flush();
+                String line = in.readLine();
+                if (line == null) throw new IOException("Closed during hello");
+                Map<String, Object> reply = (Map<String, Object>)JSONValue.parse(line);
+                if (reply == null || reply.containsKey("error")) {
+                    throw new IOException("Hello refused: " + (reply == null ? line : reply.get("error")));
+                }
+                System.out.println("Following primary at " + address + ":" + port);
+                complained = false;
+                while ((line = in.readLine()) != null) {
+                    Map<String, Object> event = (Map<String, Object>)JSONValue.parse(line);
+                    if (event == null || !"save".equals(event.get("event"))) continue;
+                    String path = (String)event.get("path");
+                    if (path == null || !SAVE_PATH.matcher(path).matches()) {
+                        System.err.println("Ignoring replicated file " + path);
+                        continue;
+                    }
+                    long modified = event.get("modified") instanceof Number ? ((Number)event.get("modified")).longValue() : 0L;
+                    files.put(path, new SaveFile((String)event.get("data"), modified));
+                }
+                System.out.println("Primary closed the connection");
+            } catch (SocketTimeoutException ste) {
+                System.out.println("Primary silent for " + FAILOVER_TIMEOUT + "ms");
+            } catch (IOException | RuntimeException e) {
+                // Only the first of a series of failures is worth a line.
+                if (!complained) System.err.println("Primary at " + address + ":" + port + ": " + e);
+                complained = true;
+            }
+            FileLock lock = tryLock(lockFile);
+            if (lock != null) {
+                System.out.println("Taking over with " + files.size() + " replicated files");
+                return lock;
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    List<String> report() {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("primary on %s:%d standbys=%d published=%d bytes=%d dropped=%d",
+                                address, serverSocket == null ? port : serverSocket.getLocalPort(),
+                                followers.size(), published.get(), publishedBytes.get(), dropped.get()));
+        for (Follower follower: followers) {
+            lines.add("  standby " + follower.socket.getRemoteSocketAddress() + " queued=" + follower.queue.size());
+        }
+        return lines;
+    }
+}
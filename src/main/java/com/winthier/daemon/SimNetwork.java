@@ -0,0 +1,101 @@
+package com.winthier.daemon;
+
+import com.winthier.connect.OnlinePlayer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import lombok.RequiredArgsConstructor;
+import org.json.simple.JSONValue;
+
+/**
+ * In-memory stand-in for the Connect network, used by Simulation.
+ * Payloads are serialized like Connect would, game servers acknowledge
+ * and answer join and spectate requests, and player transfers move players
+ * between servers.  Only ever called from the daemon main thread,
+ * after setup.
+ */
+@RequiredArgsConstructor
+final class SimNetwork implements Network {
+    private final Simulation simulation;
+    private final List<OnlinePlayer> onlinePlayers = new ArrayList<>();
+    private final Map<String, List<OnlinePlayer>> serverPlayers = new HashMap<>();
+    private final Map<UUID, OnlinePlayer> players = new HashMap<>();
+    private final Map<UUID, String> locations = new HashMap<>();
+    long messages;
+    long bytes;
+
+    void addPlayer(OnlinePlayer player, String server) {
+        onlinePlayers.add(player);
+        players.put(player.getUuid(), player);
+        move(player, server);
+    }
+
+    private void move(OnlinePlayer player, String server) {
+        String old = locations.put(player.getUuid(), server);
+        if (old != null) serverPlayers.get(old).remove(player);
+        List<OnlinePlayer> list = serverPlayers.get(server);
+        if (list == null) {
+            list = new ArrayList<>();
+            serverPlayers.put(server, list);
+        }
+        list.add(player);
+    }
+
+    private void count(Object payload) {
+        messages += 1;
+        bytes += JSONValue.toJSONString(payload).length();
+    }
+
+    @Override
+    public void send(String target, String channel, Object payload) {
+        count(payload);
+        if (Transfers.CHANNEL.equals(channel)) {
+            transfer(payload);
+            return;
+        }
+        if (!"minigames".equals(channel)) return;
+        MinigamesMessage message = MinigamesMessage.decode(payload);
+        if (message.seq > 0) simulation.reply(target, MinigamesMessage.ack(message.seq).encode(payload instanceof List));
+        MinigamesMessage.Action action;
+        switch (message.action) {
+        case PLAYER_JOIN_GAME: action = MinigamesMessage.Action.GAME_ADD_PLAYER; break;
+        case PLAYER_SPECTATE_GAME: action = MinigamesMessage.Action.GAME_ADD_SPECTATOR; break;
+        default: return;
+        }
+        // The game server accepts every request, in the form it got.
+        simulation.reply(target, MinigamesMessage.of(action, message.player, message.game).encode(payload instanceof List));
+    }
+
+    @Override
+    public void broadcast(String channel, Object payload) {
+        count(payload);
+        if (Transfers.CHANNEL.equals(channel)) transfer(payload);
+    }
+
+    // Either a single player or, batched, a list of players.
+    @SuppressWarnings("unchecked")
+    private void transfer(Object payload) {
+        if (!(payload instanceof Map)) return;
+        Map<String, Object> map = (Map<String, Object>)payload;
+        List<String> uuids = map.containsKey("players")
+            ? (List<String>)map.get("players")
+            : Collections.singletonList((String)map.get("player"));
+        for (String uuid: uuids) {
+            OnlinePlayer player = players.get(UUID.fromString(uuid));
+            if (player != null) move(player, (String)map.get("server"));
+        }
+    }
+
+    @Override
+    public List<OnlinePlayer> getOnlinePlayers() {
+        return onlinePlayers;
+    }
+
+    @Override
+    public Map<String, List<OnlinePlayer>> listPlayers() {
+        return serverPlayers;
+    }
+}
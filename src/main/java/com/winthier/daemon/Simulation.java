@@ -0,0 +1,507 @@
+package com.winthier.daemon;
+
+import com.winthier.connect.OnlinePlayer;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.json.simple.JSONValue;
+
+/**
+ * Offline load simulation.  Runs a daemon in a scratch directory
+ * against SimNetwork and the simulated scripts in sim/script, drives
+ * scripted workloads through the task queue, and reports throughput
+ * and latency per phase.
+ *
+ * Usage, from the daemon base dir:
+ *   java ... com.winthier.daemon.Simulation [--players 2000] [--parties 50]
+ *     [--party-size 8] [--menu 20000] [--rate 0] [--slots 20]
+ *     [--setup-delay 1] [--boot-delay 1] [--log-delay 1]
+ *     [--setup-fail 20] [--start-fail 20] [--end-repeat 3]
+ *     [--scripts sim/script] [--agents 0] [--agent-slots 4] [--compact] [--batch-transfers]
+ *     [--standby] [--keep]
+ * Failure rates are per mille.  A rate of 0 submits each phase as
+ * one burst.  With agents, that many Agents run on localhost, each
+ * in its own directory, and add their slots to the local ones.  With
+ * compact, minigames messages use the compact wire form both ways.
+ * With batch transfers, one message moves a whole lobby.  With
+ * standby, a standby follows the daemon's saves over localhost and
+ * takes over once the daemon has stopped and released its lock; its
+ * copies are then compared with the save files.
+ */
+final class Simulation {
+    static final String GAME_NAME = "colorfall";
+    final Daemon daemon = new Daemon();
+    final SimNetwork network = new SimNetwork(this);
+    final Random random = new Random(1);
+    final List<OnlinePlayer> players = new ArrayList<>();
+    // Options
+    int playerCount = 2000;
+    int parties = 50;
+    int partySize = 8;
+    int menuRequests = 20000;
+    int rate = 0; // tasks per second
+    int slots = 20;
+    String setupDelay = "1";
+    String bootDelay = "1";
+    String logDelay = "1";
+    int setupFail = 20;
+    int startFail = 20;
+    int endRepeat = 3;
+    File scripts = new File("sim/script");
+    boolean keep = false;
+    boolean compact = false;
+    boolean batchTransfers = false;
+    boolean standby = false;
+    final Map<String, Replication.SaveFile> standbyFiles = new ConcurrentHashMap<>();
+    FileLock lock;
+    Thread standbyThread;
+    int agentCount = 0;
+    int agentSlots = 4;
+    final List<Agent> agents = new ArrayList<>();
+    File baseDir;
+
+    public static void main(String[] args) throws Exception {
+        Simulation simulation = new Simulation();
+        for (int i = 0; i < args.length; i += 1) {
+            String arg = args[i];
+            switch (arg) {
+            case "--players": simulation.playerCount = Integer.parseInt(args[++i]); break;
+            case "--parties": simulation.parties = Integer.parseInt(args[++i]); break;
+            case "--party-size": simulation.partySize = Integer.parseInt(args[++i]); break;
+            case "--menu": simulation.menuRequests = Integer.parseInt(args[++i]); break;
+            case "--rate": simulation.rate = Integer.parseInt(args[++i]); break;
+            case "--slots": simulation.slots = Integer.parseInt(args[++i]); break;
+            case "--setup-delay": simulation.setupDelay = args[++i]; break;
+            case "--boot-delay": simulation.bootDelay = args[++i]; break;
+            case "--log-delay": simulation.logDelay = args[++i]; break;
+            case "--setup-fail": simulation.setupFail = Integer.parseInt(args[++i]); break;
+            case "--start-fail": simulation.startFail = Integer.parseInt(args[++i]); break;
+            case "--end-repeat": simulation.endRepeat = Integer.parseInt(args[++i]); break;
+            case "--scripts": simulation.scripts = new File(args[++i]); break;
+            case "--agents": simulation.agentCount = Integer.parseInt(args[++i]); break;
+            case "--agent-slots": simulation.agentSlots = Integer.parseInt(args[++i]); break;
+            case "--compact": simulation.compact = true; break;
+            case "--batch-transfers": simulation.batchTransfers = true; break;
+            case "--standby": simulation.standby = true; break;
+            case "--keep": simulation.keep = true; break;
+            default:
+                System.err.println("Unknown argument: " + arg);
+                System.exit(1);
+            }
+        }
+        simulation.run();
+        System.exit(0);
+    }
+
+    /**
+     * A workload phase.  Latency is measured in microseconds from
+     * submission until the task has finished on the main thread.
+     */
+    static final class Phase {
+        final String name;
+        final Histogram latency = new Histogram();
+        final CountDownLatch latch;
+        final int tasks;
+        int submitted;
+        long begin;
+        long end;
+        long messages;
+        long bytes;
+
+        Phase(String name, int tasks) {
+            this.name = name;
+            this.tasks = tasks;
+            this.latch = new CountDownLatch(tasks);
+        }
+    }
+
+    void run() throws Exception {
+        prepare();
+        Thread mainThread = new Thread(daemon::loop, "DaemonMain");
+        mainThread.start();
+        List<Phase> phases = new ArrayList<>();
+        phases.add(menuSpam());
+        phases.add(lifecycleStorm());
+        waitForBoot();
+        phases.add(endFlood());
+        System.out.println();
+        System.out.println("Simulation report: players=" + playerCount + " slots=" + slots
+                           + (agentCount > 0 ? " agents=" + agentCount + "x" + agentSlots : ""));
+        for (Phase p: phases) {
+            double seconds = (p.end - p.begin) / 1e9;
+            System.out.format("%-10s tasks=%d time=%.2fs throughput=%.0f/s latency(ms) p50=%.2f p90=%.2f p99=%.2f max=%.2f messages=%d bytes=%d%n",
+                              p.name, p.tasks, seconds, p.tasks / Math.max(seconds, 1e-9),
+                              p.latency.percentile(50) / 1000.0, p.latency.percentile(90) / 1000.0,
+                              p.latency.percentile(99) / 1000.0, p.latency.getMax() / 1000.0,
+                              p.messages, p.bytes);
+        }
+        query(() -> {
+                daemon.syncConsoleCommand("timings", new String[0]);
+                daemon.syncConsoleCommand("queue", new String[0]);
+                daemon.syncConsoleCommand("users", new String[0]);
+                daemon.syncConsoleCommand("transfers", new String[0]);
+                daemon.syncConsoleCommand("watchdog", new String[0]);
+                return null;
+            });
+        daemon.stop();
+        mainThread.join();
+        if (standby) checkStandby();
+        for (Agent agent: agents) agent.stop();
+        reapChildren();
+        if (!keep) delete(baseDir);
+    }
+
+    void startStandby() {
+        daemon.startReplication();
+        final Replication primary = new Replication("127.0.0.1", daemon.getReplication().getPort(), null);
+        final File lockFile = new File(baseDir, "run/daemon.lock");
+        standbyThread = new Thread(() -> primary.follow(lockFile, standbyFiles), "Standby");
+        standbyThread.setDaemon(true);
+        standbyThread.start();
+    }
+
+    /**
+     * Stand in for the exit of the daemon process, then see that the
+     * standby took over with the saves as they are on disk.
+     */
+    void checkStandby() throws IOException, InterruptedException {
+        for (String line: daemon.getReplication().report()) System.out.println(line);
+        long released = System.currentTimeMillis();
+        lock.release();
+        lock.channel().close();
+        standbyThread.join(Replication.FAILOVER_TIMEOUT + Replication.RECONNECT_DELAY * 2);
+        if (standbyThread.isAlive()) {
+            System.out.println("standby did not take over");
+            return;
+        }
+        int same = 0;
+        int older = 0; // Kept from disk on takeover
+        for (Map.Entry<String, Replication.SaveFile> entry: standbyFiles.entrySet()) {
+            File file = new File(baseDir, entry.getKey());
+            byte[] disk = Files.readAllBytes(file.toPath());
+            if (entry.getValue().data.equals(new String(disk, StandardCharsets.UTF_8))) {
+                same += 1;
+            } else if (file.lastModified() >= entry.getValue().modified) {
+                older += 1;
+            }
+        }
+        System.out.println(String.format("standby took over after %dms with %d files, %d as on disk, %d older than disk",
+                                         System.currentTimeMillis() - released, standbyFiles.size(), same, older));
+    }
+
+    // Game servers are children now, so let them go before the
+    // base dir does.
+    void reapChildren() throws InterruptedException {
+        for (int i = 0; i < slots + agentCount * agentSlots; i += 1) {
+            new File(gameDir(i), "running").delete();
+        }
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (ProcessHandle.current().children().anyMatch(ProcessHandle::isAlive)) {
+            if (System.currentTimeMillis() > deadline) {
+                ProcessHandle.current().descendants().forEach(ProcessHandle::destroyForcibly);
+                break;
+            }
+            Thread.sleep(100L);
+        }
+    }
+
+    void prepare() throws IOException, InterruptedException {
+        baseDir = createBaseDir("daemon-sim", 10);
+        System.out.println("Simulation base dir: " + baseDir);
+        prepareScripts("");
+        StringBuilder config = new StringBuilder();
+        if (compact) config.append("minigames_compact: true\n");
+        if (batchTransfers) config.append("transfer_batch: true\n");
+        if (standby) config.append("replication_port: 0\n");
+        StringBuilder hosts = new StringBuilder("hosts:\n");
+        for (int i = 0; i < agentCount; i += 1) {
+            String dir = "agent" + i + "/";
+            for (String sub: new String[] {"script", "run"}) {
+                new File(baseDir, dir + sub).mkdirs();
+            }
+            prepareScripts(dir);
+            Agent agent = new Agent();
+            agent.port = 0;
+            agent.bind = "127.0.0.1";
+            agent.firstSlot = slots + i * agentSlots;
+            agent.slots = agentSlots;
+            agent.dir = new File(baseDir, dir);
+            agent.token = "sim";
+            agent.start();
+            new Thread(agent::acceptLoop, "Agent" + i).start();
+            agents.add(agent);
+            hosts.append("  agent").append(i).append(":\n")
+                .append("    address: 127.0.0.1\n")
+                .append("    port: ").append(agent.getPort()).append("\n")
+                .append("    slots: ").append(agentSlots).append("\n")
+                .append("    token: sim\n");
+        }
+        if (agentCount > 0) config.append(hosts);
+        write("config/daemon.yml", config.toString());
+        daemon.setBaseDir(baseDir);
+        daemon.setNetwork(network);
+        daemon.setServerCount(slots);
+        if (standby) lock = Replication.tryLock(new File(baseDir, "run/daemon.lock"));
+        daemon.setup();
+        if (standby) startStandby();
+        waitForHosts();
+        for (int i = 0; i < playerCount; i += 1) {
+            OnlinePlayer player = new OnlinePlayer(new UUID(0x51L, i), "sim" + i);
+            players.add(player);
+            network.addPlayer(player, "hub" + (i % 4));
+        }
+    }
+
+    // Scripts and their settings, in the base dir or an agent dir.
+    void prepareScripts(String dir) throws IOException {
+        File[] scriptFiles = scripts.listFiles();
+        if (scriptFiles == null) throw new IOException("Script dir not found: " + scripts);
+        for (File file: scriptFiles) {
+            Files.copy(file.toPath(), new File(baseDir, dir + "script/" + file.getName()).toPath(),
+                       StandardCopyOption.COPY_ATTRIBUTES);
+        }
+        write(dir + "sim.env",
+              "SIM_SETUP_DELAY=" + setupDelay + "\n"
+              + "SIM_BOOT_DELAY=" + bootDelay + "\n"
+              + "SIM_LOG_DELAY=" + logDelay + "\n"
+              + "SIM_SETUP_FAIL=" + setupFail + "\n"
+              + "SIM_START_FAIL=" + startFail + "\n");
+    }
+
+    void waitForHosts() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000L;
+        for (RemoteHost host: daemon.getRemoteHosts()) {
+            while (!host.isConnected()) {
+                if (System.currentTimeMillis() > deadline) throw new IllegalStateException("Host did not connect: " + host.getName());
+                Thread.sleep(100L);
+            }
+        }
+    }
+
+    /**
+     * The run directory of a server index.  Agent slots follow the
+     * local ones, in agent order.
+     */
+    File gameDir(int index) {
+        if (index < slots) return new File(baseDir, "run/game" + index);
+        int agent = (index - slots) / agentSlots;
+        return new File(baseDir, "agent" + agent + "/run/game" + index);
+    }
+
+    Phase begin(String name, int tasks) {
+        final Phase p = new Phase(name, tasks);
+        query(() -> {
+                p.messages = network.messages;
+                p.bytes = network.bytes;
+                return null;
+            });
+        System.out.println("Phase " + name + ": " + tasks + " tasks");
+        p.begin = System.nanoTime();
+        return p;
+    }
+
+    void finish(final Phase p) throws InterruptedException {
+        p.latch.await();
+        p.end = System.nanoTime();
+        query(() -> {
+                p.messages = network.messages - p.messages;
+                p.bytes = network.bytes - p.bytes;
+                return null;
+            });
+    }
+
+    // Lanes as the daemon would pick them for the real message.
+    void submit(final Phase p, String origin, TaskQueue.Lane lane, final Runnable run) {
+        final long submitted = System.nanoTime();
+        daemon.submit(new Daemon.Task("sim:" + origin, () -> {
+                    try {
+                        run.run();
+                    } finally {
+                        p.latency.record((System.nanoTime() - submitted) / 1000L);
+                        p.latch.countDown();
+                    }
+        }), lane);
+        p.submitted += 1;
+        if (rate > 0) {
+            long due = p.begin + p.submitted * 1000000000L / rate;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Called by SimNetwork on the main thread when a game server
+     * answers.  Answers are not part of any phase.
+     */
+    void reply(final String from, final Object payload) {
+        final MinigamesMessage message = MinigamesMessage.decode(payload);
+        daemon.submit(new Daemon.Task("sim:" + from, () -> daemon.syncMinigamesMessage(from, message)));
+    }
+
+    void command(Phase p, final OnlinePlayer player, final String... args) {
+        submit(p, "command:" + player.getName(), TaskQueue.Lane.UI, () -> daemon.syncGameCommand(player, args));
+    }
+
+    // Everybody opens the menu, over and over.
+    Phase menuSpam() throws InterruptedException {
+        Phase p = begin("menu", menuRequests);
+        for (int i = 0; i < menuRequests; i += 1) {
+            command(p, players.get(random.nextInt(players.size())));
+        }
+        finish(p);
+        return p;
+    }
+
+    // Parties create, publish, fill and start games, all at once.
+    Phase lifecycleStorm() throws InterruptedException {
+        int count = Math.min(parties, playerCount / Math.max(1, partySize));
+        Phase p = begin("lifecycle", count * (partySize + 2));
+        int next = 0;
+        for (int i = 0; i < count; i += 1) {
+            OnlinePlayer owner = players.get(next++);
+            command(p, owner, GAME_NAME, "create");
+            command(p, owner, "public");
+            for (int j = 1; j < partySize; j += 1) {
+                command(p, players.get(next++), GAME_NAME, "join");
+            }
+            command(p, owner, "start");
+        }
+        finish(p);
+        return p;
+    }
+
+    void waitForBoot() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 300000L;
+        while (System.currentTimeMillis() < deadline) {
+            int booting = query(() -> daemon.countServers(Daemon.Server.State.BOOT));
+            if (booting == 0) return;
+            Thread.sleep(500L);
+        }
+        System.out.println("Gave up waiting for servers to boot");
+    }
+
+    // Every running game ends, and says so repeatedly.
+    @SuppressWarnings("unchecked")
+    Phase endFlood() throws InterruptedException {
+        List<Object> ends = new ArrayList<>();
+        List<String> froms = new ArrayList<>();
+        for (int i = 0; i < slots + agentCount * agentSlots; i += 1) {
+            File dir = gameDir(i);
+            File running = new File(dir, "running");
+            if (!running.isFile()) continue;
+            try {
+                FileReader reader = new FileReader(new File(dir, "game_config.json"));
+                Map<String, Object> config = (Map<String, Object>)JSONValue.parse(reader);
+                reader.close();
+                UUID gameId = UUID.fromString((String)config.get("unique_id"));
+                ends.add(MinigamesMessage.of(MinigamesMessage.Action.GAME_END, null, gameId).encode(compact));
+                froms.add("game" + i);
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+        }
+        Phase p = begin("end", ends.size() * endRepeat);
+        for (int r = 0; r < endRepeat; r += 1) {
+            for (int i = 0; i < ends.size(); i += 1) {
+                final Object payload = ends.get(i);
+                final String from = froms.get(i);
+                final File running = new File(gameDir(Integer.parseInt(from.substring(4))), "running");
+                submit(p, from, TaskQueue.Lane.LIFECYCLE, () -> {
+                        daemon.syncMinigamesMessage(from, MinigamesMessage.decode(payload));
+                        // The game server shuts down after the game.
+                        running.delete();
+                    });
+            }
+        }
+        finish(p);
+        return p;
+    }
+
+    /**
+     * Run a function on the daemon main thread and wait for the
+     * result.
+     */
+    <T> T query(final Supplier<T> supplier) {
+        final List<T> result = new ArrayList<>(1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        daemon.submit(new Daemon.Task("sim:query", () -> {
+                    try {
+                        result.add(supplier.get());
+                    } finally {
+                        latch.countDown();
+                    }
+        }));
+        try {
+            latch.await();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    /**
+     * Create a scratch base dir with one game, its maps and a play
+     * mode, for the simulation and the benchmarks alike.  The maps
+     * have no world behind them.
+     */
+    static File createBaseDir(String prefix, int maps) throws IOException {
+        File dir = Files.createTempDirectory(prefix).toFile();
+        for (String sub: new String[] {"save", "games", "config", "script", "run"}) {
+            new File(dir, sub).mkdirs();
+        }
+        write(dir, "games/" + GAME_NAME + ".game",
+              "{\"display_name\": \"Colorfall\", \"shorthand\": \"cf\","
+              + " \"description\": \"Stand on the right color when the timer runs out, or fall into the void.\","
+              + " \"min_players\": 1, \"priority\": 10, \"connect\": true}");
+        StringBuilder worlds = new StringBuilder(GAME_NAME + ":\n");
+        for (int i = 0; i < maps; i += 1) {
+            worlds.append("    map").append(i).append(":\n")
+                .append("      MapID: Map ").append(i).append("\n")
+                .append("      MapPath: /nonexistent/Map").append(i).append("\n")
+                .append("      Authors: [ Alice, Bob ]\n")
+                .append("      Description: A perfectly ordinary map.\n");
+        }
+        write(dir, "config/worlds.yml", worlds.toString());
+        write(dir, "config/modes.yml",
+              GAME_NAME + ":\n  classic:\n    ModeID: Classic\n    DisplayName: Classic\n    Description: The original.\n");
+        return dir;
+    }
+
+    private void write(String path, String content) throws IOException {
+        write(baseDir, path, content);
+    }
+
+    private static void write(File dir, String path, String content) throws IOException {
+        FileWriter fw = new FileWriter(new File(dir, path));
+        fw.write(content);
+        fw.close();
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) delete(child);
+        }
+        file.delete();
+    }
+}
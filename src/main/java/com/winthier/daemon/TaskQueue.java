@@ -0,0 +1,110 @@
+package com.winthier.daemon;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The task queue of the main thread, split into priority lanes.  A
+ * task only waits behind its own lane and the lanes above it, so
+ * freeing a game slot does not wait for a menu render.  Each lane is
+ * FIFO.  A task which has waited longer than AGING gets every other
+ * turn ahead of higher lanes, so no lane starves and higher lanes
+ * still keep half of the main thread.  Queue wait is recorded per
+ * lane, in microseconds.
+ */
+final class TaskQueue<T> {
+    enum Lane {
+        LIFECYCLE, // Game and server state changes, anything freeing a slot
+        DEFAULT,
+        UI; // Menus and commands of players
+    }
+    static final long AGING = 1000L; // Millis
+    private final List<ArrayDeque<Entry<T>>> lanes = new ArrayList<>();
+    private final List<Histogram> waits = new ArrayList<>();
+    private int size;
+    private boolean agedTurn; // Whether the last pick was an aged task
+
+    private static final class Entry<T> {
+        private final T task;
+        private final long enqueued = System.nanoTime();
+
+        Entry(T task) {
+            this.task = task;
+        }
+    }
+
+    TaskQueue() {
+        for (int i = 0; i < Lane.values().length; i += 1) {
+            lanes.add(new ArrayDeque<>());
+            waits.add(new Histogram());
+        }
+    }
+
+    void add(T task) {
+        add(task, Lane.DEFAULT);
+    }
+
+    synchronized void add(T task, Lane lane) {
+        lanes.get(lane.ordinal()).add(new Entry<>(task));
+        size += 1;
+        notifyAll();
+    }
+
+    /**
+     * Wait for the next task.
+     * @return The task, or null if the time ran out
+     */
+    synchronized T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (size == 0) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) return null;
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        long now = System.nanoTime();
+        int pick = -1;
+        boolean aged = false;
+        for (int i = 0; i < lanes.size(); i += 1) {
+            Entry<T> head = lanes.get(i).peek();
+            if (head == null) continue;
+            if (pick < 0) {
+                pick = i;
+            } else if (!agedTurn && now - head.enqueued > TimeUnit.MILLISECONDS.toNanos(AGING)) {
+                pick = i;
+                aged = true;
+                break;
+            }
+        }
+        agedTurn = aged;
+        Entry<T> entry = lanes.get(pick).poll();
+        size -= 1;
+        waits.get(pick).record((now - entry.enqueued) / 1000L);
+        return entry.task;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    synchronized void clearStats() {
+        for (Histogram histogram: waits) histogram.clear();
+    }
+
+    synchronized List<String> report() {
+        List<String> lines = new ArrayList<>();
+        for (Lane lane: Lane.values()) {
+            Histogram wait = waits.get(lane.ordinal());
+            lines.add(String.format("%-9s queued=%d served=%d wait(ms) p50=%.2f p90=%.2f p99=%.2f max=%.2f",
+                                    lane.name().toLowerCase(), lanes.get(lane.ordinal()).size(), wait.getCount(),
+                                    wait.percentile(50) / 1000.0, wait.percentile(90) / 1000.0,
+                                    wait.percentile(99) / 1000.0, wait.getMax() / 1000.0));
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,143 @@
+package com.winthier.daemon;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel for delayed and repeating work on the main
+ * thread.  A timer goes into the bucket of its deadline tick, modulo
+ * the wheel size; timers more than one turn out simply stay put
+ * until their tick comes around.  Scheduling and cancelling cost
+ * O(1), and every tick only looks at its own bucket.  Cancelled
+ * timers are dropped when their bucket is next visited.
+ *
+ * Not thread-safe.  Timers are scheduled, cancelled and run on the
+ * main thread.
+ */
+final class TimerWheel<T> {
+    static final long TICK = 100L; // Millis
+    static final int WHEEL_SIZE = 512; // Ticks per turn, about 51 seconds
+    private final List<List<Timer<T>>> buckets = new ArrayList<>(WHEEL_SIZE);
+    private final long start;
+    private long currentTick; // The next tick to process
+    private int count; // Live timers
+
+    static final class Timer<T> {
+        private final T task;
+        private final long period; // 0 for a one-shot timer
+        private long deadlineTick;
+        private boolean cancelled;
+        private TimerWheel<T> wheel;
+
+        Timer(T task, long period) {
+            this.task = task;
+            this.period = period;
+        }
+
+        void cancel() {
+            if (cancelled) return;
+            cancelled = true;
+            wheel.count -= 1;
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    TimerWheel(long now) {
+        this.start = now;
+        for (int i = 0; i < WHEEL_SIZE; i += 1) buckets.add(new ArrayList<>());
+    }
+
+    /**
+     * Run the task once, after the delay.
+     */
+    Timer<T> schedule(long now, long delay, T task) {
+        Timer<T> timer = new Timer<>(task, 0);
+        insert(timer, now + delay);
+        count += 1;
+        return timer;
+    }
+
+    /**
+     * Run the task after the delay, and then every period until the
+     * timer is cancelled.  The period counts from the tick in which
+     * the task ran, so runs which were late do not bunch up.
+     */
+    Timer<T> scheduleRepeating(long now, long delay, long period, T task) {
+        if (period < TICK) throw new IllegalArgumentException("Period below tick: " + period);
+        Timer<T> timer = new Timer<>(task, period);
+        insert(timer, now + delay);
+        count += 1;
+        return timer;
+    }
+
+    private void insert(Timer<T> timer, long deadline) {
+        // Round up, so nothing fires early.
+        long tick = Math.max(currentTick, (deadline - start + TICK - 1) / TICK);
+        timer.deadlineTick = tick;
+        timer.wheel = this;
+        buckets.get((int)(tick % WHEEL_SIZE)).add(timer);
+    }
+
+    /**
+     * Process every tick up to now and hand the due tasks to the
+     * runner, in deadline order.
+     * @return The number of tasks run
+     */
+    int advance(long now, Consumer<T> runner) {
+        long target = (now - start) / TICK;
+        int result = 0;
+        while (currentTick <= target) {
+            List<Timer<T>> due = null;
+            Iterator<Timer<T>> iter = buckets.get((int)(currentTick % WHEEL_SIZE)).iterator();
+            while (iter.hasNext()) {
+                Timer<T> timer = iter.next();
+                if (timer.cancelled) {
+                    iter.remove();
+                } else if (timer.deadlineTick <= currentTick) {
+                    iter.remove();
+                    if (due == null) due = new ArrayList<>();
+                    due.add(timer);
+                }
+            }
+            long tick = currentTick;
+            currentTick += 1;
+            if (due == null) continue;
+            // Outside of the bucket loop, as tasks may schedule more.
+            for (Timer<T> timer: due) {
+                if (timer.cancelled) continue;
+                if (timer.period == 0) {
+                    timer.cancelled = true;
+                    count -= 1;
+                }
+                runner.accept(timer.task);
+                result += 1;
+                if (timer.period > 0 && !timer.cancelled) {
+                    insert(timer, start + tick * TICK + timer.period);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return Millis until the next tick with a timer in its bucket,
+     *   at most the given maximum
+     */
+    long millisUntilNext(long now, long max) {
+        if (count == 0) return max;
+        for (long tick = currentTick; tick < currentTick + WHEEL_SIZE; tick += 1) {
+            if (buckets.get((int)(tick % WHEEL_SIZE)).isEmpty()) continue;
+            return Math.max(0L, Math.min(max, start + tick * TICK - now));
+        }
+        return max;
+    }
+
+    int size() {
+        return count;
+    }
+}
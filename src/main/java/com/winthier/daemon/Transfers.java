@@ -0,0 +1,160 @@
+package com.winthier.daemon;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+/**
+ * Player transfers to game servers, as SEND_PLAYER_SERVER messages.
+ * Each player gets the old broadcast, unless batching is on: then
+ * one message, sent only to the server the players are on, moves
+ * all players leaving it.  Players whose location is not known
+ * always get the broadcast.  After VERIFY_DELAY, the player list
+ * tells which players arrived; the rest are sent again, up to
+ * MAX_ATTEMPTS, and then reported as failed.
+ *
+ * Batching needs a plugin which reads the players list, so it is
+ * off unless enabled, see transfer_batch in config/daemon.yml.
+ * Main thread only.
+ */
+final class Transfers {
+    static final String CHANNEL = "SEND_PLAYER_SERVER";
+    static final long VERIFY_DELAY = 3000L;
+    static final int MAX_ATTEMPTS = 3;
+    boolean batch = false;
+    private final Map<UUID, Pending> pending = new LinkedHashMap<>();
+    // Metrics
+    private long requested, arrived, retried, failed, offline, left, messages, broadcasts;
+
+    static final class Pending {
+        final UUID player;
+        final String server;
+        int attempts;
+
+        Pending(UUID player, String server) {
+            this.player = player;
+            this.server = server;
+        }
+    }
+
+    /**
+     * One Connect message of a transfer.
+     */
+    static final class Send {
+        final String target; // Null to broadcast
+        final Map<String, Object> payload;
+
+        Send(String target, Map<String, Object> payload) {
+            this.target = target;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Start transferring the players, replacing any transfer of
+     * theirs still pending.
+     * @param locations Player to current server, see Network#listPlayers
+     * @return The messages to send
+     */
+    List<Send> request(Collection<UUID> players, String server, Map<UUID, String> locations) {
+        List<Pending> list = new ArrayList<>(players.size());
+        for (UUID player: players) {
+            Pending entry = new Pending(player, server);
+            pending.put(player, entry);
+            list.add(entry);
+            requested += 1;
+        }
+        return plan(list, locations);
+    }
+
+    /**
+     * See who arrived, and plan the retries.
+     * @param wanted Whether the player still belongs on the server,
+     *   e.g. is still in the game running there
+     * @param failures Gets the players who ran out of attempts
+     * @return The messages to send
+     */
+    List<Send> verify(Map<UUID, String> locations, Predicate<Pending> wanted, List<Pending> failures) {
+        List<Pending> retry = new ArrayList<>();
+        for (Iterator<Pending> iter = pending.values().iterator(); iter.hasNext();) {
+            Pending entry = iter.next();
+            String location = locations.get(entry.player);
+            if (entry.server.equals(location)) {
+                arrived += 1;
+                iter.remove();
+            } else if (location == null) {
+                // Logged off meanwhile, which is not the transfer's fault.
+                offline += 1;
+                iter.remove();
+            } else if (!wanted.test(entry)) {
+                // Left the game meanwhile.
+                left += 1;
+                iter.remove();
+            } else if (entry.attempts >= MAX_ATTEMPTS) {
+                failed += 1;
+                iter.remove();
+                failures.add(entry);
+            } else {
+                retried += 1;
+                retry.add(entry);
+            }
+        }
+        return plan(retry, locations);
+    }
+
+    private List<Send> plan(List<Pending> entries, Map<UUID, String> locations) {
+        List<Send> result = new ArrayList<>();
+        // origin -> target -> players
+        Map<String, Map<String, List<UUID>>> groups = new LinkedHashMap<>();
+        for (Pending entry: entries) {
+            entry.attempts += 1;
+            String origin = locations.get(entry.player);
+            if (origin == null || !batch) {
+                result.add(new Send(null, single(entry.player, entry.server)));
+                broadcasts += 1;
+                continue;
+            }
+            groups.computeIfAbsent(origin, k -> new LinkedHashMap<>())
+                .computeIfAbsent(entry.server, k -> new ArrayList<>())
+                .add(entry.player);
+        }
+        for (Map.Entry<String, Map<String, List<UUID>>> origin: groups.entrySet()) {
+            for (Map.Entry<String, List<UUID>> target: origin.getValue().entrySet()) {
+                Map<String, Object> payload = new HashMap<>();
+                List<String> players = new ArrayList<>(target.getValue().size());
+                for (UUID player: target.getValue()) players.add(player.toString());
+                payload.put("players", players);
+                payload.put("server", target.getKey());
+                result.add(new Send(origin.getKey(), payload));
+            }
+        }
+        messages += result.size();
+        return result;
+    }
+
+    private static Map<String, Object> single(UUID player, String server) {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("player", player.toString());
+        payload.put("server", server);
+        return payload;
+    }
+
+    boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    void load(Map<String, Object> map) {
+        if (map.containsKey("transfer_batch")) batch = map.get("transfer_batch") == Boolean.TRUE;
+    }
+
+    String report() {
+        return String.format("batch=%s pending=%d requested=%d arrived=%d retried=%d failed=%d offline=%d left=%d messages=%d broadcasts=%d",
+                             batch, pending.size(), requested, arrived, retried, failed, offline, left, messages, broadcasts);
+    }
+}
@@ -0,0 +1,209 @@
+package com.winthier.daemon;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
+/**
+ * Notice when a task keeps the main thread longer than the
+ * threshold, e.g. waiting for a child process, the database or the
+ * disk, while every player waits with it.  The stall is logged once
+ * per task, with the task origin and the stack of the main thread,
+ * and again when the task finally returns.
+ *
+ * With dumps enabled, a continuous flight recording of the last few
+ * minutes runs in the background, and a task which stalls past the
+ * dump threshold writes it to run/stall-*.jfr, at most once per
+ * DUMP_INTERVAL.  See watchdog_* in config/daemon.yml.
+ *
+ * The main thread calls begin() and end() around each task; the
+ * watchdog thread only ever reads what they publish.
+ */
+final class Watchdog implements Runnable {
+    static final long CHECK_INTERVAL = 250L;
+    static final long DUMP_INTERVAL = 10L * 60L * 1000L;
+    static final Duration RECORDING_AGE = Duration.ofMinutes(5);
+    static final int STACK_DEPTH = 40;
+    private final File dumpDir;
+    private volatile long threshold = 2000L; // 0 disables
+    private volatile long dumpThreshold = 10000L;
+    private volatile boolean dumps = false;
+    private volatile Running current;
+    private volatile boolean stopped;
+    private Thread thread;
+    private Recording recording; // Watchdog thread only
+    private long lastDump;
+    // Metrics
+    private final AtomicLong stalls = new AtomicLong();
+    private final AtomicLong dumpCount = new AtomicLong();
+    private volatile long longest;
+    private volatile String longestOrigin;
+
+    /**
+     * The task on the main thread right now.
+     */
+    static final class Running {
+        final String origin;
+        final Thread thread;
+        final long start = System.currentTimeMillis();
+        volatile boolean reported;
+        boolean dumped; // Watchdog thread only
+
+        Running(String origin, Thread thread) {
+            this.origin = origin;
+            this.thread = thread;
+        }
+    }
+
+    Watchdog(File dumpDir) {
+        this.dumpDir = dumpDir;
+    }
+
+    void start() {
+        if (thread != null) return;
+        stopped = false;
+        thread = new Thread(this, "Watchdog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        stopped = true;
+        thread = null;
+    }
+
+    /**
+     * A task starts on the calling thread.
+     */
+    void begin(String origin) {
+        current = new Running(origin, Thread.currentThread());
+    }
+
+    /**
+     * The task of the calling thread is done.
+     */
+    void end() {
+        Running running = current;
+        current = null;
+        if (running == null || !running.reported) return;
+        long duration = System.currentTimeMillis() - running.start;
+        System.err.println("Stall over: " + running.origin + " took " + duration + "ms");
+        if (duration > longest) {
+            longest = duration;
+            longestOrigin = running.origin;
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!stopped) {
+            try {
+                Thread.sleep(CHECK_INTERVAL);
+            } catch (InterruptedException ie) {
+                break;
+            }
+            try {
+                check(System.currentTimeMillis());
+            } catch (RuntimeException re) {
+                re.printStackTrace();
+            }
+        }
+        closeRecording();
+    }
+
+    private void check(long now) {
+        if (dumps && recording == null) openRecording();
+        if (!dumps && recording != null) closeRecording();
+        Running running = current;
+        if (running == null) return;
+        long age = now - running.start;
+        if (threshold > 0 && age >= threshold && !running.reported) {
+            running.reported = true;
+            stalls.incrementAndGet();
+            report(running, age);
+        }
+        if (running.reported && recording != null && !running.dumped && age >= dumpThreshold
+            && (lastDump == 0 || now - lastDump >= DUMP_INTERVAL)) {
+            running.dumped = true;
+            lastDump = now;
+            dump(running, now);
+        }
+    }
+
+    private void report(Running running, long age) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Stall: ").append(running.origin).append(" running for ").append(age).append("ms");
+        StackTraceElement[] stack = running.thread.getStackTrace();
+        for (int i = 0; i < stack.length && i < STACK_DEPTH; i += 1) {
+            sb.append("\n    at ").append(stack[i]);
+        }
+        if (stack.length > STACK_DEPTH) sb.append("\n    ...");
+        System.err.println(sb);
+        Events.Stall event = new Events.Stall();
+        if (event.shouldCommit()) {
+            event.origin = running.origin;
+            event.stalledFor = age;
+            event.commit();
+        }
+    }
+
+    private void openRecording() {
+        try {
+            recording = new Recording(Configuration.getConfiguration("default"));
+        } catch (IOException | ParseException e) {
+            System.err.println("Watchdog recording: " + e.getMessage());
+            dumps = false;
+            return;
+        }
+        recording.setName("watchdog");
+        recording.setToDisk(true);
+        recording.setMaxAge(RECORDING_AGE);
+        recording.start();
+    }
+
+    private void closeRecording() {
+        if (recording == null) return;
+        recording.close();
+        recording = null;
+    }
+
+    private void dump(Running running, long now) {
+        dumpDir.mkdirs();
+        File file = new File(dumpDir, "stall-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(now)) + ".jfr");
+        try {
+            recording.dump(file.toPath());
+        } catch (IOException ioe) {
+            System.err.println("Watchdog dump: " + ioe.getMessage());
+            return;
+        }
+        dumpCount.incrementAndGet();
+        System.err.println("Stall: dumped flight recording of " + running.origin + " to " + file);
+    }
+
+    void load(Map<String, Object> map) {
+        if (map.containsKey("watchdog_threshold")) threshold = (long)(((Number)map.get("watchdog_threshold")).doubleValue() * 1000.0);
+        if (map.containsKey("watchdog_dump_threshold")) dumpThreshold = (long)(((Number)map.get("watchdog_dump_threshold")).doubleValue() * 1000.0);
+        if (map.containsKey("watchdog_dumps")) dumps = map.get("watchdog_dumps") == Boolean.TRUE;
+    }
+
+    List<String> report() {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("threshold=%dms dumps=%s dump_threshold=%dms", threshold, dumps, dumpThreshold));
+        lines.add(String.format("stalls=%d dumped=%d longest=%dms%s", stalls.get(), dumpCount.get(), longest,
+                                longestOrigin != null ? " (" + longestOrigin + ")" : ""));
+        Running running = current;
+        if (running != null && running.reported) {
+            lines.add("stalled now: " + running.origin + " for " + (System.currentTimeMillis() - running.start) + "ms");
+        }
+        return lines;
+    }
+}